@@ -42,6 +42,8 @@ import javax.swing.Timer;
 import edu.mit.csail.sls.wami.applet.sound.AudioDevice;
 import edu.mit.csail.sls.wami.applet.sound.AudioInputStreamSource;
 import edu.mit.csail.sls.wami.applet.sound.AutocorrSpeechDetector;
+import edu.mit.csail.sls.wami.applet.sound.Encodings;
+import edu.mit.csail.sls.wami.applet.sound.ImaAdpcmEncoder;
 import edu.mit.csail.sls.wami.applet.sound.SpeechDetector;
 
 public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
@@ -69,6 +71,7 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 	private AudioDevice audioDevice = new AudioDevice();
 	private SpeechDetector detector = new AutocorrSpeechDetector();
 	private AudioFormat recordFormat;
+	private AudioFormat.Encoding uploadEncoding;
 
 	private boolean initialized = false;
 	private boolean isDestroyed = false;
@@ -157,6 +160,7 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 		playUrl = urlParameter("playUrl");
 		recordFormat = getAudioFormatFromParams("recordAudioFormat",
 				"recordSampleRate", "recordIsLittleEndian");
+		uploadEncoding = getUploadEncoding("recordAudioFormat");
 		playRecordTone = getBooleanParameter("playRecordTone", false);
 		mouseListener = new MouseListener();
 
@@ -327,7 +331,9 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 		if ("MULAW".equals(audioFormatStr)) {
 			return new AudioFormat(AudioFormat.Encoding.ULAW, sampleRate, 8, 1,
 					2, 8000, !isLittleEndian);
-		} else if ("LIN16".equals(audioFormatStr)) {
+		} else if ("LIN16".equals(audioFormatStr)
+				|| "IMA-ADPCM".equals(audioFormatStr)) {
+			// ADPCM is recorded as 16-bit PCM and encoded while uploading
 			return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate,
 					16, 1, 2, sampleRate, !isLittleEndian);
 		}
@@ -336,6 +342,17 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 				+ audioFormatStr + "'");
 	}
 
+	/**
+	 * The encoding audio is posted in, which differs from the recording
+	 * format only for IMA-ADPCM
+	 */
+	private AudioFormat.Encoding getUploadEncoding(String formatParam) {
+		if ("IMA-ADPCM".equals(getParameter(formatParam))) {
+			return Encodings.IMA_ADPCM;
+		}
+		return recordFormat.getEncoding();
+	}
+
 	private void pingURL(final URL recordUrl) {
 		if (recordUrl == null)
 			return;
@@ -640,24 +657,47 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 					OutputStream out = conn.getOutputStream();
 
 					byte[] buffer = new byte[10240];
+
+					ImaAdpcmEncoder encoder = null;
+					byte[] encoded = null;
+					if (uploadEncoding == Encodings.IMA_ADPCM) {
+						encoder = new ImaAdpcmEncoder(recordFormat
+								.isBigEndian());
+						encoded = new byte[buffer.length / 4 + 2];
+					}
+
 					int totalRead = 0;
+					int totalSent = 0;
 					while (true) {
 						int numRead = in.read(buffer);
 						if (numRead < 0) {
 							break;
 						}
-						out.write(buffer, 0, numRead);
+						if (encoder != null) {
+							int numEncoded = encoder.encode(buffer, 0,
+									numRead, encoded, 0);
+							out.write(encoded, 0, numEncoded);
+							totalSent += numEncoded;
+						} else {
+							out.write(buffer, 0, numRead);
+							totalSent += numRead;
+						}
 						out.flush();
 						totalRead += numRead;
 					}
+					if (encoder != null) {
+						int numEncoded = encoder.flush(encoded, 0);
+						out.write(encoded, 0, numEncoded);
+						totalSent += numEncoded;
+					}
 
 					out.close();
 					in.close();
 					if (playRecordTone) {
 						playResource("end_tone.wav");
 					}
-					System.out.println("Posted total of  " + totalRead
-							+ " audio bytes");
+					System.out.println("Posted total of  " + totalSent
+							+ " bytes for " + totalRead + " audio bytes");
 					System.out.println("Http response line: "
 							+ conn.getResponseMessage());
 				} catch (IOException e) {
@@ -672,7 +712,11 @@ public class WamiAudioApplet extends JApplet implements AudioDevice.Listener,
 
 	private String getContentType(AudioFormat format) {
 		String encoding = null;
-		if (format.getEncoding() == AudioFormat.Encoding.ULAW) {
+		if (uploadEncoding == Encodings.IMA_ADPCM) {
+			// headerless, with the state carried across the whole upload
+			return "AUDIO/IMA-ADPCM; CHANNELS=" + format.getChannels()
+					+ "; RATE=" + (int) format.getSampleRate();
+		} else if (format.getEncoding() == AudioFormat.Encoding.ULAW) {
 			encoding = "MULAW";
 		} else if (format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED) {
 			encoding = "L16";
@@ -33,4 +33,6 @@ import javax.sound.sampled.*;
 public class Encodings {
     public static final
 	AudioFormat.Encoding AMR = new AudioFormat.Encoding("AMR");
+    public static final
+	AudioFormat.Encoding IMA_ADPCM = new AudioFormat.Encoding("IMA-ADPCM");
 }
@@ -0,0 +1,203 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.mit.csail.sls.wami.applet.sound;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A resampling filter from {@link InterpolationFilter#design}, together with
+ * its polyphase decomposition, for interpolating by L and decimating by M.
+ *
+ * Filter banks are looked up in a registry keyed by (L, M, taps, window)
+ * that is shared by every resampler in the JVM: the applet's
+ * ResampleInputStream as well as the server's resamplers. Each bank is
+ * designed exactly once, even when several streams ask for it at the same
+ * time, and never changes afterwards. The arrays it hands out are shared, so
+ * callers must not modify them.
+ */
+public final class FilterBank {
+
+    // Sample rates are rounded to a multiple of this before computing L/M
+    public static final int APPROXIMATION = 100;
+
+    // Taps per unit of max(L, M)
+    public static final int FILTER_SCALE = 25;
+
+    private static final ConcurrentMap<String, FutureTask<FilterBank>> registry =
+	new ConcurrentHashMap<String, FutureTask<FilterBank>>();
+
+    private final int L;
+    private final int M;
+    private final int window;
+    private final float[] h;
+    private final float[][] phases;
+
+    private FilterBank(int L, int M, int taps, int window) {
+	if (L <= 0 || M <= 0 || taps <= 0 || taps % L != 0) {
+	    throw new IllegalArgumentException("Bad filter bank: L=" + L +
+					       " M=" + M + " taps=" + taps);
+	}
+
+	this.L = L;
+	this.M = M;
+	this.window = window;
+	this.h = InterpolationFilter.design(Math.max(L, M), taps, window);
+
+	int perPhase = taps / L;
+	phases = new float[L][perPhase];
+	for (int p = 0; p < L; p++) {
+	    for (int k = 0; k < perPhase; k++) {
+		phases[p][k] = L*h[L - 1 - p + k*L];
+	    }
+	}
+    }
+
+    static int gcd(int x, int y){
+	int r;
+	while((r=x%y)>0){
+	    x = y;
+	    y = r;
+	}
+	return y;
+    }
+
+    /**
+     * The rate a resampler actually works with for a nominal sample rate.
+     */
+    public static int approximateRate(float rate) {
+	return Math.round(rate/APPROXIMATION)*APPROXIMATION;
+    }
+
+    /**
+     * The default number of taps for the given factors: FILTER_SCALE per
+     * unit of max(L, M), rounded up to a whole number of phases.
+     */
+    public static int taps(int L, int M) {
+	int n = FILTER_SCALE*Math.max(L, M);
+	int mod = n % L;
+	if (mod != 0)
+	    n += L - mod;
+	return n;
+    }
+
+    /**
+     * The Hamming-windowed filter bank used to convert between two sample
+     * rates.
+     */
+    public static FilterBank forRates(float sourceRate, float targetRate) {
+	int source = approximateRate(sourceRate);
+	int target = approximateRate(targetRate);
+	int gcd = gcd(target, source);
+	int L = target / gcd;
+	int M = source / gcd;
+	return get(L, M, taps(L, M), InterpolationFilter.HAMMING);
+    }
+
+    /**
+     * The registered filter bank for these parameters, designing it if this
+     * is the first request for it.
+     */
+    public static FilterBank get(final int L, final int M, final int taps,
+				 final int window) {
+	String key = L + "/" + M + "/" + taps + "/" + window;
+	FutureTask<FilterBank> task = registry.get(key);
+	if (task == null) {
+	    FutureTask<FilterBank> newTask = new FutureTask<FilterBank>(
+		new Callable<FilterBank>() {
+		    public FilterBank call() {
+			return new FilterBank(L, M, taps, window);
+		    }
+		});
+	    task = registry.putIfAbsent(key, newTask);
+	    if (task == null) {
+		task = newTask;
+		task.run();
+	    }
+	}
+
+	try {
+	    return task.get();
+	} catch (InterruptedException e) {
+	    // don't wait for the thread designing it, just do it again here
+	    Thread.currentThread().interrupt();
+	    return new FilterBank(L, M, taps, window);
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof RuntimeException) {
+		registry.remove(key, task);
+		throw (RuntimeException) e.getCause();
+	    }
+	    throw new RuntimeException(e.getCause());
+	}
+    }
+
+    public int getL() {
+	return L;
+    }
+
+    public int getM() {
+	return M;
+    }
+
+    public int getTaps() {
+	return h.length;
+    }
+
+    public int getWindow() {
+	return window;
+    }
+
+    public int getPerPhase() {
+	return phases[0].length;
+    }
+
+    /**
+     * The prototype filter, normalized to unit gain at DC. Do not modify.
+     */
+    public float[] getFilter() {
+	return h;
+    }
+
+    /**
+     * The coefficients of phase p, scaled by L and ordered to multiply the
+     * delay line from its oldest sample to its newest. Do not modify.
+     */
+    public float[] getPhase(int p) {
+	return phases[p];
+    }
+
+    @Override
+    public String toString() {
+	return "FilterBank: L=" + L + " M=" + M + " taps=" + h.length +
+	    " perPhase=" + phases[0].length;
+    }
+}
@@ -0,0 +1,169 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.mit.csail.sls.wami.applet.sound;
+
+/**
+ * A streaming IMA-ADPCM (DVI) encoder for 16-bit mono PCM, used to cut the
+ * bytes the applet uploads to a quarter of L16.
+ *
+ * The stream is headerless: the encoder and decoder both start with a
+ * predictor and step index of 0 and carry their state across the whole
+ * utterance, so no block headers are needed over a reliable connection.
+ * Each byte holds two samples, the earlier one in the low nibble, as in
+ * IMA-ADPCM WAV files. The tables are public so that the server's decoder
+ * uses exactly the same ones.
+ */
+public final class ImaAdpcmEncoder {
+
+    public static final int[] STEP_SIZES = {
+	7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37,
+	41, 45, 50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173,
+	190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658,
+	724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+	2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894,
+	6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289,
+	16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // Step index adjustment, by the magnitude bits of a code
+    public static final int[] INDEX_ADJUST = {
+	-1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private final boolean bigEndian;
+
+    private int predictor = 0;
+    private int index = 0;
+
+    private int pendingByte = -1;	// first byte of a split sample
+    private int pendingCode = -1;	// low nibble waiting for its partner
+
+    /**
+     * @param bigEndian byte order of the PCM that will be encoded
+     */
+    public ImaAdpcmEncoder(boolean bigEndian){
+	this.bigEndian = bigEndian;
+    }
+
+    /**
+     * Encodes len bytes of PCM into out, returning the number of bytes
+     * written: at most (len + 1)/4 + 1. A sample or nibble split across
+     * calls is carried over to the next one.
+     */
+    public int encode(byte[] pcm, int off, int len, byte[] out, int outOff){
+	int o = outOff;
+	int end = off + len;
+	int i = off;
+
+	if (pendingByte >= 0 && i < end){
+	    o = put(sample(pendingByte, pcm[i++]), out, o);
+	    pendingByte = -1;
+	}
+	for (; i + 1 < end; i += 2){
+	    o = put(sample(pcm[i], pcm[i+1]), out, o);
+	}
+	if (i < end){
+	    pendingByte = pcm[i] & 0xff;
+	}
+	return o - outOff;
+    }
+
+    /**
+     * Writes out a sample left in the low nibble at the end of the stream,
+     * returning the number of bytes written (0 or 1). The decoder sees one
+     * extra sample, close to the last real one.
+     */
+    public int flush(byte[] out, int outOff){
+	if (pendingCode < 0)
+	    return 0;
+	out[outOff] = (byte)pendingCode;
+	pendingCode = -1;
+	return 1;
+    }
+
+    private int sample(int b0, int b1){
+	return bigEndian
+	    ? (short)((b0 << 8) | (b1 & 0xff))
+	    : (short)((b1 << 8) | (b0 & 0xff));
+    }
+
+    private int put(int sample, byte[] out, int o){
+	int code = encodeSample(sample);
+	if (pendingCode < 0){
+	    pendingCode = code;
+	    return o;
+	}
+	out[o] = (byte)((code << 4) | pendingCode);
+	pendingCode = -1;
+	return o + 1;
+    }
+
+    private int encodeSample(int sample){
+	int step = STEP_SIZES[index];
+	int diff = sample - predictor;
+	int code = 0;
+	if (diff < 0){
+	    code = 8;
+	    diff = -diff;
+	}
+
+	// Quantize the difference to the same value the decoder reconstructs
+	int delta = step >> 3;
+	if (diff >= step){
+	    code |= 4;
+	    diff -= step;
+	    delta += step;
+	}
+	step >>= 1;
+	if (diff >= step){
+	    code |= 2;
+	    diff -= step;
+	    delta += step;
+	}
+	step >>= 1;
+	if (diff >= step){
+	    code |= 1;
+	    delta += step;
+	}
+
+	predictor += (code & 8) != 0 ? -delta : delta;
+	if (predictor > Short.MAX_VALUE)
+	    predictor = Short.MAX_VALUE;
+	else if (predictor < Short.MIN_VALUE)
+	    predictor = Short.MIN_VALUE;
+
+	index += INDEX_ADJUST[code & 7];
+	if (index < 0)
+	    index = 0;
+	else if (index >= STEP_SIZES.length)
+	    index = STEP_SIZES.length - 1;
+
+	return code;
+    }
+}
@@ -27,7 +27,7 @@
  */
 package edu.mit.csail.sls.wami.applet.sound;
 
-class InterpolationFilter {
+public class InterpolationFilter {
 
     public static final int RECTANGULAR = 1;
     public static final int HANNING     = 2;
@@ -33,8 +33,6 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
-import java.util.Map;
-import java.util.TreeMap;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -43,9 +41,6 @@ import edu.mit.csail.sls.wami.applet.sound.ByteFifo;
 
 public class ResampleInputStream extends InputStream {
 
-    private static final int APPROXIMATION = 100;
-    private static final int FILTER_SCALE = 25;
-
     private AudioFormat targetFormat;
     private AudioFormat sourceFormat;
 
@@ -73,27 +68,15 @@ public class ResampleInputStream extends InputStream {
     private ByteBuffer targetByteBuffer = ByteBuffer.wrap(targetBytes);
     private ShortBuffer targetShortBuffer = null;
 
-    // For caching interpolation filter.
-    private static Map<Integer,float[]> filterCache = new TreeMap<Integer,float[]>();
-    
-    int gcd(int x, int y){
-	int r;
-	while((r=x%y)>0){
-	    x = y;
-	    y = r;
-	}
-	return y;
-    }
-
     public ResampleInputStream(AudioFormat targetFormat,
 			       AudioInputStream sourceStream) {
 	this.targetFormat = targetFormat;
 	this.sourceFormat = sourceStream.getFormat();
 	this.sourceStream = sourceStream;
 
-	int targetRate = Math.round(targetFormat.getSampleRate()/APPROXIMATION)*APPROXIMATION;
-	int sourceRate = Math.round(sourceFormat.getSampleRate()/APPROXIMATION)*APPROXIMATION;
-	int gcd = gcd(targetRate, sourceRate);
+	int targetRate = FilterBank.approximateRate(targetFormat.getSampleRate());
+	int sourceRate = FilterBank.approximateRate(sourceFormat.getSampleRate());
+	int gcd = FilterBank.gcd(targetRate, sourceRate);
 
 	this.L = targetRate / gcd;
 	this.M = sourceRate / gcd;
@@ -105,27 +88,16 @@ public class ResampleInputStream extends InputStream {
     }
 
     private void initialize() {
-	int f = Math.max(L, M);
-	int n = FILTER_SCALE*f;
-	int mod = n % L;
-	if (mod != 0)
-	    n += L - mod;
-	z = new short[n / L];
-
-	boolean cached = true;
-	Integer cacheKey = new Integer(f);
-	h = filterCache.get(cacheKey);
-	if (h == null) {
-	    h = InterpolationFilter.design(f, n, InterpolationFilter.HAMMING);
-	    filterCache.put(cacheKey, h);
-	    cached = false;
-	}
+	// Shared with every other resampler for these rates
+	h = FilterBank.get(L, M, FilterBank.taps(L, M),
+			   InterpolationFilter.HAMMING).getFilter();
+	z = new short[h.length / L];
+
 	System.err.println("ResampleInputStream:" +
 			   " L=" + L +
 			   " M=" + M +
 			   " taps=" + h.length +
-			   " perPhase=" + z.length +
-			   " cached=" + cached);
+			   " perPhase=" + z.length);
 
 	// Cause the delay buffer z to be fully loaded before first output.
 	//
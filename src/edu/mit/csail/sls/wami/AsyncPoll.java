@@ -0,0 +1,136 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+import edu.mit.csail.sls.wami.relay.IPollListener;
+import edu.mit.csail.sls.wami.relay.WamiRelay;
+
+/**
+ * <p>
+ * A single poll on the control servlet, held open with a Servlet 3.0
+ * {@link AsyncContext} rather than a blocked container thread. The relay
+ * calls {@link #onMessage(String)} directly from whichever thread sends the
+ * next message, and the container's async timeout stands in for the
+ * <code>pollTimeout</code> wait of the blocking poll.
+ * </p>
+ * <p>
+ * Either way the request is dispatched back to {@link WamiServlet} with the
+ * message stored as a request attribute, so the reply is written (and passes
+ * through any filters, such as the cross-site JSONP wrapper) exactly as a
+ * blocking poll would have written it.
+ * </p>
+ * <p>
+ * A server-sent event stream waits for each of its messages with one of these
+ * too, started again by the servlet once it has written the last one. Its
+ * timeout is the stream's keepalive interval, after which the request is
+ * dispatched with {@link WamiServlet#ASYNC_POLL_TIMED_OUT} set so that the
+ * stream is kept open, whereas a stream superseded by a newer poll or stream
+ * from the same client is ended.
+ * </p>
+ * <p>
+ * This class references Servlet 3.0 API, and so must only be loaded once
+ * {@link WamiServlet} has established that the container supports it.
+ * </p>
+ */
+class AsyncPoll implements IPollListener, AsyncListener {
+	private final AsyncContext context;
+
+	private final WamiRelay relay;
+
+	private AsyncPoll(AsyncContext context, WamiRelay relay) {
+		this.context = context;
+		this.relay = relay;
+	}
+
+	static void start(HttpServletRequest request, WamiRelay relay) {
+		start(request, relay, relay.getPolltimeout());
+	}
+
+	/**
+	 * Wait for the next message of an event stream, or for the keepalive
+	 * interval (in ms) to pass
+	 */
+	static void startStream(HttpServletRequest request, WamiRelay relay,
+			long keepalive) {
+		start(request, relay, keepalive);
+	}
+
+	private static void start(HttpServletRequest request, WamiRelay relay,
+			long timeout) {
+		AsyncContext context = request.startAsync();
+		context.setTimeout(timeout > 0 ? timeout : 0);
+
+		AsyncPoll poll = new AsyncPoll(context, relay);
+		context.addListener(poll);
+		relay.waitForMessage(poll);
+	}
+
+	public void onMessage(String message) {
+		context.getRequest().setAttribute(WamiServlet.ASYNC_POLL_MESSAGE,
+				message == null ? "" : message);
+
+		try {
+			context.dispatch();
+		} catch (IllegalStateException e) {
+			// The poll was completed by the container (e.g. it timed out, or
+			// the client went away) just as this message was handed to it.
+			// The relay has already dequeued it, so give it back for the next
+			// poll.
+			if (message != null) {
+				relay.requeueMessage(message);
+			}
+		}
+	}
+
+	public void onTimeout(AsyncEvent event) {
+		// if the poll is no longer pending, a message is on its way to
+		// onMessage() and it will dispatch the request instead
+		if (relay.cancelPoll(this)) {
+			context.getRequest().setAttribute(
+					WamiServlet.ASYNC_POLL_TIMED_OUT, Boolean.TRUE);
+			onMessage(null);
+		}
+	}
+
+	public void onError(AsyncEvent event) {
+		relay.cancelPoll(this);
+	}
+
+	public void onComplete(AsyncEvent event) {
+		relay.cancelPoll(this);
+	}
+
+	public void onStartAsync(AsyncEvent event) {
+	}
+
+}
@@ -0,0 +1,200 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+/**
+ * Sends the messages for one {@link WamiSocketEndpoint}, in the order they
+ * were given, through the socket's asynchronous remote endpoint. Each is
+ * started once the one before it has gone, since a socket can only send one
+ * message at a time. Queueing a text message does not wait for the client
+ * to read it, so the relay can call {@link #sendText(String)} from whichever
+ * thread sends it a message.
+ */
+class SocketSender {
+	private final RemoteEndpoint.Async remote;
+
+	private final Runnable onFailure;
+
+	/**
+	 * messages not yet started; guards itself, current and closed
+	 */
+	private final LinkedList<Frame> queue = new LinkedList<Frame>();
+
+	/**
+	 * the message being sent, or null if there is none
+	 */
+	private Frame current = null;
+
+	private boolean closed = false;
+
+	/**
+	 * @param onFailure
+	 *            run (once) if a message cannot be sent, after which nothing
+	 *            more is
+	 */
+	SocketSender(RemoteEndpoint.Async remote, Runnable onFailure) {
+		this.remote = remote;
+		this.onFailure = onFailure;
+	}
+
+	/**
+	 * Queue a text message, without waiting for it to be sent
+	 */
+	void sendText(String text) {
+		enqueue(new Frame(text, null));
+	}
+
+	/**
+	 * Queue a binary message, and wait until it has been sent
+	 * 
+	 * @return false if it could not be sent, or was dropped by
+	 *         {@link #close()}
+	 */
+	boolean sendBinary(ByteBuffer data) throws InterruptedException {
+		Frame frame = new Frame(null, data);
+		enqueue(frame);
+		frame.done.await();
+		return frame.sent;
+	}
+
+	/**
+	 * Drop the messages not yet sent, and any sent after this. Whoever is
+	 * waiting in {@link #sendBinary(ByteBuffer)} is released.
+	 */
+	void close() {
+		List<Frame> dropped;
+		synchronized (queue) {
+			closed = true;
+			dropped = new ArrayList<Frame>(queue);
+			queue.clear();
+			if (current != null) {
+				dropped.add(current);
+			}
+		}
+
+		for (Frame frame : dropped) {
+			frame.finish(false);
+		}
+	}
+
+	private void enqueue(Frame frame) {
+		synchronized (queue) {
+			if (closed) {
+				frame.finish(false);
+				return;
+			}
+			if (current != null) {
+				// started when the ones before it are done
+				queue.add(frame);
+				return;
+			}
+			current = frame;
+		}
+
+		frame.start();
+	}
+
+	/**
+	 * Start the next message, if there is one
+	 */
+	private void sendNext() {
+		Frame frame;
+		synchronized (queue) {
+			frame = closed ? null : queue.poll();
+			current = frame;
+		}
+
+		if (frame != null) {
+			frame.start();
+		}
+	}
+
+	private class Frame implements SendHandler {
+		private final String text;
+
+		private final ByteBuffer data;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile boolean sent = false;
+
+		Frame(String text, ByteBuffer data) {
+			this.text = text;
+			this.data = data;
+		}
+
+		void start() {
+			try {
+				if (text != null) {
+					remote.sendText(text, this);
+				} else {
+					remote.sendBinary(data, this);
+				}
+			} catch (RuntimeException e) {
+				// e.g. the socket has closed
+				onResult(new SendResult(e));
+			}
+		}
+
+		public void onResult(SendResult result) {
+			if (result.isOK()) {
+				finish(true);
+				sendNext();
+				return;
+			}
+
+			result.getException().printStackTrace();
+			boolean first;
+			synchronized (queue) {
+				first = !closed;
+			}
+			finish(false);
+			close();
+			if (first) {
+				onFailure.run();
+			}
+		}
+
+		synchronized void finish(boolean sent) {
+			if (done.getCount() > 0) {
+				this.sent = sent;
+				done.countDown();
+			}
+		}
+	}
+}
@@ -28,6 +28,7 @@
 package edu.mit.csail.sls.wami;
 
 import java.awt.Dimension;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -60,15 +61,19 @@ import org.xml.sax.SAXException;
 import edu.mit.csail.sls.wami.app.IApplicationController;
 import edu.mit.csail.sls.wami.app.IWamiApplication;
 import edu.mit.csail.sls.wami.audio.IAudioRetriever;
+import edu.mit.csail.sls.wami.audio.RecordServlet;
 import edu.mit.csail.sls.wami.log.EventLoggerDaemonAdapter;
 import edu.mit.csail.sls.wami.log.EventLoggerException;
 import edu.mit.csail.sls.wami.log.IEventLogger;
 import edu.mit.csail.sls.wami.log.IEventPlayer;
 import edu.mit.csail.sls.wami.recognition.IRecognizer;
+import edu.mit.csail.sls.wami.recognition.RecognizerPool;
 import edu.mit.csail.sls.wami.recognition.exceptions.RecognizerException;
 import edu.mit.csail.sls.wami.relay.InstantiationEvent;
+import edu.mit.csail.sls.wami.relay.RelayQueue;
 import edu.mit.csail.sls.wami.synthesis.ISynthesizer;
 import edu.mit.csail.sls.wami.util.Instantiable;
+import edu.mit.csail.sls.wami.util.XmlMessageWriter;
 import edu.mit.csail.sls.wami.util.XmlUtils.ValidationErrorHandler;
 import edu.mit.csail.sls.wami.validation.IValidator;
 
@@ -745,6 +750,40 @@ public class WamiConfig {
 		return Boolean.parseBoolean(getAudioAttribute("recordIsLittleEndian"));
 	}
 
+	/**
+	 * The resampler used to convert recorded audio to the recognizer's format
+	 * (see {@link RecordServlet#convertToRecognizerFormat})
+	 */
+	public String getResampler() {
+		String resampler = getAudioAttribute("resampler");
+		if (resampler == null || "".equals(resampler)) {
+			return RecordServlet.RESAMPLER_POLYPHASE;
+		}
+		return resampler;
+	}
+
+	/**
+	 * Whether silence is trimmed from recorded audio before recognition (see
+	 * {@link edu.mit.csail.sls.wami.audio.SpeechTrimmingInputStream})
+	 */
+	public boolean getTrimSilence() {
+		return Boolean.parseBoolean(getAudioAttribute("trimSilence"));
+	}
+
+	/**
+	 * get time (in ms) of silence after speech which ends an utterance when
+	 * silence is trimmed
+	 */
+	public int getEndOfSpeechSilence() {
+		String silenceString = getAudioAttribute("endOfSpeechSilence");
+
+		if (silenceString == null || "".equals(silenceString)) {
+			return 1000;
+		}
+
+		return Integer.parseInt(silenceString);
+	}
+
 	public boolean getAudioHttpOnly() {
 		return Boolean.parseBoolean(getAudioAttribute("httpOnly"));
 	}
@@ -835,6 +874,183 @@ public class WamiConfig {
 		return Long.parseLong(timoutString);
 	}
 
+	/**
+	 * Whether polls on the control servlet should be answered asynchronously
+	 * (Servlet 3.0+) rather than by parking a container thread for the length
+	 * of each poll. Falls back to blocking polls on containers which do not
+	 * support it.
+	 */
+	public boolean getAsyncPolling() {
+		return Boolean.parseBoolean(getRelaySetting("asyncPolling"));
+	}
+
+	/**
+	 * Whether audio posted to the record servlet should be read with
+	 * non-blocking I/O (Servlet 3.1+), so that a container thread is only
+	 * used while bytes are arriving. Falls back to blocking reads on
+	 * containers which do not support it.
+	 */
+	public boolean getAsyncRecording() {
+		return Boolean.parseBoolean(getRelaySetting("asyncRecording"));
+	}
+
+	/**
+	 * get the longest time (in ms) a non-blocking upload of recorded audio may
+	 * take before it is abandoned (0 for no limit)
+	 */
+	public long getRecordTimeout() {
+		return getLongRelaySetting("recordTimeout", 60000);
+	}
+
+	/**
+	 * get time (in ms) a batched poll waits after its first message for more
+	 * messages to arrive
+	 */
+	public long getPollCoalesceTime() {
+		String coalesceString = getRelaySetting("pollCoalesceTime");
+
+		if (coalesceString == null || "".equals(coalesceString)) {
+			return 0;
+		}
+
+		return Long.parseLong(coalesceString);
+	}
+
+	/**
+	 * get the format of the control channel for the client loading the
+	 * javascript API with this request, which may ask for one with the
+	 * wireFormat parameter
+	 */
+	public XmlMessageWriter.WireFormat getWireFormat(HttpServletRequest request) {
+		if (request != null && request.getParameter("wireFormat") != null) {
+			return XmlMessageWriter.WireFormat.fromString(request
+					.getParameter("wireFormat"));
+		}
+
+		return XmlMessageWriter.WireFormat
+				.fromString(getRelaySetting("wireFormat"));
+	}
+
+	/**
+	 * get how long (in ms) a client's poll may go unanswered before it is sent
+	 * an empty reply to keep intermediaries from closing it (0 for never)
+	 */
+	public long getKeepaliveInterval() {
+		String intervalString = getRelaySetting("keepaliveInterval");
+
+		if (intervalString == null || "".equals(intervalString)) {
+			return 55000;
+		}
+
+		return Long.parseLong(intervalString);
+	}
+
+	/**
+	 * get the number of recognizers to keep ready for new relays (0 for none)
+	 */
+	public int getRecognizerPoolSize() {
+		return getIntRelaySetting("recognizerPoolSize", 0);
+	}
+
+	/**
+	 * get the number of threads which run recognitions (0 for a thread per
+	 * recognition)
+	 */
+	public int getRecognitionWorkers() {
+		return getIntRelaySetting("recognitionWorkers", 0);
+	}
+
+	/**
+	 * get the number of recognitions which may wait for a worker before new
+	 * ones are rejected (0 for no limit)
+	 */
+	public int getRecognitionQueueCapacity() {
+		return getIntRelaySetting("recognitionQueueCapacity", 64);
+	}
+
+	/**
+	 * get the bytes of an utterance's audio kept in memory before the rest is
+	 * spilled to disk (0 for no limit)
+	 */
+	public long getAudioSpillSize() {
+		return getLongRelaySetting("audioSpillSize", 1024 * 1024);
+	}
+
+	/**
+	 * get the bytes of utterance audio all relays together keep in memory
+	 * before spilling to disk (0 for no limit)
+	 */
+	public long getAudioMemoryBudget() {
+		return getLongRelaySetting("audioMemoryBudget", 64 * 1024 * 1024);
+	}
+
+	/**
+	 * get the directory audio is spilled to, or null for the system's
+	 * temporary directory
+	 */
+	public File getAudioSpillDirectory() {
+		String dir = getRelaySetting("audioSpillDirectory");
+		return dir == null || "".equals(dir) ? null : new File(dir);
+	}
+
+	/**
+	 * get the number of a relay's most recent recordings kept for
+	 * {@link IApplicationController#getRecording(String)} and replay
+	 */
+	public int getRetainedRecordings() {
+		return getIntRelaySetting("retainedRecordings", 1);
+	}
+
+	/**
+	 * get the maximum number of messages a relay holds for its client
+	 */
+	public int getMessageQueueCapacity() {
+		return getIntRelaySetting("messageQueueCapacity", 256);
+	}
+
+	/**
+	 * get what a relay does with a new message when its client has let the
+	 * message queue fill up
+	 */
+	public RelayQueue.OverflowPolicy getMessageQueueOverflowPolicy() {
+		String policy = getRelaySetting("messageQueueOverflow");
+
+		if ("dropOldest".equals(policy)) {
+			return RelayQueue.OverflowPolicy.DROP_OLDEST;
+		} else if ("block".equals(policy)) {
+			return RelayQueue.OverflowPolicy.BLOCK;
+		}
+
+		return RelayQueue.OverflowPolicy.DROP_INCREMENTAL_FIRST;
+	}
+
+	/**
+	 * get the maximum number of audio streams a relay holds for playing
+	 */
+	public int getAudioQueueCapacity() {
+		return getIntRelaySetting("audioQueueCapacity", 16);
+	}
+
+	private int getIntRelaySetting(String name, int defaultValue) {
+		String value = getRelaySetting(name);
+
+		if (value == null || "".equals(value)) {
+			return defaultValue;
+		}
+
+		return Integer.parseInt(value);
+	}
+
+	private long getLongRelaySetting(String name, long defaultValue) {
+		String value = getRelaySetting(name);
+
+		if (value == null || "".equals(value)) {
+			return defaultValue;
+		}
+
+		return Long.parseLong(value);
+	}
+
 	public String controlServletURL(HttpServletRequest request,
 			String wsessionid) {
 		String baseUrl = WamiConfig.getBaseURL(request);
@@ -1043,6 +1259,16 @@ public class WamiConfig {
 			IApplicationController appController) throws RecognizerException {
 		String className = getClassAttribute("recognizer");
 		Map<String, String> params = getParameters("recognizer");
+
+		if (appController != null && getRecognizerPoolSize() > 0) {
+			IRecognizer rec = RecognizerPool.getPool(sc).take();
+			if (rec != null) {
+				logInstantiationEvent(appController, "recognizer", className,
+						params);
+			}
+			return rec;
+		}
+
 		return createRecognizer(sc, appController, className, params);
 	}
 
@@ -31,8 +31,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -46,10 +51,17 @@ import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import edu.mit.csail.sls.wami.audio.RecordServlet;
+import edu.mit.csail.sls.wami.audio.UtteranceBuffer;
+import edu.mit.csail.sls.wami.recognition.RecognitionScheduler;
+import edu.mit.csail.sls.wami.recognition.RecognizerPool;
 import edu.mit.csail.sls.wami.relay.InitializationException;
+import edu.mit.csail.sls.wami.relay.IPollListener;
 import edu.mit.csail.sls.wami.relay.ReachedCapacityException;
 import edu.mit.csail.sls.wami.relay.RelayManager;
 import edu.mit.csail.sls.wami.relay.WamiRelay;
+import edu.mit.csail.sls.wami.util.JsonML;
+import edu.mit.csail.sls.wami.util.XmlMessageWriter;
 import edu.mit.csail.sls.wami.util.XmlUtils;
 import edu.mit.csail.sls.wami.validation.IValidator;
 
@@ -68,18 +80,83 @@ import edu.mit.csail.sls.wami.validation.IValidator;
  * the client. This means that the polling is not inefficient, however it does
  * mean that we effectively have a connection to each client open all the time.
  * </p>
+ * <p>
+ * On Servlet 3.0 containers, setting <code>asyncPolling</code> in the relay
+ * settings holds those connections open asynchronously (see {@link AsyncPoll})
+ * so that a waiting client does not also tie up a container thread.
+ * </p>
+ * <p>
+ * A poll with <code>batch=true</code> gets every message queued for it at
+ * once, wrapped in a <code>&lt;replies&gt;</code> element, rather than one
+ * message per round trip.
+ * </p>
+ * <p>
+ * Alternatively, a GET with <code>stream=true</code> opens a server-sent events
+ * (<code>text/event-stream</code>) response which stays open and carries each
+ * message as an event as soon as it is sent. While the stream is open the
+ * client counts as polling, so the relay is not timed out for lack of polls.
+ * Each message is waited for like a poll (asynchronously if
+ * <code>asyncPolling</code> is set), so a newer stream or poll from the same
+ * client ends the old stream, and a message the old stream could not write is
+ * given back to the relay for the next one.
+ * </p>
  * 
  * @author alexgru
  * 
  */
 public class WamiServlet extends HttpServlet {
 
+	/**
+	 * Request attribute holding the reply to an asynchronous poll when it is
+	 * dispatched back to this servlet ("" if the poll timed out)
+	 */
+	static final String ASYNC_POLL_MESSAGE = "edu.mit.csail.sls.wami.asyncPollMessage";
+
+	/**
+	 * Request attribute set when an asynchronous poll is dispatched back to
+	 * this servlet because it timed out, rather than because it was answered
+	 * or superseded
+	 */
+	static final String ASYNC_POLL_TIMED_OUT = "edu.mit.csail.sls.wami.asyncPollTimedOut";
+
+	/**
+	 * How often (in ms) an idle event stream is written to, so that
+	 * intermediaries keep it open and a client which went away is noticed
+	 */
+	private static final long STREAM_KEEPALIVE = 20000;
+
+	/**
+	 * Request attribute holding the {@link ReachedCapacityException} when the
+	 * relay could not be created because all relays are in use
+	 */
+	static final String WAITLIST_ATTRIBUTE = "edu.mit.csail.sls.wami.waitlist";
+
+	/** the soonest a client in the waitlist is asked to check in again (ms) */
+	private static final long MIN_WAITLIST_RETRY = 1000;
+
 	WamiConfig ac = null;
 
+	private boolean asyncPolling = false;
+
+	private long pollCoalesceTime = 0;
+
 	@Override
 	public void init() throws ServletException {
 		ServletContext sc = getServletContext();
 		ac = WamiConfig.getConfiguration(sc);
+		asyncPolling = ac.getAsyncPolling() && sc.getMajorVersion() >= 3;
+		pollCoalesceTime = ac.getPollCoalesceTime();
+
+		UtteranceBuffer.configure(ac.getAudioSpillSize(), ac
+				.getAudioMemoryBudget(), ac.getAudioSpillDirectory());
+
+		if (ac.getRecognizerPoolSize() > 0) {
+			// start creating recognizers before the first user arrives
+			RecognizerPool.getPool(sc);
+		}
+
+		// likewise the filters used to resample uploaded audio
+		RecordServlet.prepareResamplers(ac);
 		super.init();
 	}
 
@@ -92,6 +169,25 @@ public class WamiServlet extends HttpServlet {
 		if (manager != null) {
 			manager.close();
 		}
+
+		RecognizerPool pool = (RecognizerPool) sc
+				.getAttribute("recognizerPool");
+		if (pool != null) {
+			pool.close();
+		}
+
+		RecognitionScheduler scheduler = (RecognitionScheduler) sc
+				.getAttribute("recognitionScheduler");
+		if (scheduler != null) {
+			scheduler.close();
+		}
+
+		// set by the WebSocket endpoint, if the container loaded it
+		ExecutorService socketAudioSenders = (ExecutorService) sc
+				.getAttribute("socketAudioSenders");
+		if (socketAudioSenders != null) {
+			socketAudioSenders.shutdownNow();
+		}
 	}
 
 	/**
@@ -106,16 +202,49 @@ public class WamiServlet extends HttpServlet {
 			return;
 		}
 
+		String asyncMessage = (String) request.getAttribute(ASYNC_POLL_MESSAGE);
+		if (asyncMessage != null) {
+			// an asynchronous poll has been answered and dispatched back here
+			request.removeAttribute(ASYNC_POLL_MESSAGE);
+			boolean timedOut = request.getAttribute(ASYNC_POLL_TIMED_OUT) != null;
+			request.removeAttribute(ASYNC_POLL_TIMED_OUT);
+			if (isStreamRequest(request)) {
+				continueStream(asyncMessage, timedOut, request, response);
+			} else if (!"".equals(asyncMessage)) {
+				if (isBatchRequest(request)) {
+					// don't hold up the dispatch: just take what is queued
+					asyncMessage = batchMessages(WamiServlet.getRelay(request),
+							asyncMessage, 0);
+				}
+				printResponse(asyncMessage, request, response);
+			} else {
+				response.getWriter().close();
+			}
+			return;
+		}
+
 		boolean polling = false;
 
 		WamiRelay relay = WamiServlet.getRelay(request);
 
+		ReachedCapacityException full = (ReachedCapacityException) request
+				.getAttribute(WAITLIST_ATTRIBUTE);
+		if (relay == null && full != null) {
+			showWaitlist(request, response, full);
+			return;
+		}
+
 		if (relay == null) {
 			showError(request, response, "null_relay",
 					"The relay to the recognizer was not found");
 			return;
 		}
 
+		if (isStreamRequest(request)) {
+			streamMessages(relay, request, response);
+			return;
+		}
+
 		// if no xml is passed in, then we try the request parameters
 		String pollingStr = request.getParameter("polling");
 		polling = pollingStr != null && !pollingStr.equals("")
@@ -127,10 +256,18 @@ public class WamiServlet extends HttpServlet {
 			if (polling) {
 				// System.out.println("polling");
 
+				if (asyncPolling && request.isAsyncSupported()) {
+					AsyncPoll.start(request, relay);
+					return;
+				}
+
 				// polling happens here:
 				m = relay.waitForMessage();
 
 				if (m != null) {
+					if (isBatchRequest(request)) {
+						m = batchMessages(relay, m, pollCoalesceTime);
+					}
 					printResponse(m, request, response);
 				} else {
 					response.getWriter().close();
@@ -142,25 +279,20 @@ public class WamiServlet extends HttpServlet {
 	}
 
 	/**
-	 * XML messages are posted to the control servlet here.
+	 * XML (or JsonML) messages are posted to the control servlet here.
 	 */
 	@Override
 	public void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
 		try {
-			Document xmlDoc;
-
 			System.err.println(WamiConfig
 					.reconstructRequestURLandParams(request));
 
 			InputStream stream;
 			stream = request.getInputStream();
-			InputSource source = new InputSource(new InputStreamReader(stream,
+			Element root = parseClientUpdate(new InputStreamReader(stream,
 					request.getCharacterEncoding()));
-			
-			xmlDoc = XmlUtils.getBuilder().parse(source);
-			Element root = (Element) xmlDoc.getFirstChild();
 
 			if (root == null) {
 				return;
@@ -174,6 +306,30 @@ public class WamiServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Parse a client update sent in either wire format, as the root element
+	 * of its XML form (null if there is none)
+	 */
+	static Element parseClientUpdate(Reader in) throws SAXException,
+			IOException {
+		PushbackReader reader = new PushbackReader(in);
+
+		int c;
+		do {
+			c = reader.read();
+		} while (c != -1 && Character.isWhitespace(c));
+
+		if (c == -1) {
+			return null;
+		}
+		reader.unread(c);
+
+		if (c == '[') {
+			return JsonML.parseElement(reader);
+		}
+		return XmlUtils.parseElement(new InputSource(reader));
+	}
+
 	private void clientUpdateMessage(HttpServletRequest request,
 			HttpServletResponse response, Element root) throws IOException {
 		WamiRelay relay = WamiServlet.getRelay(request);
@@ -192,9 +348,8 @@ public class WamiServlet extends HttpServlet {
 		if (stopPolling) {
 			relay.stopPolling();
 		} else {
-			String clientUpdateXML = XmlUtils.toXMLString(root);
-			System.out.println("Update: " + clientUpdateXML);
-			relay.handleClientUpdate(request.getSession(), clientUpdateXML);
+			System.out.println("Update: " + root.getAttribute("type"));
+			relay.handleClientUpdate(request.getSession(), root);
 			printResponse("<empty />", request, response);
 		}
 	}
@@ -202,13 +357,59 @@ public class WamiServlet extends HttpServlet {
 	private void showError(HttpServletRequest request,
 			HttpServletResponse response, String type, String error) {
 		try {
-			printResponse("<reply type='error' error_type='" + type
-					+ "' message='" + error + "' />", request, response);
+			printResponse(XmlMessageWriter.newMessage("reply",
+					getWireFormat(request)).attribute("type", "error")
+					.attribute("error_type", type).attribute("message", error)
+					.toXMLString(), request, response);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Tell a client which could not get a relay where it is in the waitlist,
+	 * and when to check in again. Over an event stream, that is done by
+	 * closing the stream and having the browser reconnect.
+	 */
+	private void showWaitlist(HttpServletRequest request,
+			HttpServletResponse response, ReachedCapacityException full)
+			throws IOException {
+		long wait = full.getEstimatedWait();
+		long retry = Math.max(MIN_WAITLIST_RETRY, Math.min(wait,
+				RelayManager.WAITLIST_CHECK_INTERVAL));
+		String message = XmlMessageWriter.newMessage("reply",
+				getWireFormat(request)).attribute("type", "waitlist")
+				.attribute("position", full.getPosition()).attribute("wait",
+						Long.toString(wait)).attribute("retry",
+						Long.toString(retry)).toXMLString();
+
+		if (isStreamRequest(request)) {
+			PrintWriter out = startStream(response);
+			out.print("retry: " + retry + "\n");
+			out.print("data: " + message + "\n\n");
+			out.close();
+		} else {
+			printResponse(message, request, response);
+		}
+	}
+
+	/**
+	 * The wire format negotiated for the request's session, for replies sent
+	 * when it has no relay
+	 */
+	private XmlMessageWriter.WireFormat getWireFormat(
+			HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		Object format = session == null ? null : session
+				.getAttribute("wireFormat");
+		if (format instanceof XmlMessageWriter.WireFormat) {
+			return (XmlMessageWriter.WireFormat) format;
+		}
+
+		return WamiConfig.getConfiguration(getServletContext()).getWireFormat(
+				request);
+	}
+
 	private void doValidateServlet(HttpServletRequest request,
 			HttpServletResponse response) {
 		ServletContext sc = request.getSession().getServletContext();
@@ -244,6 +445,265 @@ public class WamiServlet extends HttpServlet {
 		return "validate".equals(request.getParameter("operation"));
 	}
 
+	private boolean isStreamRequest(HttpServletRequest request) {
+		return Boolean.parseBoolean(request.getParameter("stream"));
+	}
+
+	/**
+	 * Open a text/event-stream response
+	 */
+	private PrintWriter startStream(HttpServletResponse response)
+			throws IOException {
+		response.setContentType("text/event-stream; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		// the page is usually served from another site (see the jsxss filters)
+		response.setHeader("Access-Control-Allow-Origin", "*");
+		return response.getWriter();
+	}
+
+	/**
+	 * Write each message the relay sends to a single open text/event-stream
+	 * response until the client disconnects, the relay is closed, or the
+	 * client opens another stream or polls.
+	 */
+	private void streamMessages(WamiRelay relay, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		PrintWriter out = startStream(response);
+
+		// a comment line, so that the client sees the stream open right away
+		out.print(": wami\n\n");
+		out.flush();
+
+		if (asyncPolling && request.isAsyncSupported()) {
+			AsyncPoll.startStream(request, relay, STREAM_KEEPALIVE);
+			return;
+		}
+
+		RelayManager manager = RelayManager.getManager(request.getSession());
+		StreamWait wait = new StreamWait(relay);
+
+		try {
+			while (manager.getRelay(relay.getWamiSessionID()) == relay) {
+				String m = wait.next(STREAM_KEEPALIVE);
+				if (m == null) {
+					// superseded by a newer stream or poll from the client
+					break;
+				}
+
+				if (!writeEvent(out, m, relay)) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			wait.cancel();
+			e.printStackTrace();
+		}
+
+		out.close();
+	}
+
+	/**
+	 * Write the message an asynchronous stream was dispatched back with, and
+	 * wait for the next one
+	 */
+	private void continueStream(String message, boolean timedOut,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		PrintWriter out = response.getWriter();
+
+		// unlike getRelay(), don't bring a closed relay back to life
+		WamiRelay relay = findRelay(request);
+		if (relay == null || "".equals(message) && !timedOut) {
+			// closed, or superseded by a newer stream or poll from the client
+			out.close();
+			return;
+		}
+
+		if (!writeEvent(out, message, relay)) {
+			out.close();
+			return;
+		}
+
+		AsyncPoll.startStream(request, relay, STREAM_KEEPALIVE);
+	}
+
+	/**
+	 * The request's relay if it is still open, without creating one
+	 */
+	private WamiRelay findRelay(HttpServletRequest request) {
+		String wsessionid = request.getParameter("wsessionid");
+		if (wsessionid == null || "".equals(wsessionid)) {
+			wsessionid = request.getSession().getId();
+		}
+
+		return RelayManager.getManager(request.getSession())
+				.getRelay(wsessionid);
+	}
+
+	/**
+	 * Write one message to an event stream, or a keepalive comment for an
+	 * empty message or one which only asks the client to poll again.
+	 * 
+	 * @return false if the client has gone away, in which case the message is
+	 *         given back to the relay for the client's next stream or poll
+	 */
+	private static boolean writeEvent(PrintWriter out, String message,
+			WamiRelay relay) {
+		if ("".equals(message) || WamiRelay.isRepollMessage(message)) {
+			out.print(": keepalive\n\n");
+			return !out.checkError();
+		}
+
+		// each line of the message is a data line of one event
+		for (String line : message.split("\r?\n")) {
+			out.print("data: ");
+			out.print(line);
+			out.print('\n');
+		}
+		out.print('\n');
+
+		// flushes, and tells us whether that worked
+		if (out.checkError()) {
+			relay.requeueMessage(message);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The wait for the next message of an event stream held open on a
+	 * container thread. It is registered with the relay like an asynchronous
+	 * poll, so that a newer stream or poll from the same client supersedes
+	 * it, rather than leaving this thread to take a message meant for that.
+	 */
+	private static class StreamWait implements IPollListener {
+		private final WamiRelay relay;
+
+		private String message = null;
+
+		private boolean answered = false;
+
+		StreamWait(WamiRelay relay) {
+			this.relay = relay;
+		}
+
+		public synchronized void onMessage(String message) {
+			this.message = message;
+			answered = true;
+			notifyAll();
+		}
+
+		/**
+		 * The next message, "" if there was none within the timeout (in ms),
+		 * or null if the wait was superseded
+		 */
+		String next(long timeout) throws InterruptedException {
+			relay.waitForMessage(this);
+
+			synchronized (this) {
+				if (!answered) {
+					wait(timeout);
+				}
+				if (!answered && relay.cancelPoll(this)) {
+					return "";
+				}
+				// otherwise a message is already on its way
+				while (!answered) {
+					wait();
+				}
+
+				answered = false;
+				String m = message;
+				message = null;
+				return m;
+			}
+		}
+
+		/**
+		 * Give up waiting, e.g. when the thread is interrupted
+		 */
+		void cancel() {
+			if (relay.cancelPoll(this)) {
+				return;
+			}
+
+			String m;
+			synchronized (this) {
+				m = answered ? message : null;
+				answered = false;
+				message = null;
+			}
+			if (m != null) {
+				relay.requeueMessage(m);
+			}
+		}
+	}
+
+
+	private boolean isBatchRequest(HttpServletRequest request) {
+		return Boolean.parseBoolean(request.getParameter("batch"));
+	}
+
+	/**
+	 * Combine the message which answered a poll with any others queued behind
+	 * it (optionally waiting coalesceTime ms for more) into a single
+	 * &lt;replies&gt; envelope. A lone message is returned as is.
+	 * 
+	 * For a client using the JSON wire format, the envelope is a JsonML
+	 * replies element. Any XML messages (e.g. sent as strings by an
+	 * application) go in it as strings, for the client to parse.
+	 */
+	private String batchMessages(WamiRelay relay, String first,
+			long coalesceTime) {
+		if (relay == null) {
+			return first;
+		}
+
+		List<String> messages = new ArrayList<String>();
+		messages.add(first);
+
+		if (coalesceTime > 0) {
+			try {
+				Thread.sleep(coalesceTime);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (relay.drainMessages(messages) == 0) {
+			return first;
+		}
+
+		if (relay.getWireFormat() == XmlMessageWriter.WireFormat.JSON) {
+			StringBuilder envelope = new StringBuilder("[\"replies\"");
+			for (String message : messages) {
+				envelope.append(',');
+				if (JsonML.isJsonML(message)) {
+					envelope.append(message);
+				} else {
+					JsonML.quote(stripXMLDeclaration(message), envelope);
+				}
+			}
+			envelope.append(']');
+			return envelope.toString();
+		}
+
+		StringBuilder envelope = new StringBuilder("<replies>");
+		for (String message : messages) {
+			envelope.append(stripXMLDeclaration(message));
+		}
+		envelope.append("</replies>");
+		return envelope.toString();
+	}
+
+	private static String stripXMLDeclaration(String message) {
+		if (message.startsWith("<?xml")) {
+			return message.substring(message.indexOf("?>") + 2);
+		}
+
+		return message;
+	}
+
 	/**
 	 * Prints the response returned by the relay. By default, it will be encoded
 	 * as straight xml, however with ?rtype=js it can be returned as javascript
@@ -253,7 +713,11 @@ public class WamiServlet extends HttpServlet {
 			HttpServletResponse response) throws IOException {
 
 		// note, you must set content type before getting the writer
-		response.setContentType("text/xml; charset=UTF-8");
+		if (JsonML.isJsonML(message)) {
+			response.setContentType("application/json; charset=UTF-8");
+		} else {
+			response.setContentType("text/xml; charset=UTF-8");
+		}
 		PrintWriter out = response.getWriter();
 		out.print(message);
 		out.close();
@@ -294,7 +758,7 @@ public class WamiServlet extends HttpServlet {
 		return getRelay(request, wsessionid);
 	}
 
-	public static WamiRelay getRelay(HttpServletRequest request,
+	public static WamiRelay getRelay(final HttpServletRequest request,
 			String wsessionid) {
 		if (wsessionid == null || "".equals(wsessionid)) {
 			wsessionid = request.getSession().getId();
@@ -302,27 +766,45 @@ public class WamiServlet extends HttpServlet {
 
 		HttpSession session = request.getSession();
 
-		WamiRelay relay = null;
+		final RelayManager manager = RelayManager.getManager(session);
+
+		// Fast path: the relay already exists
+		WamiRelay relay = manager.getRelay(wsessionid);
+		if (relay != null && relay.isInitialized()) {
+			return relay;
+		}
 
-		RelayManager manager = RelayManager.getManager(session);
-		synchronized (manager) {
-			relay = manager.getRelay(wsessionid);
-
-			if (relay == null) {
-				System.out.println("Relay is null, attempting to initialize");
-				try {
-					System.out.println("INITIALIZING WAMI RELAY");
-					relay = initializeRelay(request, wsessionid);
-				} catch (InitializationException e) {
-					if (e.getRelay() != null) {
-						String message = "Error initializing relay!  Removing the uninitialized relay!";
-						System.out.println(message);
-						manager.remove(e.getRelay());
+		// Relays for different sessions are initialized in parallel; requests
+		// for a session whose relay is being initialized wait for it
+		final String id = wsessionid;
+		try {
+			manager.initializeRelay(wsessionid, new Callable<WamiRelay>() {
+				public WamiRelay call() throws InitializationException {
+					WamiRelay current = manager.getRelay(id);
+					if (current != null && current.isInitialized()) {
+						return current;
+					}
+
+					System.out.println("Relay is null, attempting to initialize");
+					try {
+						System.out.println("INITIALIZING WAMI RELAY");
+						return initializeRelay(request, id);
+					} catch (InitializationException e) {
+						if (e.getRelay() != null) {
+							String message = "Error initializing relay!  Removing the uninitialized relay!";
+							System.out.println(message);
+							manager.remove(e.getRelay());
+						}
+						throw e;
 					}
-					e.printStackTrace();
-					return null;
 				}
+			});
+		} catch (InitializationException e) {
+			if (e instanceof ReachedCapacityException) {
+				request.setAttribute(WAITLIST_ATTRIBUTE, e);
 			}
+			e.printStackTrace();
+			return null;
 		}
 
 		return manager.getRelay(wsessionid);
@@ -351,8 +833,16 @@ public class WamiServlet extends HttpServlet {
 
 		relay = newRelay(session.getServletContext());
 		wsessionid = setRelay(request, relay, wsessionid);
+		boolean waited = RelayManager.getManager(session)
+				.wasAdmittedFromWaitlist(wsessionid);
 
 		relay.initialize(request, wsessionid);
+
+		if (waited) {
+			// the client will need to send its configuration again
+			relay.sendMessage(relay.newMessage("reply").attribute("type",
+					"admitted").toXMLString());
+		}
 		return relay;
 	}
 
@@ -0,0 +1,468 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.websocket.CloseReason;
+import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerEndpoint;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import edu.mit.csail.sls.wami.audio.AudioChunkStream;
+import edu.mit.csail.sls.wami.audio.RecordServlet;
+import edu.mit.csail.sls.wami.recognition.RecognitionScheduler;
+import edu.mit.csail.sls.wami.relay.IPollListener;
+import edu.mit.csail.sls.wami.relay.RelayManager;
+import edu.mit.csail.sls.wami.relay.WamiRelay;
+import edu.mit.csail.sls.wami.util.ServletUtils;
+
+/**
+ * <p>
+ * A WebSocket (JSR-356) connection to an existing {@link WamiRelay}, carrying
+ * what otherwise takes three HTTP paths: polls and posts on
+ * {@link WamiServlet}, recordings on {@link RecordServlet} and audio polls on
+ * the PlayServlet.
+ * </p>
+ * <p>
+ * The relay is chosen the same way as for the servlets, by the
+ * <code>wsessionid</code> parameter (or the HTTP session id), and must
+ * already have been created by a request to the control servlet. The
+ * handshake is refused (with CANNOT_ACCEPT) if it has not, or if the audio
+ * parameters below are invalid. Then:
+ * </p>
+ * <ul>
+ * <li>Text frames from the client are client updates, as would be posted to
+ * the control servlet. Every message the relay sends is written back as a
+ * text frame.</li>
+ * <li>Binary frames from the client are audio for recognition, in the format
+ * given by the <code>recordAudioFormat</code>, <code>recordSampleRate</code>
+ * and <code>recordIsLittleEndian</code> parameters (default 8kHz 16 bit
+ * little endian). An empty binary message ends the utterance. If too many
+ * recognitions are in progress, the utterance is ignored and the client is
+ * sent an error reply.</li>
+ * <li>If the <code>playAudio=true</code> parameter is given, each piece of
+ * audio the relay plays is sent to the client as one binary message, instead
+ * of waiting for an audio poll.</li>
+ * </ul>
+ * <p>
+ * Messages are sent asynchronously and in order by a {@link SocketSender}, so
+ * a thread which sends the relay a message does not wait for a slow client.
+ * Audio is waited for on a thread from a pool shared by the servlet context's
+ * sockets (stored as "socketAudioSenders" and stopped by
+ * {@link WamiServlet#destroy()}), until the socket or the relay closes.
+ * </p>
+ * <p>
+ * This class references the WebSocket API, and is only loaded by containers
+ * which support it.
+ * </p>
+ */
+@ServerEndpoint(value = "/socket", configurator = WamiSocketEndpoint.SessionConfigurator.class)
+public class WamiSocketEndpoint implements IPollListener {
+	private Session socket;
+
+	private HttpSession httpSession;
+
+	private WamiRelay relay;
+
+	private AudioFormat recordFormat;
+
+	private SocketSender sender;
+
+	/**
+	 * audio for the utterance currently being received, or null if there is
+	 * none
+	 */
+	private AudioChunkStream utterance;
+
+	/**
+	 * whether the utterance currently being received was turned away, and is
+	 * ignored until it ends
+	 */
+	private boolean droppingUtterance = false;
+
+	/**
+	 * bytes seen so far of the binary message currently being received
+	 */
+	private long messageBytes = 0;
+
+	private volatile boolean open = false;
+
+	/**
+	 * Makes the HTTP session of the handshake available to the endpoint, so
+	 * that it can find the session's relay
+	 */
+	public static class SessionConfigurator extends
+			ServerEndpointConfig.Configurator {
+		@Override
+		public void modifyHandshake(ServerEndpointConfig config,
+				HandshakeRequest request, HandshakeResponse response) {
+			HttpSession session = (HttpSession) request.getHttpSession();
+			if (session != null) {
+				config.getUserProperties().put(HttpSession.class.getName(),
+						session);
+			}
+		}
+	}
+
+	@OnOpen
+	public void onOpen(Session socket, EndpointConfig config)
+			throws IOException {
+		this.socket = socket;
+		httpSession = (HttpSession) config.getUserProperties().get(
+				HttpSession.class.getName());
+
+		String wsessionid = getParameter("wsessionid");
+		if ((wsessionid == null || "".equals(wsessionid))
+				&& httpSession != null) {
+			wsessionid = httpSession.getId();
+		}
+
+		// Cross-site clients pass only the wsessionid, without the session
+		// cookie, so the handshake may have no HTTP session
+		RelayManager manager = httpSession != null ? RelayManager
+				.getManager(httpSession) : RelayManager.getManager();
+		if (manager != null && wsessionid != null && !"".equals(wsessionid)) {
+			relay = manager.getRelay(wsessionid);
+		}
+
+		if (relay == null || !relay.isInitialized()) {
+			relay = null;
+			cannotAccept("The relay to the recognizer was not found");
+			return;
+		}
+
+		if (httpSession == null) {
+			httpSession = relay.getHttpSession();
+		}
+
+		String audioFormatStr = getParameter("recordAudioFormat");
+		String sampleRateStr = getParameter("recordSampleRate");
+		String isLittleEndianStr = getParameter("recordIsLittleEndian");
+		try {
+			recordFormat = RecordServlet.createAudioFormat(
+					audioFormatStr != null ? audioFormatStr : "LIN16",
+					sampleRateStr != null ? Integer.parseInt(sampleRateStr)
+							: 8000, isLittleEndianStr == null
+							|| Boolean.parseBoolean(isLittleEndianStr));
+		} catch (NumberFormatException e) {
+			cannotAccept("Bad recordSampleRate");
+			return;
+		} catch (UnsupportedOperationException e) {
+			cannotAccept("Unsupported recordAudioFormat");
+			return;
+		}
+
+		sender = new SocketSender(socket.getAsyncRemote(), new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+		open = true;
+		System.out.println("WebSocket opened for relay: " + wsessionid);
+
+		relay.waitForMessage(this);
+
+		if (Boolean.parseBoolean(getParameter("playAudio"))) {
+			try {
+				getAudioSenders(httpSession.getServletContext()).execute(
+						new AudioSender());
+			} catch (RejectedExecutionException e) {
+				// the application is being stopped
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A client update, as would be posted to the control servlet, in either
+	 * wire format
+	 */
+	@OnMessage
+	public void onText(String xml) {
+		Element root;
+		try {
+			root = WamiServlet.parseClientUpdate(new StringReader(xml));
+		} catch (SAXException e) {
+			e.printStackTrace();
+			return;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		if (root == null) {
+			return;
+		}
+
+		if (Boolean.parseBoolean(root.getAttribute("stoppolling"))) {
+			relay.stopPolling();
+		} else {
+			System.out.println("Update: " + xml);
+			relay.handleClientUpdate(httpSession, root);
+		}
+	}
+
+	/**
+	 * Recorded audio. The first bytes after an utterance ends start a new one,
+	 * which is recognized by a {@link RecognitionScheduler} worker as the rest
+	 * arrives. While the worker is behind, this waits for it, and so stops
+	 * the socket being read.
+	 */
+	@OnMessage
+	public void onAudio(byte[] data, boolean last) {
+		messageBytes += data.length;
+
+		if (data.length > 0 && !droppingUtterance) {
+			if (utterance == null) {
+				startUtterance();
+			}
+			if (utterance != null) {
+				try {
+					utterance.write(data, 0, data.length);
+				} catch (InterruptedIOException e) {
+					// the rest of the utterance is ignored until it ends
+					utterance.fail(e);
+					utterance = null;
+					droppingUtterance = true;
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		if (last) {
+			if (messageBytes == 0) {
+				if (utterance != null) {
+					utterance.end();
+					utterance = null;
+				}
+				droppingUtterance = false;
+			}
+			messageBytes = 0;
+		}
+	}
+
+	@OnClose
+	public void onClose(Session socket, CloseReason reason) {
+		System.out.println("WebSocket closed: " + reason);
+		close();
+	}
+
+	@OnError
+	public void onError(Session socket, Throwable t) {
+		t.printStackTrace();
+		close();
+	}
+
+	/**
+	 * Queue a message from the relay for the client, then wait for the next
+	 * one. This runs on the thread which sent the message, so it does not
+	 * wait for the client to read it.
+	 */
+	public void onMessage(String message) {
+		if (message == null) {
+			// another poll (e.g. an HTTP one) took over from this socket
+			return;
+		}
+
+		List<String> messages = new ArrayList<String>();
+		messages.add(message);
+		relay.drainMessages(messages);
+
+		for (String m : messages) {
+			sender.sendText(m);
+		}
+
+		if (open && !relay.isClosed()) {
+			relay.waitForMessage(this);
+			if (!open) {
+				// closed while we were registering
+				relay.cancelPoll(this);
+			}
+		}
+	}
+
+	private void startUtterance() {
+		final AudioChunkStream utterance = new AudioChunkStream();
+		this.utterance = utterance;
+		final WamiConfig wc = WamiConfig.getConfiguration(httpSession
+				.getServletContext());
+		final AudioInputStream audioIn = RecordServlet
+				.convertToRecognizerFormat(new AudioInputStream(utterance,
+						recordFormat, AudioSystem.NOT_SPECIFIED), wc
+						.getResampler());
+
+		try {
+			RecognitionScheduler.getScheduler(httpSession.getServletContext())
+					.submit(new Callable<Void>() {
+						public Void call() {
+							try {
+								RecordServlet.recognize(wc, relay, audioIn);
+							} catch (Exception e) {
+								e.printStackTrace();
+							} finally {
+								utterance.close();
+							}
+							return null;
+						}
+					});
+		} catch (RejectedExecutionException e) {
+			// the rest of the utterance is ignored until it ends
+			System.err.println("Dropping utterance, too many recognitions "
+					+ "in progress");
+			this.utterance = null;
+			droppingUtterance = true;
+			relay.sendMessage(relay.newMessage("reply").attribute("type",
+					"error").attribute("error_type", "recognition_unavailable")
+					.attribute("message",
+							"Too many recognitions in progress").toXMLString());
+		}
+	}
+
+	private void close() {
+		if (!open) {
+			return;
+		}
+
+		open = false;
+		relay.cancelPoll(this);
+		sender.close();
+
+		if (utterance != null) {
+			utterance.end();
+			utterance = null;
+		}
+	}
+
+	private void cannotAccept(String reason) throws IOException {
+		socket.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT,
+				reason));
+	}
+
+	private String getParameter(String name) {
+		Map<String, List<String>> params = socket.getRequestParameterMap();
+		List<String> values = params.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * The pool of threads which wait for the sockets' audio, creating it if
+	 * need be
+	 */
+	private static ExecutorService getAudioSenders(ServletContext sc) {
+		synchronized (sc) {
+			ExecutorService senders = (ExecutorService) sc
+					.getAttribute("socketAudioSenders");
+
+			if (senders == null) {
+				senders = Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "WebSocket audio sender "
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				sc.setAttribute("socketAudioSenders", senders);
+			}
+
+			return senders;
+		}
+	}
+
+	/**
+	 * Waits for audio the relay plays, and sends each as a binary message
+	 * once the one before it has gone. Stops when the socket or the relay
+	 * closes.
+	 */
+	private class AudioSender implements Runnable {
+		public void run() {
+			WamiConfig wc = WamiConfig.getConfiguration(httpSession
+					.getServletContext());
+			int playPollTimeout = wc.getPlayPollTimeout(null);
+
+			while (open && !relay.isClosed()) {
+				try {
+					InputStream in = relay.waitForAudio(playPollTimeout);
+					if (in == null || !open) {
+						continue;
+					}
+
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					try {
+						ServletUtils.sendStream(in, out);
+					} finally {
+						in.close();
+					}
+
+					ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+					if (!sender.sendBinary(data)) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					// the pool is being stopped
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+					close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.app;
+
+import edu.mit.csail.sls.wami.util.XmlMessageWriter;
+
+/**
+ * An {@link IApplicationController} which can also send messages that are
+ * already serialized in the client's wire format (e.g. by
+ * {@link XmlMessageWriter}), so that they need not be built as a DOM first.
+ * It is a separate interface so that existing implementations of
+ * {@link IApplicationController} are not broken.
+ */
+public interface IMessageController extends IApplicationController {
+
+	/**
+	 * The format the client wants messages in
+	 */
+	public XmlMessageWriter.WireFormat getWireFormat();
+
+	/**
+	 * Same as {@link #sendMessage(org.w3c.dom.Document)}, for a message which
+	 * is already serialized in the client's wire format
+	 * 
+	 * @param message
+	 *            The message to send
+	 */
+	public void sendMessage(String message);
+
+}
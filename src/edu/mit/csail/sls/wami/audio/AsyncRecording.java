@@ -0,0 +1,220 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import edu.mit.csail.sls.wami.WamiConfig;
+import edu.mit.csail.sls.wami.recognition.RecognitionScheduler;
+import edu.mit.csail.sls.wami.relay.WamiRelay;
+
+/**
+ * <p>
+ * A single post to the {@link RecordServlet}, read with Servlet 3.1
+ * non-blocking I/O. The container calls {@link #onDataAvailable()} whenever
+ * bytes have arrived; they are read without blocking and added to an
+ * {@link AudioChunkStream}, which a {@link RecognitionScheduler} worker
+ * consumes. No container thread waits on a slow upload.
+ * </p>
+ * <p>
+ * While the chunk stream is full, nothing more is read from the request, so
+ * the upload waits for the recognizer rather than piling up in memory.
+ * Reading resumes on the recognizer's thread once it has made room.
+ * </p>
+ * <p>
+ * The request completes once the recognizer has read the whole utterance
+ * and returned, as a blocking post would; a recognition error is reported as
+ * a 500. An upload which takes longer than the <code>recordTimeout</code>
+ * setting, or which the container reports an error on, fails the utterance,
+ * so that the recognition thread waiting for the rest of it is let go.
+ * </p>
+ * <p>
+ * This class references Servlet 3.1 API, and so must only be loaded once
+ * {@link RecordServlet} has established that the container supports it.
+ * </p>
+ */
+class AsyncRecording implements ReadListener, AsyncListener {
+	private static final int CHUNK_SIZE = 4096;
+
+	private final AsyncContext context;
+
+	private final ServletInputStream in;
+
+	private final AudioChunkStream utterance = new AudioChunkStream();
+
+	private final byte[] buffer = new byte[CHUNK_SIZE];
+
+	private final Runnable resume = new Runnable() {
+		public void run() {
+			try {
+				onDataAvailable();
+			} catch (IOException e) {
+				onError(e);
+			}
+		}
+	};
+
+	private AsyncRecording(AsyncContext context, ServletInputStream in) {
+		this.context = context;
+		this.in = in;
+	}
+
+	static void start(HttpServletRequest request, final WamiRelay relay,
+			AudioFormat audioFormat, String resampler) throws IOException {
+		final WamiConfig wc = WamiConfig.getConfiguration(request
+				.getServletContext());
+		AsyncContext context = request.startAsync();
+		context.setTimeout(wc.getRecordTimeout());
+
+		final AsyncRecording recording = new AsyncRecording(context, request
+				.getInputStream());
+		context.addListener(recording);
+		final AudioInputStream audioIn = RecordServlet
+				.convertToRecognizerFormat(new AudioInputStream(
+						recording.utterance, audioFormat,
+						AudioSystem.NOT_SPECIFIED), resampler);
+
+		try {
+			RecognitionScheduler.getScheduler(request.getServletContext())
+					.submit(new Callable<Void>() {
+						public Void call() {
+							recording.recognize(wc, relay, audioIn);
+							return null;
+						}
+					});
+		} catch (RejectedExecutionException e) {
+			recording.utterance.close();
+			((HttpServletResponse) context.getResponse()).sendError(
+					HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Too many recognitions in progress");
+			context.complete();
+			return;
+		}
+
+		recording.in.setReadListener(recording);
+	}
+
+	private void recognize(WamiConfig wc, WamiRelay relay,
+			AudioInputStream audioIn) {
+		try {
+			if (!RecordServlet.recognize(wc, relay, audioIn)) {
+				((HttpServletResponse) context.getResponse())
+						.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			try {
+				((HttpServletResponse) context.getResponse())
+						.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			} catch (IOException ignored) {
+				// the client has gone away
+			} catch (IllegalStateException ignored) {
+				// already completed
+			}
+		} finally {
+			// anything the client still sends is dropped
+			utterance.close();
+			try {
+				context.complete();
+			} catch (IllegalStateException e) {
+				// completed by the container (e.g. after an I/O error)
+			}
+		}
+	}
+
+	public synchronized void onDataAvailable() throws IOException {
+		while (!in.isFinished()) {
+			int room = utterance.remaining();
+			if (room == 0) {
+				if (utterance.whenDrained(resume)) {
+					// stop reading until the recognizer catches up
+					return;
+				}
+				continue;
+			}
+
+			if (!in.isReady()) {
+				// the container calls us again when there is more
+				return;
+			}
+
+			int n = in.read(buffer, 0, Math.min(buffer.length, room));
+			if (n < 0) {
+				return;
+			}
+			utterance.offer(buffer, 0, n);
+		}
+	}
+
+	public void onAllDataRead() {
+		utterance.end();
+	}
+
+	public void onError(Throwable t) {
+		System.err.println("Error reading recorded audio: " + t);
+		IOException e = t instanceof IOException ? (IOException) t
+				: new IOException(t);
+		utterance.fail(e);
+	}
+
+	public void onTimeout(AsyncEvent event) throws IOException {
+		System.err.println("Recorded audio upload timed out");
+		utterance.fail(new IOException("Recorded audio upload timed out"));
+		try {
+			((HttpServletResponse) context.getResponse()).sendError(
+					HttpServletResponse.SC_REQUEST_TIMEOUT,
+					"Recorded audio upload timed out");
+			context.complete();
+		} catch (IllegalStateException e) {
+			// the recognition has completed the request already
+		}
+	}
+
+	public void onError(AsyncEvent event) {
+		onError(event.getThrowable());
+	}
+
+	public void onComplete(AsyncEvent event) {
+	}
+
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
@@ -0,0 +1,247 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>
+ * The audio of one utterance, read by the recognizer as it arrives in chunks
+ * (WebSocket frames, or reads of a request). The audio passes through a ring
+ * of fixed capacity, so an utterance never holds more than that in memory
+ * however far the upload gets ahead of the recognizer.
+ * </p>
+ * <p>
+ * The receiving side either waits for room with
+ * {@link #write(byte[], int, int)}, or, if it must not block, adds only as
+ * much as {@link #remaining()} allows and asks to be told once the recognizer
+ * has made room with {@link #whenDrained(Runnable)}. Reads block until audio
+ * is available.
+ * </p>
+ * <p>
+ * The recognizer closes the stream when it stops reading, e.g. because it
+ * failed or found the end of the speech. Audio added after that is dropped,
+ * and a writer waiting for room returns at once.
+ * </p>
+ */
+public class AudioChunkStream extends InputStream {
+	/**
+	 * The default capacity in bytes: four seconds of 16 kHz, 16-bit audio
+	 */
+	public static final int DEFAULT_CAPACITY = 128 * 1024;
+
+	private final byte[] ring;
+
+	// The next byte to read, and the number of bytes held from there on
+	private int head = 0;
+
+	private int count = 0;
+
+	private boolean ended = false;
+
+	private boolean closed = false;
+
+	private IOException failure = null;
+
+	private Runnable drainListener = null;
+
+	public AudioChunkStream() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public AudioChunkStream(int capacity) {
+		ring = new byte[capacity];
+	}
+
+	/**
+	 * Adds audio, waiting while the ring is full. Once the recognizer has
+	 * closed the stream, the audio is dropped.
+	 */
+	public synchronized void write(byte[] b, int off, int len)
+			throws InterruptedIOException {
+		while (len > 0 && !closed && !ended) {
+			int n = put(b, off, len);
+			if (n == 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Adds as much of the audio as there is room for, without waiting
+	 * 
+	 * @return the number of bytes taken, which is all of them if the
+	 *         recognizer has closed the stream (they are dropped)
+	 */
+	public synchronized int offer(byte[] b, int off, int len) {
+		if (closed || ended) {
+			return len;
+		}
+		return put(b, off, len);
+	}
+
+	/**
+	 * The number of bytes that can be added without waiting; unlimited once
+	 * the recognizer has closed the stream
+	 */
+	public synchronized int remaining() {
+		return closed || ended ? Integer.MAX_VALUE : ring.length - count;
+	}
+
+	/**
+	 * If the ring is full, have the listener called (once, on the reading
+	 * thread) when the recognizer has made room or closed the stream.
+	 * 
+	 * @return false if there is room already, in which case the listener is
+	 *         not called
+	 */
+	public synchronized boolean whenDrained(Runnable listener) {
+		if (remaining() > 0) {
+			return false;
+		}
+		drainListener = listener;
+		return true;
+	}
+
+	/**
+	 * Ends the utterance: reads return -1 once the audio added so far has been
+	 * read
+	 */
+	public synchronized void end() {
+		ended = true;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the utterance because receiving it failed: once the audio added so
+	 * far has been read, the next read throws the given exception
+	 */
+	public synchronized void fail(IOException e) {
+		failure = e;
+		ended = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the recognizer when it stops reading: the audio held is
+	 * discarded, and any added later is dropped
+	 */
+	@Override
+	public void close() {
+		Runnable listener;
+		synchronized (this) {
+			closed = true;
+			count = 0;
+			listener = drainListener;
+			drainListener = null;
+			notifyAll();
+		}
+
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		Runnable listener;
+		int n;
+		synchronized (this) {
+			while (count == 0 && !ended && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+
+			if (count == 0) {
+				if (failure != null && !closed) {
+					throw failure;
+				}
+				return -1;
+			}
+
+			n = Math.min(len, count);
+			int first = Math.min(n, ring.length - head);
+			System.arraycopy(ring, head, b, off, first);
+			System.arraycopy(ring, 0, b, off + first, n - first);
+			head = (head + n) % ring.length;
+			count -= n;
+
+			listener = drainListener;
+			drainListener = null;
+			notifyAll();
+		}
+
+		if (listener != null) {
+			listener.run();
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized int available() {
+		return count;
+	}
+
+	/**
+	 * Copies as much of the audio into the ring as fits
+	 */
+	private int put(byte[] b, int off, int len) {
+		int n = Math.min(len, ring.length - count);
+		int tail = (head + count) % ring.length;
+		int first = Math.min(n, ring.length - tail);
+		System.arraycopy(b, off, ring, tail, first);
+		System.arraycopy(b, off + first, ring, 0, n - first);
+		count += n;
+		if (n > 0) {
+			notifyAll();
+		}
+		return n;
+	}
+}
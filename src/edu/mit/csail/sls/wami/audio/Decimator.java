@@ -0,0 +1,219 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.mit.csail.sls.wami.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.csail.sls.wami.applet.sound.FilterBank;
+import edu.mit.csail.sls.wami.applet.sound.InterpolationFilter;
+
+/**
+ * One stage of integer-ratio decimation, used by
+ * {@link PolyphaseResampleInputStream} when the target rate divides the
+ * source rate (16, 32 and 48 kHz uploads for an 8 kHz recognizer).
+ * 
+ * The filters have an odd number of taps, so they are symmetric about a
+ * center tap and each pair of taps costs one multiply. Designed with a cutoff
+ * of 1/factor, every factor-th tap away from the center is zero and is
+ * skipped; for a factor of 2 this is a halfband filter, with half of its taps
+ * zero. Outputs are only computed for the samples that are kept.
+ * 
+ * Like the general path, a stage only starts to output once its delay line
+ * is full, so the cascade does not emit the filters' leading transient
+ * either. Its output can still be a few samples shorter or longer than the
+ * general path's, since its filters are not the same length.
+ */
+class Decimator {
+
+	// Taps for the last stage, about what the general path uses per unit of
+	// decimation, made odd and, for a factor of 2, a halfband length (4k+3)
+	private static final int FINAL_TAPS_PER_FACTOR = FilterBank.FILTER_SCALE;
+
+	// Taps for a halfband stage ahead of the last one: it only needs to keep
+	// the band the last stage passes, so its transition can be much wider
+	private static final int EARLY_HALFBAND_TAPS = 19;
+
+	private final int factor;
+	private final int length;
+	private final int center;
+	private final float centerCoef;
+	private final int runs;
+	private final int[] runStart; // first tap of each run of non-zero taps
+	private final float[][] runCoef;
+
+	private final float[] z; // delay line, twice over
+	private int pZ = 0; // oldest sample in the delay line
+	private int pending; // samples to take before the next output
+
+	Decimator(int factor, int taps) {
+		FilterBank bank = FilterBank.get(1, factor, taps,
+				InterpolationFilter.HAMMING);
+		float[] h = bank.getFilter();
+
+		this.factor = factor;
+		this.length = taps;
+		this.center = (taps - 1) / 2;
+		this.centerCoef = h[center];
+
+		// The non-zero taps before the center fall into factor - 1 runs, each
+		// spaced factor apart
+		runStart = new int[factor - 1];
+		runCoef = new float[factor - 1][];
+		int r = 0;
+		for (int k = 0; k < factor && k < center; k++) {
+			if ((center - k) % factor == 0) {
+				continue;
+			}
+			int count = (center - 1 - k) / factor + 1;
+			runStart[r] = k;
+			runCoef[r] = new float[count];
+			for (int j = 0; j < count; j++) {
+				runCoef[r][j] = h[k + j * factor];
+			}
+			r++;
+		}
+		runs = r;
+
+		z = new float[2 * length];
+
+		// fill the delay line before the first output
+		pending = length;
+	}
+
+	/**
+	 * The stages that decimate by M, or null if M isn't a product of 2s and
+	 * 3s (the general path handles those). Factors of 2 come first, where
+	 * halfband stages are cheapest, and only the last stage needs a sharp
+	 * filter.
+	 */
+	static Decimator[] cascade(int M) {
+		List<Integer> factors = new ArrayList<Integer>();
+		int rest = M;
+		while (rest % 2 == 0) {
+			factors.add(2);
+			rest /= 2;
+		}
+		while (rest % 3 == 0) {
+			factors.add(3);
+			rest /= 3;
+		}
+		if (rest != 1 || factors.isEmpty()) {
+			return null;
+		}
+
+		Decimator[] stages = new Decimator[factors.size()];
+		for (int i = 0; i < stages.length; i++) {
+			int factor = factors.get(i);
+			boolean last = i == stages.length - 1;
+			if (factor == 2 && !last) {
+				stages[i] = new Decimator(2, EARLY_HALFBAND_TAPS);
+			} else {
+				stages[i] = new Decimator(factor, finalTaps(factor));
+			}
+		}
+		return stages;
+	}
+
+	private static int finalTaps(int factor) {
+		int taps = FINAL_TAPS_PER_FACTOR * factor;
+		if (factor == 2) {
+			// round up to 4k+3, so the center tap has zeros either side
+			taps += (4 - (taps - 3) % 4) % 4;
+		} else if (taps % 2 == 0) {
+			taps++;
+		}
+		return taps;
+	}
+
+	/**
+	 * Filters and decimates the first n samples of buf, writing the output
+	 * back to the start of buf (each output lands at or before the input it
+	 * was computed from). Returns the number of output samples.
+	 */
+	int process(float[] buf, int n) {
+		float[] z = this.z;
+		int length = this.length;
+		int pZ = this.pZ;
+		int pending = this.pending;
+		int nOut = 0;
+		int i = 0;
+
+		while (i < n) {
+			// Shift in the samples up to the next output.
+			//
+			int take = Math.min(pending, n - i);
+			pending -= take;
+			for (int end = i + take; i < end; i++) {
+				z[pZ] = z[pZ + length] = buf[i];
+				if (++pZ == length)
+					pZ = 0;
+			}
+
+			if (pending == 0) {
+				buf[nOut++] = output(pZ);
+				pending = factor;
+			}
+		}
+
+		this.pZ = pZ;
+		this.pending = pending;
+		return nOut;
+	}
+
+	/**
+	 * The filter output for the window of the delay line starting at w.
+	 */
+	private float output(int w) {
+		float[] z = this.z;
+		int last = w + length - 1;
+		int step = factor;
+
+		float sum = centerCoef * z[w + center];
+		for (int r = 0; r < runs; r++) {
+			float[] c = runCoef[r];
+			int a = w + runStart[r];
+			int b = last - runStart[r];
+			for (int j = 0; j < c.length; j++) {
+				sum += c[j] * (z[a] + z[b]);
+				a += step;
+				b -= step;
+			}
+		}
+		return sum;
+	}
+
+	int getFactor() {
+		return factor;
+	}
+
+	int getTaps() {
+		return length;
+	}
+}
@@ -0,0 +1,151 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import edu.mit.csail.sls.wami.applet.sound.ImaAdpcmEncoder;
+
+/**
+ * Decodes the headerless IMA-ADPCM stream written by the applet's
+ * {@link ImaAdpcmEncoder} into little-endian 16-bit mono PCM.
+ * 
+ * Decoding is incremental: each read takes whatever one read of the
+ * underlying stream returns and decodes it, so the resampler and recognizer
+ * see audio as soon as it arrives rather than after the upload completes.
+ */
+public class ImaAdpcmDecoderInputStream extends InputStream {
+	private static final int[] STEP_SIZES = ImaAdpcmEncoder.STEP_SIZES;
+	private static final int[] INDEX_ADJUST = ImaAdpcmEncoder.INDEX_ADJUST;
+
+	private final InputStream in;
+
+	private final byte[] encoded = new byte[1024];
+	private final byte[] decoded = new byte[4 * encoded.length];
+	private int pDecoded = 0;
+	private int nDecoded = 0;
+
+	private int predictor = 0;
+	private int index = 0;
+
+	public ImaAdpcmDecoderInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n <= 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pDecoded == nDecoded && !refill()) {
+			return -1;
+		}
+		int n = Math.min(len, nDecoded - pDecoded);
+		System.arraycopy(decoded, pDecoded, b, off, n);
+		pDecoded += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return nDecoded - pDecoded + 4 * in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Decodes the next bytes of the underlying stream, returning false at
+	 * its end
+	 */
+	private boolean refill() throws IOException {
+		int n;
+		do {
+			n = in.read(encoded, 0, encoded.length);
+		} while (n == 0);
+		if (n < 0) {
+			return false;
+		}
+
+		int o = 0;
+		for (int i = 0; i < n; i++) {
+			int b = encoded[i];
+			o = put(decodeSample(b & 0x0f), o);
+			o = put(decodeSample((b >> 4) & 0x0f), o);
+		}
+		pDecoded = 0;
+		nDecoded = o;
+		return true;
+	}
+
+	private int put(int sample, int o) {
+		decoded[o] = (byte) sample;
+		decoded[o + 1] = (byte) (sample >> 8);
+		return o + 2;
+	}
+
+	private int decodeSample(int code) {
+		int step = STEP_SIZES[index];
+		int delta = step >> 3;
+		if ((code & 4) != 0) {
+			delta += step;
+		}
+		if ((code & 2) != 0) {
+			delta += step >> 1;
+		}
+		if ((code & 1) != 0) {
+			delta += step >> 2;
+		}
+
+		predictor += (code & 8) != 0 ? -delta : delta;
+		if (predictor > Short.MAX_VALUE) {
+			predictor = Short.MAX_VALUE;
+		} else if (predictor < Short.MIN_VALUE) {
+			predictor = Short.MIN_VALUE;
+		}
+
+		index += INDEX_ADJUST[code & 7];
+		if (index < 0) {
+			index = 0;
+		} else if (index >= STEP_SIZES.length) {
+			index = STEP_SIZES.length - 1;
+		}
+
+		return predictor;
+	}
+}
@@ -187,7 +187,12 @@ public class PlayServlet extends HttpServlet {
 				// AudioUtils.createInputStreamWithWaveHeader(audio);
 				OutputStream out = response.getOutputStream();
 
-				ServletUtils.sendStream(in, out);
+				try {
+					ServletUtils.sendStream(in, out);
+				} finally {
+					// e.g. a recording's reader, if the client went away
+					in.close();
+				}
 			} else {
 				// System.out
 				// .println("Wait for audio timeout, not sending back audio");
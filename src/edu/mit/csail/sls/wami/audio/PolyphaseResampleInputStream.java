@@ -0,0 +1,351 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import edu.mit.csail.sls.wami.applet.sound.FilterBank;
+
+/**
+ * A block-oriented version of {@link WamiResampleInputStream}, using the same
+ * interpolation filter and rate approximation. Instead of converting one
+ * sample at a time through byte FIFOs, each read converts a whole block of
+ * source bytes to floats, runs it through a polyphase filter and converts the
+ * output back to bytes in bulk.
+ * 
+ * The filter is split into L per-phase coefficient tables (already scaled by
+ * the interpolation gain, and shared through {@link FilterBank}), so an
+ * output sample is a single dot product of one table with the delay line.
+ * The delay line is stored twice over, end to end, so that its current window
+ * is always contiguous.
+ * 
+ * When the target rate divides the source rate, as for 16, 32 or 48 kHz
+ * audio going to an 8 kHz recognizer, the conversion is instead a cascade of
+ * symmetric decimation stages (see {@link Decimator}), which needs several
+ * times fewer multiplies.
+ * 
+ * The source may be 16 bit signed PCM of either byte order, 8 bit signed PCM,
+ * or 8 bit mu-law; only the first channel is used. The target is 16 bit
+ * signed PCM in the target format's byte order.
+ */
+public class PolyphaseResampleInputStream extends InputStream {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private static final short[] ULAW_TABLE = new short[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int u = ~i & 0xff;
+			int t = ((u & 0x0f) << 3) + 0x84;
+			t <<= (u & 0x70) >> 4;
+			ULAW_TABLE[i] = (short) ((u & 0x80) != 0 ? 0x84 - t : t - 0x84);
+		}
+	}
+
+	private AudioInputStream sourceStream;
+
+	private final int L; // interpolation factor
+	private final int M; // decimation factor
+	private float[][] phases; // phases[p][k] multiplies the k-th oldest sample
+	private float[] z; // delay line, twice over
+	private int pZ = 0; // oldest sample in the delay line
+	private int phase;
+	private Decimator[] decimators; // for integer ratios, or null
+
+	private final int sourceFrameSize;
+	private final int sourceSampleSize;
+	private final boolean sourceBigEndian;
+	private final boolean sourceULaw;
+	private final boolean targetBigEndian;
+
+	private byte[] sourceBytes;
+	private int sourceCarry = 0; // bytes of an incomplete frame
+	private float[] sourceSamples;
+
+	private short[] targetSamples;
+	private byte[] targetBytes;
+	private int targetPos = 0;
+	private int targetEnd = 0;
+
+	private boolean eof = false;
+
+	public PolyphaseResampleInputStream(AudioFormat targetFormat,
+			AudioInputStream sourceStream) {
+		this(targetFormat, sourceStream, true);
+	}
+
+	/**
+	 * @param cascade
+	 *            false to use the general polyphase filter even for integer
+	 *            ratios (to compare the two)
+	 */
+	PolyphaseResampleInputStream(AudioFormat targetFormat,
+			AudioInputStream sourceStream, boolean cascade) {
+		AudioFormat sourceFormat = sourceStream.getFormat();
+		this.sourceStream = sourceStream;
+
+		// Shared with every other resampler for these rates
+		FilterBank bank = FilterBank.forRates(sourceFormat.getSampleRate(),
+				targetFormat.getSampleRate());
+
+		this.L = bank.getL();
+		this.M = bank.getM();
+
+		AudioFormat.Encoding encoding = sourceFormat.getEncoding();
+		sourceULaw = AudioFormat.Encoding.ULAW.equals(encoding);
+		sourceSampleSize = sourceULaw ? 1
+				: sourceFormat.getSampleSizeInBits() / 8;
+		if (!sourceULaw
+				&& (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || (sourceSampleSize != 1 && sourceSampleSize != 2))) {
+			throw new IllegalArgumentException("Cannot resample from "
+					+ sourceFormat);
+		}
+		sourceFrameSize = Math.max(sourceFormat.getFrameSize(),
+				sourceSampleSize);
+		sourceBigEndian = sourceFormat.isBigEndian();
+		targetBigEndian = targetFormat.isBigEndian();
+
+		initialize(bank, cascade);
+	}
+
+	private void initialize(FilterBank bank, boolean cascade) {
+		int perPhase = bank.getPerPhase();
+		phases = new float[L][];
+		for (int p = 0; p < L; p++) {
+			phases[p] = bank.getPhase(p);
+		}
+		z = new float[2 * perPhase];
+
+		if (cascade && L == 1 && M > 1) {
+			decimators = Decimator.cascade(M);
+		}
+
+		StringBuilder stages = new StringBuilder();
+		if (decimators != null) {
+			for (Decimator d : decimators) {
+				stages.append(" /" + d.getFactor() + "(" + d.getTaps() + ")");
+			}
+		}
+		System.err.println("PolyphaseResampleInputStream:" + " L=" + L
+				+ " M=" + M + " perPhase=" + perPhase + stages);
+
+		// Cause the delay buffer z to be fully loaded before first output.
+		//
+		phase = perPhase * L;
+
+		int sourceFrames = BLOCK_SIZE / sourceFrameSize;
+		sourceBytes = new byte[sourceFrames * sourceFrameSize];
+		sourceSamples = new float[sourceFrames];
+
+		int targetFrames = (int) ((long) sourceFrames * L / M) + 2;
+		targetSamples = new short[targetFrames];
+		targetBytes = new byte[2 * targetFrames];
+	}
+
+	@Override
+	public int available() throws IOException {
+		return targetEnd - targetPos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : b[0] & 0xff;
+	}
+
+	// This reads at least one byte, blocking until something is available
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		while (targetPos == targetEnd) {
+			if (eof || phases == null) {
+				return -1;
+			}
+			convert();
+		}
+
+		int m = Math.min(length, targetEnd - targetPos);
+		System.arraycopy(targetBytes, targetPos, b, offset, m);
+		targetPos += m;
+		return m;
+	}
+
+	@Override
+	public void close() throws IOException {
+		phases = null;
+		z = null;
+		sourceStream.close();
+	}
+
+	/**
+	 * Reads one block of source audio (blocking) and converts it.
+	 */
+	private void convert() throws IOException {
+		int nRead = sourceStream.read(sourceBytes, sourceCarry,
+				sourceBytes.length - sourceCarry);
+		if (nRead < 0) {
+			eof = true;
+			return;
+		}
+
+		int nBytes = sourceCarry + nRead;
+		int nFrames = nBytes / sourceFrameSize;
+		decode(nFrames);
+
+		sourceCarry = nBytes - nFrames * sourceFrameSize;
+		if (sourceCarry > 0) {
+			System.arraycopy(sourceBytes, nFrames * sourceFrameSize,
+					sourceBytes, 0, sourceCarry);
+		}
+
+		int nOut = filter(nFrames);
+		encode(nOut);
+		targetPos = 0;
+		targetEnd = 2 * nOut;
+	}
+
+	private void decode(int nFrames) {
+		byte[] in = sourceBytes;
+		float[] out = sourceSamples;
+		int step = sourceFrameSize;
+
+		if (sourceULaw) {
+			for (int i = 0, j = 0; i < nFrames; i++, j += step) {
+				out[i] = ULAW_TABLE[in[j] & 0xff];
+			}
+		} else if (sourceSampleSize == 1) {
+			for (int i = 0, j = 0; i < nFrames; i++, j += step) {
+				out[i] = in[j] << 8;
+			}
+		} else if (sourceBigEndian) {
+			for (int i = 0, j = 0; i < nFrames; i++, j += step) {
+				out[i] = (short) ((in[j] << 8) | (in[j + 1] & 0xff));
+			}
+		} else {
+			for (int i = 0, j = 0; i < nFrames; i++, j += step) {
+				out[i] = (short) ((in[j + 1] << 8) | (in[j] & 0xff));
+			}
+		}
+	}
+
+	/**
+	 * Runs the decoded source samples through the filter, returning the
+	 * number of target samples produced.
+	 */
+	private int filter(int nIn) {
+		float[] in = sourceSamples;
+		short[] out = targetSamples;
+		int perPhase = phases[0].length;
+		int nOut = 0;
+		int i = 0;
+
+		if (L == 1 && M == 1) {
+			// same rate: only the sample format changes
+			for (; i < nIn; i++) {
+				out[nOut++] = (short) in[i];
+			}
+			return nOut;
+		}
+
+		if (decimators != null) {
+			nOut = nIn;
+			for (Decimator d : decimators) {
+				nOut = d.process(in, nOut);
+			}
+			for (; i < nOut; i++) {
+				out[i] = toShort(in[i]);
+			}
+			return nOut;
+		}
+
+		while (true) {
+			// Shift source samples into delay buffer z.
+			//
+			while (phase >= L) {
+				if (i == nIn) {
+					return nOut;
+				}
+				phase -= L;
+				z[pZ] = z[pZ + perPhase] = in[i++];
+				if (++pZ == perPhase)
+					pZ = 0;
+			}
+
+			// Generate output samples.
+			//
+			while (phase < L) {
+				float[] c = phases[phase];
+				float sum = 0;
+				for (int k = 0, t = pZ; k < perPhase; k++, t++) {
+					sum += c[k] * z[t];
+				}
+				phase += M;
+
+				out[nOut++] = toShort(sum);
+			}
+		}
+	}
+
+	private static short toShort(float value) {
+		int sample = Math.round(value);
+		if (sample > Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		} else if (sample < Short.MIN_VALUE) {
+			return Short.MIN_VALUE;
+		}
+		return (short) sample;
+	}
+
+	private void encode(int nOut) {
+		short[] in = targetSamples;
+		byte[] out = targetBytes;
+
+		if (targetBigEndian) {
+			for (int i = 0, j = 0; i < nOut; i++, j += 2) {
+				out[j] = (byte) (in[i] >> 8);
+				out[j + 1] = (byte) in[i];
+			}
+		} else {
+			for (int i = 0, j = 0; i < nOut; i++, j += 2) {
+				out[j] = (byte) in[i];
+				out[j + 1] = (byte) (in[i] >> 8);
+			}
+		}
+	}
+
+}
@@ -27,10 +27,16 @@
  */
 package edu.mit.csail.sls.wami.audio;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -39,19 +45,47 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 
+import edu.mit.csail.sls.wami.applet.sound.Encodings;
+import edu.mit.csail.sls.wami.applet.sound.FilterBank;
 import edu.mit.csail.sls.wami.util.ContentType;
 import edu.mit.csail.sls.wami.WamiConfig;
 import edu.mit.csail.sls.wami.WamiServlet;
+import edu.mit.csail.sls.wami.recognition.RecognitionScheduler;
+import edu.mit.csail.sls.wami.recognition.exceptions.RecognizerException;
 import edu.mit.csail.sls.wami.relay.WamiRelay;
 
 /**
  * Receives audio bytes from the server and passes them on to the portal
  * associated with this session
  * 
+ * With <code>asyncRecording</code> set in the relay settings, on Servlet 3.1
+ * containers, the audio is read with non-blocking I/O instead (see
+ * {@link AsyncRecording}).
+ * 
  * @author alexgru
  * 
  */
 public class RecordServlet extends HttpServlet {
+	public static final String RESAMPLER_POLYPHASE = "polyphase";
+
+	public static final String RESAMPLER_LEGACY = "legacy";
+
+	private static final int[] COMMON_RECORD_RATES = { 11025, 16000, 22050,
+			32000, 44100, 48000 };
+
+	private static final int UPLOAD_CHUNK_SIZE = 4096;
+
+	private boolean asyncRecording = false;
+
+	@Override
+	public void init() throws ServletException {
+		ServletContext sc = getServletContext();
+		WamiConfig wc = WamiConfig.getConfiguration(sc);
+		asyncRecording = wc.getAsyncRecording()
+				&& (sc.getMajorVersion() > 3 || sc.getMajorVersion() == 3
+						&& sc.getMinorVersion() >= 1);
+	}
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
@@ -89,14 +123,158 @@ public class RecordServlet extends HttpServlet {
 
 		// The audio format of the recording device (and thus the sound coming
 		// in)
-		AudioFormat audioFormat = getAudioFormatFromParams(request,
-				"recordAudioFormat", "recordSampleRate", "recordIsLittleEndian");
+		AudioFormat audioFormat;
+		try {
+			audioFormat = getAudioFormatFromParams(request,
+					"recordAudioFormat", "recordSampleRate",
+					"recordIsLittleEndian");
+		} catch (UnsupportedOperationException e) {
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+					e.getMessage());
+			return;
+		} catch (NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Bad or missing recordSampleRate");
+			return;
+		}
 
 		System.out.println("RecordServlet; audioFormat=" + audioFormat);
 
-		AudioInputStream audioIn = new AudioInputStream(
-				new BufferedInputStream(request.getInputStream()), audioFormat,
-				AudioSystem.NOT_SPECIFIED);
+		WamiConfig wc = WamiConfig.getConfiguration(getServletContext());
+		WamiRelay relay = (WamiRelay) WamiServlet.getRelay(request);
+
+		if (asyncRecording && request.isAsyncSupported()) {
+			AsyncRecording.start(request, relay, audioFormat, wc
+					.getResampler());
+			return;
+		}
+
+		// The recognition runs on a worker, reading the audio as this thread
+		// buffers it (and waiting for the worker whenever the buffer is full)
+		AudioChunkStream utterance = new AudioChunkStream();
+		AudioInputStream audioIn = convertToRecognizerFormat(
+				new AudioInputStream(utterance, audioFormat,
+						AudioSystem.NOT_SPECIFIED), wc.getResampler());
+
+		Future<Boolean> recognition;
+		try {
+			recognition = submitRecognition(getServletContext(), relay,
+					utterance, audioIn);
+		} catch (RejectedExecutionException e) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					"Too many recognitions in progress");
+			return;
+		}
+
+		InputStream in = request.getInputStream();
+		byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+		try {
+			for (int n; (n = in.read(buffer)) != -1;) {
+				utterance.write(buffer, 0, n);
+			}
+			utterance.end();
+		} catch (IOException e) {
+			utterance.fail(e);
+			throw e;
+		}
+
+		try {
+			if (!recognition.get()) {
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			}
+		} catch (ExecutionException e) {
+			// TODO: something smarter? We should really notify the application
+			// that an error occurred
+			throw new ServletException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new ServletException(e);
+		}
+	}
+
+	/**
+	 * Queue the recognition of the given audio on the relay with the
+	 * context's {@link RecognitionScheduler}. The audio is read from the
+	 * utterance, which is filled independently and closed once the
+	 * recognition is done with it. The future's value is that of
+	 * {@link #recognize(WamiConfig, WamiRelay, AudioInputStream)}.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if too many recognitions are waiting already
+	 */
+	public static Future<Boolean> submitRecognition(ServletContext sc,
+			final WamiRelay relay, final AudioChunkStream utterance,
+			final AudioInputStream audioIn) {
+		final WamiConfig wc = WamiConfig.getConfiguration(sc);
+		return RecognitionScheduler.getScheduler(sc).submit(
+				new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						try {
+							return recognize(wc, relay, audioIn);
+						} finally {
+							utterance.close();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Recognize the given audio, in the recognizer's format, on the relay. If
+	 * the configuration asks for it, the silence around the speech is trimmed
+	 * first (see {@link SpeechTrimmingInputStream}), and audio without any
+	 * speech is never sent to the recognizer.
+	 * 
+	 * @return false if there was no speech to recognize
+	 */
+	public static boolean recognize(WamiConfig wc, WamiRelay relay,
+			AudioInputStream audioIn) throws RecognizerException, IOException {
+		AudioFormat audioFormat = audioIn.getFormat();
+		if (!wc.getTrimSilence()
+				|| !SpeechTrimmingInputStream.isSupported(audioFormat)) {
+			relay.recognize(audioIn);
+			return true;
+		}
+
+		SpeechTrimmingInputStream trimmed = new SpeechTrimmingInputStream(
+				audioIn, audioFormat, wc.getEndOfSpeechSilence() / 1000.0);
+		if (!trimmed.waitForSpeech()) {
+			System.out.println("No speech in recorded audio, not recognizing");
+			return false;
+		}
+
+		relay.recognize(new AudioInputStream(trimmed, audioFormat,
+				AudioSystem.NOT_SPECIFIED));
+
+		// the client may still be sending audio after a long pause
+		trimmed.drain();
+		return true;
+	}
+
+	/**
+	 * Resample the incoming audio if it is not already in the format the
+	 * recognizer requires
+	 */
+	public static AudioInputStream convertToRecognizerFormat(
+			AudioInputStream audioIn) {
+		return convertToRecognizerFormat(audioIn, RESAMPLER_POLYPHASE);
+	}
+
+	/**
+	 * Resample the incoming audio if it is not already in the format the
+	 * recognizer requires, using the given resampler: "polyphase" (the block
+	 * resampler) or "legacy" (the original sample-by-sample one). IMA-ADPCM
+	 * audio is decoded to 16-bit PCM first.
+	 */
+	public static AudioInputStream convertToRecognizerFormat(
+			AudioInputStream audioIn, String resampler) {
+		AudioFormat audioFormat = audioIn.getFormat();
+		if (Encodings.IMA_ADPCM.equals(audioFormat.getEncoding())) {
+			System.out.println("Decoding IMA-ADPCM");
+			float rate = audioFormat.getSampleRate();
+			audioFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+					rate, 16, 1, 2, rate, false);
+			audioIn = new AudioInputStream(new ImaAdpcmDecoderInputStream(
+					audioIn), audioFormat, AudioSystem.NOT_SPECIFIED);
+		}
 
 		AudioFormat requiredFormat = getRecognizerRequiredAudioFormat();
 		if (audioFormat.getEncoding() != requiredFormat.getEncoding()
@@ -109,21 +287,49 @@ public class RecordServlet extends HttpServlet {
 				|| audioFormat.getFrameRate() != requiredFormat.getFrameRate()
 				|| audioFormat.isBigEndian() != requiredFormat.isBigEndian()) {
 			System.out.println("Resampling");
-			audioIn = new WamiResampleAudioInputStream(
-					getRecognizerRequiredAudioFormat(), audioIn);
+			if (RESAMPLER_LEGACY.equals(resampler)) {
+				audioIn = new WamiResampleAudioInputStream(requiredFormat,
+						audioIn);
+			} else {
+				audioIn = new PolyphaseResampleAudioInputStream(
+						requiredFormat, audioIn);
+			}
 		}
 
-		WamiRelay relay = (WamiRelay) WamiServlet.getRelay(request);
+		return audioIn;
+	}
+
+	/**
+	 * Designs the resampling filters for the configured record rate, and for
+	 * the rates browsers commonly record at, before the first upload needs
+	 * them. They are shared by all resamplers (see {@link FilterBank}).
+	 */
+	public static void prepareResamplers(WamiConfig wc) {
+		Set<Integer> rates = new TreeSet<Integer>();
+		for (int rate : COMMON_RECORD_RATES) {
+			rates.add(rate);
+		}
 		try {
-			relay.recognize(audioIn);
-		} catch (Exception e) {
-			// TODO: something smarter? We should really notify the application
-			// that an error occurred
-			throw new ServletException(e);
+			rates.add(wc.getRecordSampleRate());
+		} catch (NumberFormatException e) {
+			// no <audio> configuration
+		}
+
+		int targetRate = FilterBank
+				.approximateRate(getRecognizerRequiredAudioFormat()
+						.getSampleRate());
+		for (int rate : rates) {
+			int sourceRate = FilterBank.approximateRate(rate);
+			if (sourceRate != targetRate) {
+				FilterBank.forRates(sourceRate, targetRate);
+				if (sourceRate % targetRate == 0) {
+					Decimator.cascade(sourceRate / targetRate);
+				}
+			}
 		}
 	}
 
-	private AudioFormat getRecognizerRequiredAudioFormat() {
+	private static AudioFormat getRecognizerRequiredAudioFormat() {
 		return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 8000, 16, 1, 2,
 				8000, false);
 	}
@@ -154,6 +360,14 @@ public class RecordServlet extends HttpServlet {
 				boolean big = contentType.getBooleanParameter("BIG", true);
 				return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, rate,
 						16, channels, 2, rate, big);
+			} else if (contentMinor.equals("IMA-ADPCM")) {
+				// Content-Type = AUDIO/IMA-ADPCM; CHANNELS=1; RATE=8000
+				int rate = contentType.getIntParameter("RATE", 8000);
+				if (contentType.getIntParameter("CHANNELS", 1) != 1) {
+					throw new UnsupportedOperationException(
+							"IMA-ADPCM audio must be mono");
+				}
+				return createAudioFormat("IMA-ADPCM", rate, true);
 			}
 		}
 
@@ -165,12 +379,26 @@ public class RecordServlet extends HttpServlet {
 		boolean isLittleEndian = Boolean.parseBoolean(request
 				.getParameter(isLittleEndianParam));
 
+		return createAudioFormat(audioFormatStr, sampleRate, isLittleEndian);
+	}
+
+	/**
+	 * The audio format for the recordAudioFormat (MULAW, LIN16 or
+	 * IMA-ADPCM), recordSampleRate and recordIsLittleEndian parameters
+	 */
+	public static AudioFormat createAudioFormat(String audioFormatStr,
+			int sampleRate, boolean isLittleEndian) {
 		if ("MULAW".equals(audioFormatStr)) {
 			return new AudioFormat(AudioFormat.Encoding.ULAW, sampleRate, 8, 1,
 					2, 8000, !isLittleEndian);
 		} else if ("LIN16".equals(audioFormatStr)) {
 			return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate,
 					16, 1, 2, sampleRate, !isLittleEndian);
+		} else if ("IMA-ADPCM".equals(audioFormatStr)) {
+			// 4 bits a sample, two to a byte; byte order doesn't apply
+			return new AudioFormat(Encodings.IMA_ADPCM, sampleRate, 4, 1,
+					AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED,
+					false);
 		}
 		throw new UnsupportedOperationException("Unsupported audio format: '"
 				+ audioFormatStr + "'");
@@ -0,0 +1,434 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * <p>
+ * Trims the silence around an utterance before it reaches the recognizer, for
+ * clients which post everything they record. It reads 16-bit mono PCM and
+ * returns the same audio, starting a little before the first speech and
+ * ending a little after the last: the stream ends as soon as a long enough
+ * pause follows speech, even if the upload goes on. Pauses shorter than that
+ * are passed through untouched.
+ * </p>
+ * <p>
+ * Speech is detected as in the applet's AutocorrSpeechDetector, one frame at
+ * a time: a frame is voiced if the autocorrelation of its (windowed, center
+ * clipped) samples is strongly periodic at a pitch lag and its energy is well
+ * above the quietest frame so far. Runs of voiced or unvoiced frames only
+ * count once they are long enough.
+ * </p>
+ * <p>
+ * {@link #waitForSpeech()} reads until speech starts, so that an upload with
+ * none can be turned away before a recognizer is involved, and
+ * {@link #drain()} reads the rest of an upload which goes on after the
+ * utterance has ended.
+ * </p>
+ */
+public class SpeechTrimmingInputStream extends InputStream {
+	// Detector settings, as in AutocorrSpeechDetector (durations in seconds)
+	private static final double FRAME_DURATION = .020;
+	private static final double WINDOW_DURATION = .080;
+	private static final double VOICE_DURATION = .060;
+	private static final double SILENCE_DURATION = .080;
+	private static final double CLIP_LEVEL = .6;
+	private static final double VOICING_THRESHOLD = .70;
+	private static final double ENERGY_RANGE = 5.0;
+	private static final int MIN_PITCH = 70;
+	private static final int MAX_PITCH = 250;
+	private static final int AUTOCORR_RES = 30;
+
+	// Audio kept before the first voiced frame and after the last one
+	private static final double START_PADDING = .5;
+	private static final double END_PADDING = .5;
+
+	private static final double INV_LOG10 = 1.0 / Math.log(10.0);
+
+	private final InputStream in;
+	private final boolean bigEndian;
+
+	private final int frameSamples;
+	private final int windowSamples;
+	private final int voiceSamples;
+	private final int silenceSamples;
+	private final int startPaddingSamples;
+	private final int endPaddingSamples;
+	private final int endSilenceSamples;
+
+	private final int[] lags;
+	private final double[] hamming;
+	private final double[] window;
+	private final double windowSizeBias;
+
+	// Audio read but not yet returned or trimmed
+	private byte[] pending = new byte[8192];
+	private int pendingOffset = 0;
+	private int pendingEnd = 0;
+	private long pendingPosition = 0; // byte number at pendingOffset
+
+	private long nextFrame = 0; // first sample of the next frame to classify
+	private long emitLimit = 0; // samples before this may be returned
+	private long endSample = Long.MAX_VALUE; // the stream ends here
+
+	private boolean inputEnded = false;
+	private boolean speechFound = false;
+	private boolean speechEnded = false;
+
+	// Voiced/unvoiced segmentation, as in AutocorrSpeechDetector
+	private boolean inSpeech = false;
+	private boolean inTransition = false;
+	private long transitionStartSample = 0;
+	private long segmentStartSample = 0;
+	private double maxval = Double.MIN_VALUE;
+	private double mineng = Double.MAX_VALUE;
+
+	/**
+	 * @param in
+	 *            16-bit mono PCM in the given format
+	 * @param endSilence
+	 *            seconds of silence after speech that end the utterance
+	 */
+	public SpeechTrimmingInputStream(InputStream in, AudioFormat format,
+			double endSilence) {
+		if (!isSupported(format)) {
+			throw new IllegalArgumentException(
+					"Speech trimming needs 16-bit mono PCM: " + format);
+		}
+
+		this.in = in;
+		this.bigEndian = format.isBigEndian();
+
+		float sampleRate = format.getSampleRate();
+		frameSamples = samples(FRAME_DURATION, sampleRate);
+		windowSamples = samples(WINDOW_DURATION, sampleRate);
+		voiceSamples = (samples(VOICE_DURATION, sampleRate) / frameSamples)
+				* frameSamples;
+		silenceSamples = (samples(SILENCE_DURATION, sampleRate) / frameSamples)
+				* frameSamples;
+		startPaddingSamples = samples(START_PADDING, sampleRate);
+		endSilenceSamples = samples(endSilence, sampleRate);
+		endPaddingSamples = Math.min(samples(END_PADDING, sampleRate),
+				endSilenceSamples);
+
+		// Lags for pitches spaced logarithmically from MIN_PITCH (the ratio
+		// is an integer division, as in AutocorrSpeechDetector)
+		int[] idx = new int[AUTOCORR_RES];
+		double interval = Math.log(MAX_PITCH / MIN_PITCH) / AUTOCORR_RES;
+		int n = 0;
+		int lastIndex = 0;
+		for (int i = 0; i < AUTOCORR_RES; i++) {
+			double pitch = Math.exp(interval * i) * MIN_PITCH;
+			int lag = (int) Math.round(sampleRate / pitch);
+			if (lag != lastIndex) {
+				idx[n++] = lag;
+				lastIndex = lag;
+			}
+		}
+		lags = new int[n];
+		System.arraycopy(idx, 0, lags, 0, n);
+
+		hamming = new double[windowSamples];
+		for (int i = 0; i < windowSamples; i++) {
+			hamming[i] = 0.54 - 0.46
+					* Math.cos(2.0 * Math.PI * i / (windowSamples - 1));
+		}
+		window = new double[windowSamples * 2];
+		windowSizeBias = -5.0 * Math.log(windowSamples) * INV_LOG10;
+	}
+
+	/**
+	 * Whether audio in this format can be trimmed
+	 */
+	public static boolean isSupported(AudioFormat format) {
+		return format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+				&& format.getSampleSizeInBits() == 16
+				&& format.getChannels() == 1;
+	}
+
+	/**
+	 * Reads until speech starts or the audio ends
+	 * 
+	 * @return whether there is any speech
+	 */
+	public boolean waitForSpeech() throws IOException {
+		while (!speechFound && !inputEnded) {
+			fill();
+		}
+		return speechFound;
+	}
+
+	/**
+	 * Reads and discards whatever input is left, for when the utterance has
+	 * ended before the audio did
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = new byte[4096];
+		while (in.read(buffer) != -1) {
+		}
+		inputEnded = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n < 0 ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		int available;
+		while ((available = emittableBytes()) == 0) {
+			if (inputEnded || speechEnded) {
+				return -1;
+			}
+			fill();
+		}
+
+		int n = Math.min(len, available);
+		System.arraycopy(pending, pendingOffset, b, off, n);
+		consume(n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return emittableBytes();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * The bytes at the start of pending which may be returned now
+	 */
+	private int emittableBytes() {
+		if (!speechFound) {
+			return 0;
+		}
+
+		long limit = Math.min(emitLimit, endSample);
+		if (!inputEnded && !speechEnded) {
+			// frames still to be classified need their samples
+			limit = Math.min(limit, nextFrame);
+		}
+
+		long bytes = Math.min(limit * 2 - pendingPosition, pendingEnd
+				- pendingOffset);
+		return bytes > 0 ? (int) bytes : 0;
+	}
+
+	/**
+	 * Reads more audio and classifies the frames it completes
+	 */
+	private void fill() throws IOException {
+		if (pendingEnd == pending.length) {
+			int used = pendingEnd - pendingOffset;
+			if (used > pending.length / 2) {
+				byte[] bigger = new byte[pending.length * 2];
+				System.arraycopy(pending, pendingOffset, bigger, 0, used);
+				pending = bigger;
+			} else {
+				System.arraycopy(pending, pendingOffset, pending, 0, used);
+			}
+			pendingOffset = 0;
+			pendingEnd = used;
+		}
+
+		int n = in.read(pending, pendingEnd, pending.length - pendingEnd);
+		if (n < 0) {
+			endOfInput();
+			return;
+		}
+		pendingEnd += n;
+
+		long availableEnd = (pendingPosition + pendingEnd - pendingOffset) / 2;
+		while (!speechEnded && nextFrame + windowSamples <= availableEnd) {
+			processFrame(nextFrame);
+			nextFrame += frameSamples;
+		}
+	}
+
+	private void endOfInput() {
+		inputEnded = true;
+		if (speechFound && !speechEnded) {
+			if (inSpeech) {
+				emitLimit = Long.MAX_VALUE;
+			} else {
+				endSample = segmentStartSample + endPaddingSamples;
+			}
+		}
+	}
+
+	/**
+	 * Drops or returns the first n bytes of pending
+	 */
+	private void consume(int n) {
+		pendingOffset += n;
+		pendingPosition += n;
+	}
+
+	private void processFrame(long frameOffsetSample) {
+		boolean speech = isVoiced(frameOffsetSample);
+
+		boolean transition = false;
+		if (inSpeech != speech) {
+			if (!inTransition) {
+				transitionStartSample = frameOffsetSample;
+				inTransition = true;
+			}
+			long transitionSamples = frameOffsetSample - transitionStartSample;
+			if ((speech && transitionSamples > voiceSamples)
+					|| (!speech && transitionSamples > silenceSamples)) {
+				transition = true;
+				segmentStartSample = transitionStartSample;
+				inTransition = false;
+				inSpeech = speech;
+			}
+		} else {
+			inTransition = false;
+		}
+
+		if (!speechFound) {
+			long keepFrom;
+			if (transition && inSpeech) {
+				speechFound = true;
+				keepFrom = segmentStartSample - startPaddingSamples;
+			} else {
+				keepFrom = (inTransition ? transitionStartSample
+						: frameOffsetSample)
+						- startPaddingSamples;
+			}
+			if (keepFrom * 2 > pendingPosition) {
+				consume((int) (keepFrom * 2 - pendingPosition));
+			}
+			emitLimit = pendingPosition / 2;
+			if (!speechFound) {
+				return;
+			}
+		}
+
+		if (inSpeech) {
+			// Everything before a possible pause is speech, and at least its
+			// padding will be kept
+			emitLimit = Math.max(emitLimit, inTransition ? transitionStartSample
+					+ endPaddingSamples : frameOffsetSample);
+		} else {
+			emitLimit = Math.max(emitLimit, segmentStartSample
+					+ endPaddingSamples);
+			long silence = (inTransition ? transitionStartSample
+					: frameOffsetSample)
+					- segmentStartSample;
+			if (!inTransition && silence > endSilenceSamples) {
+				endSample = segmentStartSample + endPaddingSamples;
+				speechEnded = true;
+			}
+		}
+	}
+
+	/**
+	 * Whether the window starting at the given sample is voiced, as decided
+	 * by AutocorrSpeechDetector.processWindow
+	 */
+	private boolean isVoiced(long frameOffsetSample) {
+		int p = pendingOffset + (int) (frameOffsetSample * 2 - pendingPosition);
+
+		double dcOffset = 0.0;
+		for (int i = 0; i < windowSamples; i++) {
+			window[i] = sample(p + 2 * i);
+			dcOffset += window[i];
+		}
+		dcOffset = dcOffset / windowSamples;
+
+		for (int i = 0; i < windowSamples; i++) {
+			window[i] = hamming[i] * (window[i] - dcOffset);
+		}
+
+		// Determine maximum value and center clip
+		double lmaxval = 0;
+		for (int i = 0; i < windowSamples; i++) {
+			lmaxval = Math.max(lmaxval, Math.abs(window[i]));
+		}
+		maxval = Math.max(lmaxval, maxval);
+		double pclip = maxval * CLIP_LEVEL;
+		for (int i = 0; i < windowSamples; i++) {
+			double val = window[i];
+			if (-pclip < val && val < pclip) {
+				window[i] = 0.0;
+			}
+		}
+
+		double a0 = 0.0;
+		for (int i = 0; i < windowSamples; i++) {
+			a0 += window[i] * window[i];
+		}
+		if (a0 <= 0.0) {
+			return false;
+		}
+
+		// Replicate the samples so we don't need to worry about wrap-around
+		System.arraycopy(window, 0, window, windowSamples, windowSamples);
+
+		double max = Double.MIN_VALUE;
+		for (int lag : lags) {
+			double val = 0.0;
+			int j = lag;
+			for (int i = 0; i < windowSamples; i++) {
+				val += window[i] * window[j++];
+			}
+			max = Math.max(max, val);
+		}
+
+		double energy = windowSizeBias + 5.0 * (Math.log(a0) * INV_LOG10);
+		mineng = Math.min(energy, mineng);
+		double periodicity = max / a0;
+
+		return periodicity > VOICING_THRESHOLD
+				&& energy - mineng > ENERGY_RANGE;
+	}
+
+	private int sample(int p) {
+		return bigEndian ? (short) ((pending[p] << 8) | (pending[p + 1] & 0xff))
+				: (short) ((pending[p + 1] << 8) | (pending[p] & 0xff));
+	}
+
+	private static int samples(double duration, float sampleRate) {
+		return (int) Math.round(duration * sampleRate);
+	}
+}
@@ -0,0 +1,105 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file on local disk, memory-mapped in fixed-size segments, that holds the
+ * utterance audio {@link UtteranceBuffer} spills out of memory. There is one
+ * per JVM; the operating system pages its segments in and out as they are
+ * read, so spilled audio costs neither heap nor resident memory while it
+ * sits unread.
+ * 
+ * The file grows a region at a time and never shrinks while the JVM runs;
+ * freed segments are reused. It is deleted on exit.
+ */
+class SpillFile {
+	// Segments mapped at once when the file grows
+	private static final int SEGMENTS_PER_REGION = 64;
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final int segmentSize;
+
+	private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+
+	private long size = 0;
+
+	SpillFile(File directory, int segmentSize) throws IOException {
+		this.segmentSize = segmentSize;
+		file = File.createTempFile("wami-audio-", ".spill", directory);
+		file.deleteOnExit();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		System.out.println("Spilling utterance audio to " + file);
+	}
+
+	/**
+	 * A cleared segment of the file, mapping another region if none is free
+	 */
+	synchronized ByteBuffer take() throws IOException {
+		if (free.isEmpty()) {
+			long regionSize = (long) segmentSize * SEGMENTS_PER_REGION;
+			MappedByteBuffer region = channel.map(
+					FileChannel.MapMode.READ_WRITE, size, regionSize);
+			size += regionSize;
+			for (int i = 0; i < SEGMENTS_PER_REGION; i++) {
+				region.limit((i + 1) * segmentSize);
+				region.position(i * segmentSize);
+				free.add(region.slice());
+			}
+		}
+
+		ByteBuffer segment = free.remove(free.size() - 1);
+		segment.clear();
+		return segment;
+	}
+
+	/**
+	 * Returns a segment from {@link #take()} for reuse
+	 */
+	synchronized void free(ByteBuffer segment) {
+		free.add(segment);
+	}
+
+	/**
+	 * The bytes of the file that are mapped
+	 */
+	synchronized long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,514 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import edu.mit.csail.sls.wami.util.AudioUtils;
+
+/**
+ * <p>
+ * The recorded audio of one utterance, stored once and read by everyone who
+ * needs it: the recognizer's tee writes it, and the replay and the event
+ * logger read it. It is written as an {@link OutputStream}, into fixed-size
+ * direct {@link ByteBuffer} segments, so it never has to be copied into a
+ * bigger array as it grows.
+ * </p>
+ * <p>
+ * Each reader ({@link #newInputStream()} and friends) sees the audio written
+ * when it was created, through read-only views of the segments, and may be
+ * read on any thread, while more audio is written. A WAV stream gets a
+ * header generated from the length in front of those views, rather than a
+ * copy of the audio with the header written by {@link javax.sound.sampled}.
+ * </p>
+ * <p>
+ * The buffer belongs to its owners: the writer holds the first reference,
+ * anyone else keeping the buffer calls {@link #retain()}, and each reference
+ * is dropped with {@link #release()}. Once the last one is, the buffer's
+ * memory no longer counts against the memory budget, whether or not readers
+ * are still open. Its segments are recycled (through a shared pool, or back
+ * to the spill file) at the same time, or, if readers are still open, once
+ * the last of them reaches the end or is closed. Readers must therefore be
+ * closed by whoever stops reading them early: the memory of a reader that
+ * is abandoned instead is left to the garbage collector, but the spill file
+ * segments it holds are not reused.
+ * </p>
+ * <p>
+ * Long utterances, and recordings kept after their utterance, are spilled to
+ * a memory-mapped {@link SpillFile} on local disk. New segments come from
+ * that file once a buffer holds more than the spill size in memory, or once
+ * the buffers of every relay together hold more than the memory budget (see
+ * {@link #configure}); {@link #spill()} moves a whole buffer there.
+ * </p>
+ */
+public class UtteranceBuffer extends OutputStream {
+	private static final int SEGMENT_SIZE = 16 * 1024;
+
+	// Idle segments kept for reuse (4MB, about four minutes of 8kHz audio)
+	private static final int MAX_POOLED_SEGMENTS = 256;
+
+	private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private static final AtomicInteger poolSize = new AtomicInteger();
+
+	// Bytes of memory segments held by all buffers
+	private static final AtomicLong memoryInUse = new AtomicLong();
+
+	private static volatile long spillSize = 1024 * 1024;
+
+	private static volatile long memoryBudget = 64 * 1024 * 1024;
+
+	private static volatile File spillDirectory = null;
+
+	private static SpillFile spillFile = null;
+
+	private static boolean spillFailed = false;
+
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+	// Which of the segments are in the spill file
+	private final BitSet mapped = new BitSet();
+
+	private long memoryBytes = 0;
+
+	private int numReaders = 0;
+
+	private long length = 0;
+
+	private int refCount = 1;
+
+	private boolean closed = false;
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Utterance buffer is closed");
+		}
+
+		while (len > 0) {
+			ByteBuffer segment = segments.isEmpty() ? null : segments
+					.get(segments.size() - 1);
+			if (segment == null || !segment.hasRemaining()) {
+				segment = newSegment();
+				segments.add(segment);
+			}
+
+			int n = Math.min(len, segment.remaining());
+			segment.put(b, off, n);
+			off += n;
+			len -= n;
+			length += n;
+		}
+	}
+
+	/**
+	 * Ends the utterance; the audio written so far stays readable
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	/**
+	 * Moves the audio held in memory to the spill file, e.g. once it is no
+	 * longer the current utterance. Readers already open keep reading the
+	 * memory they started with.
+	 */
+	public synchronized void spill() {
+		if (memoryBytes == 0 || refCount == 0) {
+			return;
+		}
+		SpillFile file = getSpillFile();
+		if (file == null) {
+			return;
+		}
+
+		for (int i = 0; i < segments.size(); i++) {
+			if (mapped.get(i)) {
+				continue;
+			}
+
+			ByteBuffer segment = segments.get(i);
+			ByteBuffer copy;
+			try {
+				copy = file.take();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			ByteBuffer written = segment.duplicate();
+			written.flip();
+			copy.put(written);
+
+			segments.set(i, copy);
+			mapped.set(i);
+			memoryBytes -= SEGMENT_SIZE;
+			memoryInUse.addAndGet(-SEGMENT_SIZE);
+			if (numReaders == 0) {
+				recycle(segment);
+			}
+		}
+	}
+
+	/**
+	 * The number of bytes written so far
+	 */
+	public synchronized long length() {
+		return length;
+	}
+
+	/**
+	 * Adds a reference to the buffer, to be dropped with {@link #release()}
+	 */
+	public synchronized void retain() {
+		if (refCount == 0) {
+			throw new IllegalStateException("Utterance buffer was released");
+		}
+		refCount++;
+	}
+
+	/**
+	 * Drops a reference; when none are left, the segments go back to the pool
+	 */
+	public void release() {
+		synchronized (this) {
+			if (refCount == 0 || --refCount > 0) {
+				return;
+			}
+			closed = true;
+			memoryInUse.addAndGet(-memoryBytes);
+			memoryBytes = 0;
+			if (numReaders > 0) {
+				// the last reader to close frees the segments
+				return;
+			}
+		}
+
+		freeSegments();
+	}
+
+	/**
+	 * Recycles the segments of a released buffer which has no readers
+	 */
+	private void freeSegments() {
+		List<ByteBuffer> free;
+		BitSet freeMapped;
+		synchronized (this) {
+			free = new ArrayList<ByteBuffer>(segments);
+			freeMapped = (BitSet) mapped.clone();
+			segments.clear();
+			mapped.clear();
+		}
+
+		for (int i = 0; i < free.size(); i++) {
+			if (freeMapped.get(i)) {
+				getSpillFile().free(free.get(i));
+			} else {
+				recycle(free.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The audio written so far. The caller must close the stream if it does
+	 * not read it to the end.
+	 */
+	public InputStream newInputStream() {
+		return newReader(null);
+	}
+
+	/**
+	 * The audio written so far, as an AudioInputStream of the given format
+	 */
+	public synchronized AudioInputStream newAudioInputStream(
+			AudioFormat format) {
+		int frameSize = format.getFrameSize();
+		return new AudioInputStream(newInputStream(), format,
+				frameSize > 0 ? length / frameSize : AudioSystem.NOT_SPECIFIED);
+	}
+
+	/**
+	 * The audio written so far, as a WAV file
+	 */
+	public synchronized InputStream newWaveInputStream(AudioFormat format)
+			throws IOException {
+		ByteBuffer header = createWaveHeader(format, length);
+		if (header == null) {
+			// not PCM that a WAV file can hold as is: let javax.sound convert
+			AudioInputStream audioIn = newAudioInputStream(format);
+			try {
+				return AudioUtils.createInputStreamWithWaveHeader(audioIn);
+			} finally {
+				audioIn.close();
+			}
+		}
+
+		return newReader(header);
+	}
+
+	private synchronized Reader newReader(ByteBuffer header) {
+		if (refCount == 0) {
+			throw new IllegalStateException("Utterance buffer was released");
+		}
+		numReaders++;
+		ByteBuffer[] views = new ByteBuffer[segments.size()];
+		for (int i = 0; i < views.length; i++) {
+			ByteBuffer view = segments.get(i).duplicate();
+			view.flip();
+			views[i] = view.asReadOnlyBuffer();
+		}
+		return new Reader(header, views);
+	}
+
+	/**
+	 * A canonical 44 byte WAV header for the given PCM format and data
+	 * length, or null if the format isn't PCM as WAV stores it
+	 */
+	private static ByteBuffer createWaveHeader(AudioFormat format,
+			long dataLength) {
+		int bits = format.getSampleSizeInBits();
+		boolean pcm = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+				&& bits > 8 && (bits % 8) == 0 && !format.isBigEndian()
+				|| format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED
+				&& bits == 8;
+		if (!pcm || dataLength > Integer.MAX_VALUE - 36) {
+			return null;
+		}
+
+		int channels = format.getChannels();
+		int rate = (int) format.getSampleRate();
+		int blockAlign = channels * bits / 8;
+
+		ByteBuffer header = ByteBuffer.allocate(44);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] { 'R', 'I', 'F', 'F' });
+		header.putInt((int) (36 + dataLength));
+		header.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+		header.putInt(16);
+		header.putShort((short) 1); // PCM
+		header.putShort((short) channels);
+		header.putInt(rate);
+		header.putInt(rate * blockAlign);
+		header.putShort((short) blockAlign);
+		header.putShort((short) bits);
+		header.put(new byte[] { 'd', 'a', 't', 'a' });
+		header.putInt((int) dataLength);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Sets the spill policy for all buffers: the bytes of audio each buffer
+	 * keeps in memory before spilling (0 for no limit), the bytes all buffers
+	 * together keep in memory (0 for no limit) and the directory for the
+	 * spill file (null for the system's temporary directory)
+	 */
+	public static void configure(long spillSize, long memoryBudget,
+			File spillDirectory) {
+		UtteranceBuffer.spillSize = spillSize;
+		UtteranceBuffer.memoryBudget = memoryBudget;
+		UtteranceBuffer.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * The bytes of audio held in memory by all buffers
+	 */
+	public static long getMemoryInUse() {
+		return memoryInUse.get();
+	}
+
+	/**
+	 * The size of the spill file, or 0 if nothing has been spilled
+	 */
+	public static long getSpillFileSize() {
+		SpillFile file;
+		synchronized (UtteranceBuffer.class) {
+			file = spillFile;
+		}
+		return file == null ? 0 : file.getSize();
+	}
+
+	/**
+	 * The next segment to write, from the spill file if this buffer or all
+	 * buffers have as much in memory as they may
+	 */
+	private ByteBuffer newSegment() {
+		long limit = spillSize;
+		long budget = memoryBudget;
+		if (limit > 0 && memoryBytes + SEGMENT_SIZE > limit || budget > 0
+				&& memoryInUse.get() + SEGMENT_SIZE > budget) {
+			SpillFile file = getSpillFile();
+			if (file != null) {
+				try {
+					ByteBuffer segment = file.take();
+					mapped.set(segments.size());
+					return segment;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		memoryBytes += SEGMENT_SIZE;
+		memoryInUse.addAndGet(SEGMENT_SIZE);
+		ByteBuffer segment = pool.poll();
+		if (segment != null) {
+			poolSize.decrementAndGet();
+			return segment;
+		}
+		return ByteBuffer.allocateDirect(SEGMENT_SIZE);
+	}
+
+	private static void recycle(ByteBuffer segment) {
+		if (poolSize.incrementAndGet() <= MAX_POOLED_SEGMENTS) {
+			segment.clear();
+			pool.add(segment);
+		} else {
+			poolSize.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The spill file, created on first use, or null if it can't be (audio
+	 * then stays in memory)
+	 */
+	private static synchronized SpillFile getSpillFile() {
+		if (spillFile == null && !spillFailed) {
+			try {
+				spillFile = new SpillFile(spillDirectory, SEGMENT_SIZE);
+			} catch (IOException e) {
+				System.err.println("Can't create audio spill file, keeping "
+						+ "utterance audio in memory: " + e);
+				spillFailed = true;
+			}
+		}
+		return spillFile;
+	}
+
+	/**
+	 * Reads an optional header, then views of the segments
+	 */
+	private class Reader extends InputStream {
+		private final ByteBuffer header;
+
+		private final ByteBuffer[] views;
+
+		private int current = 0;
+
+		private volatile boolean released = false;
+
+		Reader(ByteBuffer header, ByteBuffer[] views) {
+			this.header = header;
+			this.views = views;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (released) {
+				// the segments may have been recycled
+				return -1;
+			}
+
+			ByteBuffer view = header;
+			if (view == null || !view.hasRemaining()) {
+				while (current < views.length
+						&& !views[current].hasRemaining()) {
+					current++;
+				}
+				if (current == views.length) {
+					close();
+					return -1;
+				}
+				view = views[current];
+			}
+
+			int n = Math.min(len, view.remaining());
+			view.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			long n = header == null ? 0 : header.remaining();
+			for (int i = current; i < views.length; i++) {
+				n += views[i].remaining();
+			}
+			return (int) Math.min(n, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			boolean last;
+			synchronized (UtteranceBuffer.this) {
+				numReaders--;
+				last = numReaders == 0 && refCount == 0;
+			}
+			if (last) {
+				freeSegments();
+			}
+		}
+	}
+}
@@ -29,22 +29,18 @@
 package edu.mit.csail.sls.wami.audio;
 
 import edu.mit.csail.sls.wami.applet.sound.ByteFifo;
+import edu.mit.csail.sls.wami.applet.sound.FilterBank;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
-import java.util.Map;
-import java.util.TreeMap;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 
 public class WamiResampleInputStream extends InputStream {
 
-	private static final int APPROXIMATION = 100;
-	private static final int FILTER_SCALE = 25;
-
 	private AudioFormat targetFormat;
 	private AudioFormat sourceFormat;
 
@@ -72,60 +68,35 @@ public class WamiResampleInputStream extends InputStream {
 	private ByteBuffer targetByteBuffer = ByteBuffer.wrap(targetBytes);
 	private ShortBuffer targetShortBuffer = null;
 
-	// For caching interpolation filter.
-	private static Map<Integer, float[]> filterCache = new TreeMap<Integer, float[]>();
-
-	int gcd(int x, int y) {
-		int r;
-		while ((r = x % y) > 0) {
-			x = y;
-			y = r;
-		}
-		return y;
-	}
-
 	public WamiResampleInputStream(AudioFormat targetFormat,
 			AudioInputStream sourceStream) {
 		this.targetFormat = targetFormat;
 		this.sourceFormat = sourceStream.getFormat();
 		this.sourceStream = sourceStream;
 
-		int targetRate = Math.round(targetFormat.getSampleRate()
-				/ APPROXIMATION)
-				* APPROXIMATION;
-		int sourceRate = Math.round(sourceFormat.getSampleRate()
-				/ APPROXIMATION)
-				* APPROXIMATION;
-		int gcd = gcd(targetRate, sourceRate);
+		int targetRate = FilterBank.approximateRate(targetFormat
+				.getSampleRate());
+		int sourceRate = FilterBank.approximateRate(sourceFormat
+				.getSampleRate());
+
+		// Shared with every other resampler for these rates
+		FilterBank bank = FilterBank.forRates(sourceRate, targetRate);
 
-		this.L = targetRate / gcd;
-		this.M = sourceRate / gcd;
+		this.L = bank.getL();
+		this.M = bank.getM();
 
 		sourceByteFifo = new ByteFifo(sourceRate / 5);
 		targetByteFifo = new ByteFifo(targetRate / 5);
-		initialize();
+		initialize(bank);
 
 	}
 
-	private void initialize() {
-		int f = Math.max(L, M);
-		int n = FILTER_SCALE * f;
-		int mod = n % L;
-		if (mod != 0)
-			n += L - mod;
-		z = new short[n / L];
-
-		boolean cached = true;
-		Integer cacheKey = new Integer(f);
-		h = filterCache.get(cacheKey);
-		if (h == null) {
-			h = InterpolationFilter.design(f, n, InterpolationFilter.HAMMING);
-			filterCache.put(cacheKey, h);
-			cached = false;
-		}
+	private void initialize(FilterBank bank) {
+		h = bank.getFilter();
+		z = new short[h.length / L];
+
 		System.err.println("ResampleInputStream:" + " L=" + L + " M=" + M
-				+ " taps=" + h.length + " perPhase=" + z.length + " cached="
-				+ cached);
+				+ " taps=" + h.length + " perPhase=" + z.length);
 
 		// Cause the delay buffer z to be fully loaded before first output.
 		//
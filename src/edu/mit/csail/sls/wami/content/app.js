@@ -4,6 +4,11 @@
 
 //  Create a new Wami.App object. Note, you should never create more than one
 //  Wami.App object on your page.
+//
+//  Messages to and from the server travel as xml, or as JsonML (which is
+//  faster to parse) if wami.js is loaded with wireFormat=json in its URL or
+//  the server is configured to use json.  Either way, handlers see the same
+//  objects.
 //  
 //  @param elem
 //             The parent element under which we insert the audio applet, most
@@ -16,6 +21,9 @@
 //     "onRecognitionResult" : func, // function(recResult) called when rec result available 
 //     "onTimeout" : func,           // function() called when wami times out 
 //     "onError" : func,             // function(errorType, errorMessage) called when an error occurs 
+//     "onWaitlist" : func,          // function(position, estimatedWaitMillis) called while the server is
+//                                   // full and we are waiting our turn for it 
+//     "onAdmitted" : func,          // function() called when the server has room for us after waiting 
 //     "onMessage" : func              // function(xmlNode) called when any other type of response is received from the server. 
 //                                   // This will only occur for wami-developers who are also writing server-side code, 
 //                                   // this will be xml no matter what value you set wamiResponseFormat to 
@@ -90,34 +98,34 @@ Wami.App = function(elem, wamiResponseHandlers, wamiResponseFormat, audioOptions
  * Configuration options and grammar options shown at constructor
  */
 Wami.App.prototype.configure = function(options, grammar) {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "configure");
-	root.setAttribute("wsessionid", _wamiParams.wsessionid);
+	var update = [ "update", {
+		"type" : "configure",
+		"wsessionid" : _wamiParams.wsessionid
+	} ];
+	// kept, since it is lost if the server is too busy to take it now
+	this._wamiConfiguration = update;
 	
 	if (typeof (options) != "undefined") {
-		this.appendParam(xmlDoc, root, "sendIncrementalResults",
+		this.appendParam(update, "sendIncrementalResults",
 				options.sendIncrementalResults);
-		this
-				.appendParam(xmlDoc, root, "sendAggregates",
-						options.sendAggregates);
-		this.appendParam(xmlDoc, root, "splitTag", options.splitTag);
-		this.appendParam(xmlDoc, root, "locationProtocol", location.protocol);
-		this.appendParam(xmlDoc, root, "locationDomain", document.domain);
-		this.appendParam(xmlDoc, root, "locationPort", location.port);
-		this.appendParam(xmlDoc, root, "locationPath", location.pathname);
+		this.appendParam(update, "sendAggregates", options.sendAggregates);
+		this.appendParam(update, "splitTag", options.splitTag);
+		this.appendParam(update, "locationProtocol", location.protocol);
+		this.appendParam(update, "locationDomain", document.domain);
+		this.appendParam(update, "locationPort", location.port);
+		this.appendParam(update, "locationPath", location.pathname);
 
 		if (options.recordOnly) {
-			this.appendParam(xmlDoc, root, "recordOnly", options.recordOnly);
+			this.appendParam(update, "recordOnly", options.recordOnly);
 		}
 
 		if (options.devKey) {
-			this.appendParam(xmlDoc, root, "jsapiDevKey", options.devKey);
+			this.appendParam(update, "jsapiDevKey", options.devKey);
 		}
 	}
 
 	if (typeof (grammar) != "undefined") {
-		this.appendGrammar(xmlDoc, root, grammar);
+		this.appendGrammar(update, grammar);
 	}
 
 	if (options.environment) {
@@ -128,61 +136,53 @@ Wami.App.prototype.configure = function(options, grammar) {
 	}
 
 	setTimeout(function() { _gWamiAppSingleton.wamiPoll() }, 1);
-	this.postXML(xmlDoc);
+	this.postMessage(update);
 }
 
 // see constructor for grammar specification format
 Wami.App.prototype.setGrammar = function(grammar) {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "configure");
-	this.appendGrammar(xmlDoc, root, grammar);
-	this.postXML(xmlDoc);
+	var update = [ "update", {
+		"type" : "configure"
+	} ];
+	this.appendGrammar(update, grammar);
+	this.postMessage(update);
 }
 
 // speak via TTS
 // text: the string to speak
 // options: { "language" : "zh" }
 Wami.App.prototype.speak = function(text, options) {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "speak");
-	var params = xmlDoc.createElement("params");
+	var params = [ "params" ];
 	for ( var name in options) {
-		var param = xmlDoc.createElement("param");
-		param.setAttribute("name", name);
-		param.setAttribute("value", options[name]);
-		params.appendChild(param);
+		params.push( [ "param", {
+			"name" : name,
+			"value" : options[name]
+		} ]);
 	}
-	var elem = xmlDoc.createElement("synth_string");
-	elem.appendChild(xmlDoc.createTextNode(text));
-	root.appendChild(params);
-	root.appendChild(elem);
-	this.postXML(xmlDoc);
+	this.postMessage( [ "update", {
+		"type" : "speak"
+	}, params, [ "synth_string", text ] ]);
 }
 
 Wami.App.prototype.playRecording = function(wsessionid, utt_id) {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "playrecording");
-	root.setAttribute("wsessionid", wsessionid);
-	root.setAttribute("uttid", utt_id);
-	this.postXML(xmlDoc);
+	this.postMessage( [ "update", {
+		"type" : "playrecording",
+		"wsessionid" : wsessionid,
+		"uttid" : utt_id
+	} ]);
 }
 
 Wami.App.prototype.playWavFromURL = function(url) {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "playurl");
-	root.setAttribute("url", url);
-	this.postXML(xmlDoc);
+	this.postMessage( [ "update", {
+		"type" : "playurl",
+		"url" : url
+	} ]);
 }
 
 Wami.App.prototype.replayLastRecording = function() {
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "replay");
-	this.postXML(xmlDoc);
+	this.postMessage( [ "update", {
+		"type" : "replay"
+	} ]);
 }
 
 /** post an xml message to the server (using an xml node) */
@@ -192,25 +192,27 @@ Wami.App.prototype.postXML = function(xmlNode) {
 }
 
 Wami.App.prototype.logEvents = function(logs) {
-	var xdoc = Wami.utils.xml.newDocument('update');
-	var root = xdoc.firstChild;
-	root.setAttribute('type', 'logevents');
+	var update = [ "update", {
+		"type" : "logevents"
+	} ];
 
 	for ( var i = 0; i < logs.length; i++) {
-		var node = xdoc.createElement('event');
-		for (attr in logs[i]) {
-			node.setAttribute(attr, logs[i][attr]);
+		var attrs = {};
+		for ( var attr in logs[i]) {
+			attrs[attr] = logs[i][attr];
 		}
 
-		root.appendChild(node);
-
+		update.push( [ "event", attrs ]);
 	}
-	this.postXML(xdoc);
+	this.postMessage(update);
 }
 
-/** post a json message to the server */
+/**
+ * post a json message to the server, as JsonML, e.g. [ "update", { "type" :
+ * "mytype" } ]. The server application receives it as the equivalent xml.
+ */
 Wami.App.prototype.postJSON = function(json) {
-	alert("postJSON not yet implemented");
+	this.postMessage(json);
 }
 
 Wami.App.prototype.startRecording = function() {
@@ -251,6 +253,9 @@ Wami.App.prototype._audioApplet;
 Wami.App.prototype._messageElements = null;
 Wami.App.prototype._wamiEnvironment = null;
 Wami.App.prototype._wamiShouldPoll = true;
+Wami.App.prototype._wamiEventSource = null;
+Wami.App.prototype._wamiStreamFailed = false;
+Wami.App.prototype._wamiConfiguration = null;
 
 
 Wami.App.prototype.repoll = function(timeoutBeforeRepoll) {
@@ -259,28 +264,37 @@ Wami.App.prototype.repoll = function(timeoutBeforeRepoll) {
 		timeout = timeoutBeforeRepoll;
 	}
 
-	var xmlDoc = Wami.utils.xml.newDocument("update");
-	var root = xmlDoc.firstChild;
-	root.setAttribute("type", "repoll");
-	root.setAttribute("timeout", timeout);
-	this.postXML(xmlDoc);
+	this.postMessage( [ "update", {
+		"type" : "repoll",
+		"timeout" : timeout
+	} ]);
 }
 
 Wami.App.prototype.stopPolling = function() {
 	this._wamiShouldPoll = false;
+	this.closeStream();
 	this.repoll();
 }
 
 Wami.App.prototype.startPolling = function() {
 	if (!this._wamiShouldPoll) {
 		this._wamiShouldPoll = true;
-		setTimeout(this.wamiPoll, 1);
+		setTimeout(function() { _gWamiAppSingleton.wamiPoll() }, 1);
 	}
 }
 
 Wami.App.prototype._messageQueue = new Array();
 Wami.App.prototype._currentMessage = null;
 
+// post a JsonML message, in the wire format negotiated with the server
+Wami.App.prototype.postMessage = function(message) {
+	if (_wamiParams.wireFormat == "json") {
+		this.postXMLString(Wami.utils.json.stringify(message));
+	} else {
+		this.postXMLString(Wami.utils.jsonml.toXmlString(message));
+	}
+}
+
 Wami.App.prototype.postXMLString = function(xmlStr) {
 	this._messageQueue.push(xmlStr);
 	this.trySendingMessage();
@@ -540,8 +554,18 @@ Wami.App.prototype.appendParamsToURL = function(url, params) {
 	}
 }
 
-// Poll by requesting javascript from the WAMI server.
+// Poll by requesting javascript from the WAMI server.  Where the browser
+// supports it, a single server-sent event stream is opened instead.
 Wami.App.prototype.wamiPoll = function() {
+	if (this._wamiEventSource != null) {
+		return;
+	}
+
+	if (!this._wamiStreamFailed && Wami.utils.supportsEventSource()) {
+		this.wamiStream();
+		return;
+	}
+
 	var callback = "_gWamiAppSingleton.responseHandler";
 
 	if (this._wamiEnvironment) {
@@ -549,7 +573,7 @@ Wami.App.prototype.wamiPoll = function() {
 	}
 
 	var time = new Date().getTime(); // force IE not to cache
-	var params = "jsxss=get&polling=true&t=" + time + "&callback=" + callback;
+	var params = "jsxss=get&polling=true&batch=true&t=" + time + "&callback=" + callback;
 	var scriptURL = this.appendParamsToURL(_wamiParams.controlUrl, params);
 
 	var prev = document.getElementById("wamiPollScriptTag");
@@ -576,6 +600,48 @@ Wami.App.prototype.wamiPoll = function() {
 	}
 }
 
+// Receive messages as they are sent over one long-lived text/event-stream
+// response.  If the stream cannot be opened at all, we go back to polling.
+Wami.App.prototype.wamiStream = function() {
+	var time = new Date().getTime();
+	var params = "stream=true&t=" + time;
+	var streamURL = this.appendParamsToURL(_wamiParams.controlUrl, params);
+
+	var app = this;
+	var opened = false;
+	var source = new EventSource(streamURL);
+
+	source.onopen = function() {
+		opened = true;
+	}
+
+	source.onmessage = function(event) {
+		app.responseHandler(event.data, true);
+	}
+
+	source.onerror = function() {
+		if (!opened) {
+			// never connected: fall back to long polling
+			app._wamiStreamFailed = true;
+			app.closeStream();
+			if (app._wamiShouldPoll) {
+				setTimeout(function() { _gWamiAppSingleton.wamiPoll() }, 1);
+			}
+		}
+		// otherwise the browser reconnects on its own, and messages sent in
+		// the meantime are queued on the server
+	}
+
+	this._wamiEventSource = source;
+}
+
+Wami.App.prototype.closeStream = function() {
+	if (this._wamiEventSource != null) {
+		this._wamiEventSource.close();
+		this._wamiEventSource = null;
+	}
+}
+
 Wami.App.prototype.setupEnvironment = function(src) {
 	// prep the transport
 	// i.e. build the iframe so that it can create scripts
@@ -609,32 +675,45 @@ Wami.App.prototype.setupEnvironment = function(src) {
 	document.body.appendChild(wamiframe);
 }
 
-Wami.App.prototype.responseHandler = function(xmlStr) {
-	// Internet Explorer
-	var xmlDoc = Wami.utils.xml.fromString(xmlStr);
-	var replies = xmlDoc.getElementsByTagName("reply");
+// streamed is true for messages which arrived over the event stream, in which
+// case there is no poll to reissue
+Wami.App.prototype.responseHandler = function(response, streamed) {
+	var replies = this.parseReplies(response);
+	var attr = this.getReplyAttribute;
 
 	var repollTimeout = 1; // 1ms between polls
 
 	for ( var i = 0; i < replies.length; i++) {
 		var reply = replies[i];
-		var type = reply.getAttribute("type");
+		var type = attr(reply, "type");
 		if (type == "recresult") {
 			this.handleRecResult(reply);
 		} else if (type == "timeout") {
+			this.closeStream();
 			this.handleCallback("onTimeout");
 			return; // on timeout, we do not continue polling, and exit
 			// immediately
 		} else if (type == "error") {
 			this._wamiShouldPoll = false;
-			this.handleCallback("onError", reply.getAttribute("error_type"),
-					reply.getAttribute("message"), reply.getAttribute("details"));
+			this.handleCallback("onError", attr(reply, "error_type"), attr(
+					reply, "message"), attr(reply, "details"));
 		} else if (type == "wami_ready") {
 			this.handleCallback("onReady", _wamiParams.wsessionid);
 		} else if (type == "stop_polling") {
 			this._wamiShouldPoll = false;
 		} else if (type == "repoll") {
-			repollTimeout = reply.getAttribute("timeout");
+			repollTimeout = attr(reply, "timeout");
+		} else if (type == "waitlist") {
+			// the server is full: check in again when it tells us to
+			repollTimeout = attr(reply, "retry");
+			this.handleCallback("onWaitlist",
+					parseInt(attr(reply, "position")),
+					parseInt(attr(reply, "wait")));
+		} else if (type == "admitted") {
+			if (this._wamiConfiguration != null) {
+				this.postMessage(this._wamiConfiguration);
+			}
+			this.handleCallback("onAdmitted");
 		} else if (type == "finishedplayingaudio") {
 			this.handleCallback("onFinishedPlayingAudio");
 		} else if (type == "invalid_key") {
@@ -644,7 +723,7 @@ Wami.App.prototype.responseHandler = function(xmlStr) {
 			//alert(message);
 			this._currentMessage = null;
 			
-			var postID = reply.getAttribute("postID");
+			var postID = attr(reply, "postID");
 			if (this._messageElements.messageForm.id == "wamiForm" + postID) {
 				this._messageElements.messageFrame.src = "about:blank";
 				// alert('reset from src: ' + postID);
@@ -655,27 +734,77 @@ Wami.App.prototype.responseHandler = function(xmlStr) {
 			setTimeout(function() { _gWamiAppSingleton.trySendingMessage() }, 10);
 			
 		} else {
-			this.handleCallback("onMessage", reply);
+			this.handleCallback("onMessage", this.toXmlReply(reply));
 		}
 	}
 
-	if (this._wamiShouldPoll) {
+	if (streamed) {
+		if (!this._wamiShouldPoll) {
+			this.closeStream();
+		}
+	} else if (this._wamiShouldPoll) {
 		setTimeout(function() { _gWamiAppSingleton.wamiPoll() }, repollTimeout);
 	}
 }
 
-Wami.App.prototype.appendParam = function(xmlDoc, elem, name, value) {
+// Replies are xml, or JsonML in the json wire format: either a single reply
+// or a batch of them wrapped in "replies".  Returns the reply elements.
+Wami.App.prototype.parseReplies = function(response) {
+	var jsonml = Wami.utils.jsonml;
+
+	if (!jsonml.isJsonML(response)) {
+		// Internet Explorer
+		var xmlDoc = Wami.utils.xml.fromString(response);
+		return xmlDoc.getElementsByTagName("reply");
+	}
+
+	var message = Wami.utils.json.parse(response);
+	if (message[0] != "replies") {
+		return [ message ];
+	}
+
+	var replies = [];
+	var children = jsonml.getChildren(message);
+	for ( var i = 0; i < children.length; i++) {
+		if (jsonml.isElement(children[i])) {
+			replies.push(children[i]);
+		} else {
+			// xml, sent as is by the server-side application
+			var xmlReplies = Wami.utils.xml.fromString(children[i])
+					.getElementsByTagName("reply");
+			for ( var j = 0; j < xmlReplies.length; j++) {
+				replies.push(xmlReplies[j]);
+			}
+		}
+	}
+	return replies;
+}
+
+Wami.App.prototype.getReplyAttribute = function(reply, name) {
+	if (Wami.utils.jsonml.isElement(reply)) {
+		return Wami.utils.jsonml.getAttribute(reply, name);
+	}
+	return reply.getAttribute(name);
+}
+
+Wami.App.prototype.toXmlReply = function(reply) {
+	if (Wami.utils.jsonml.isElement(reply)) {
+		return Wami.utils.jsonml.toXml(reply);
+	}
+	return reply;
+}
+
+Wami.App.prototype.appendParam = function(elem, name, value) {
 	if (typeof (value) != "undefined" && value != null) {
-		var param = xmlDoc.createElement("param");
-		param.setAttribute("name", name);
-		param.setAttribute("value",
-				(typeof (value) == "boolean") ? (value ? "true" : "false")
-						: value);
-		elem.appendChild(param);
+		elem.push( [ "param", {
+			"name" : name,
+			"value" : (typeof (value) == "boolean") ? (value ? "true" : "false")
+					: value
+		} ]);
 	}
 }
 
-Wami.App.prototype.appendGrammar = function(xmlDoc, elem, grammar) {
+Wami.App.prototype.appendGrammar = function(elem, grammar) {
 	var grammarLanguage = this.getParam(grammar, "language", "en-us");
 	var grammar = this.getParam(grammar, "grammar", "");
 	if (grammar == "") {
@@ -683,11 +812,9 @@ Wami.App.prototype.appendGrammar = function(xmlDoc, elem, grammar) {
 		return;
 	}
 
-	var node = xmlDoc.createElement("jsgfgrammar");
-	node.setAttribute("language", grammarLanguage);
-	var text = xmlDoc.createTextNode(grammar);
-	node.appendChild(text);
-	elem.appendChild(node);
+	elem.push( [ "jsgfgrammar", {
+		"language" : grammarLanguage
+	}, grammar ]);
 }
 
 Wami.App.prototype.getParam = function(options, name, defaultValue) {
@@ -757,9 +884,54 @@ Wami.App.prototype.convertXmlAggregateToJson = function(xmlAgg) {
 	};
 }
 
+Wami.App.prototype.convertJsonMLRecResultToJson = function(reply) {
+	var jsonml = Wami.utils.jsonml;
+	var hyps = new Array();
+	var jsonmlHyps = jsonml.getElementsByTagName(reply, "hyp");
+	for ( var i = 0; i < jsonmlHyps.length; i++) {
+		var hyp = jsonmlHyps[i];
+		var text = jsonml.getElementsByTagName(hyp, "text");
+		var jsonHyp = {
+			"index" :parseInt(jsonml.getAttribute(hyp, "index")),
+			"text" :(text.length > 0) ? jsonml.getText(text[0]) : ""
+		};
+
+		var aggs = jsonml.getElementsByTagName(hyp, "aggregate");
+		if (aggs.length > 0) {
+			var kvsHash = {};
+			var kvs = jsonml.getElementsByTagName(aggs[0], "kv");
+			for ( var j = 0; j < kvs.length; j++) {
+				kvsHash[jsonml.getAttribute(kvs[j], "key")] = jsonml
+						.getAttribute(kvs[j], "value");
+			}
+
+			jsonHyp["aggregate"] = {
+				"index" :parseInt(jsonml.getAttribute(aggs[0], "index")),
+				"partial" :jsonml.getAttribute(aggs[0], "partial") == "true",
+				"kvs" :kvsHash
+			};
+		}
+		hyps[i] = jsonHyp;
+	}
+
+	return {
+		"incremental" :jsonml.getAttribute(reply, "incremental") == "true",
+		"utt_id" :parseInt(jsonml.getAttribute(reply, "utt_id")),
+		"incremental_index" :parseInt(jsonml.getAttribute(reply,
+				"incremental_index")),
+		"hyps" :hyps
+	};
+}
+
 Wami.App.prototype.handleRecResult = function(reply) {
-	var recresult = (this._wamiResponseFormat == "json") ? this
-			.convertXmlRecResultToJson(reply) : reply;
+	var recresult;
+	if (Wami.utils.jsonml.isElement(reply)) {
+		recresult = (this._wamiResponseFormat == "json") ? this
+				.convertJsonMLRecResultToJson(reply) : this.toXmlReply(reply);
+	} else {
+		recresult = (this._wamiResponseFormat == "json") ? this
+				.convertXmlRecResultToJson(reply) : reply;
+	}
 	this.handleCallback("onRecognitionResult", recresult);
 }
 
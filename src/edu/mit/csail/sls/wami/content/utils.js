@@ -53,6 +53,11 @@ Wami.utils.getCookie = function(name) {
 	return unescape(document.cookie.substring(len, end));
 }
 
+// Server-sent events are not available in every browser (e.g. IE)
+Wami.utils.supportsEventSource = function() {
+	return typeof EventSource != "undefined";
+}
+
 Wami.utils.xml = function() { }
 
 Wami.utils.xml.fromString = function(xmlString) {
@@ -159,3 +164,148 @@ Wami.utils.xml.newDocument = function(rootTagName, namespaceURL) {
 		return doc;
 	}
 };
+
+Wami.utils.json = function() { }
+
+Wami.utils.json.parse = function(str) {
+	if (typeof JSON != "undefined") {
+		return JSON.parse(str);
+	}
+	return eval("(" + str + ")");
+}
+
+// JSON.stringify, for the arrays, objects, strings, numbers and booleans of
+// a JsonML message, where the browser does not have it
+Wami.utils.json.stringify = function(value) {
+	if (typeof JSON != "undefined") {
+		return JSON.stringify(value);
+	}
+
+	var json = Wami.utils.json;
+	if (typeof (value) == "string") {
+		return json.quote(value);
+	} else if (typeof (value) == "number" || typeof (value) == "boolean") {
+		return String(value);
+	} else if (value == null) {
+		return "null";
+	}
+
+	var parts = [];
+	if (Wami.utils.jsonml.isElement(value)) {
+		for ( var i = 0; i < value.length; i++) {
+			parts.push(json.stringify(value[i]));
+		}
+		return "[" + parts.join(",") + "]";
+	}
+
+	for ( var name in value) {
+		parts.push(json.quote(name) + ":" + json.stringify(value[name]));
+	}
+	return "{" + parts.join(",") + "}";
+}
+
+Wami.utils.json.quote = function(str) {
+	return '"' + str.replace(/[\\"\u0000-\u001f\u2028\u2029]/g, function(c) {
+		return "\\u" + ("000" + c.charCodeAt(0).toString(16)).slice(-4);
+	}) + '"';
+}
+
+// Messages in the JSON wire format are JsonML (http://jsonml.org): an element
+// is an array of its tag name, an object of its attributes (if it has any),
+// then its children, each either an element or a string of text.
+Wami.utils.jsonml = function() { }
+
+Wami.utils.jsonml.isJsonML = function(str) {
+	return /^\s*\[/.test(str);
+}
+
+Wami.utils.jsonml.isElement = function(value) {
+	return Object.prototype.toString.call(value) == "[object Array]";
+}
+
+Wami.utils.jsonml.getAttributes = function(elem) {
+	var attrs = elem[1];
+	if (attrs && typeof (attrs) == "object"
+			&& !Wami.utils.jsonml.isElement(attrs)) {
+		return attrs;
+	}
+	return {};
+}
+
+// like the DOM's getAttribute, but null if there is no such attribute
+Wami.utils.jsonml.getAttribute = function(elem, name) {
+	var value = Wami.utils.jsonml.getAttributes(elem)[name];
+	return (typeof (value) == "undefined") ? null : value;
+}
+
+Wami.utils.jsonml.getChildren = function(elem) {
+	var attrs = elem[1];
+	var hasAttributes = attrs && typeof (attrs) == "object"
+			&& !Wami.utils.jsonml.isElement(attrs);
+	return elem.slice(hasAttributes ? 2 : 1);
+}
+
+// the descendants with the given tag name, in document order
+Wami.utils.jsonml.getElementsByTagName = function(elem, tagName, found) {
+	if (!found) {
+		found = [];
+	}
+
+	var children = Wami.utils.jsonml.getChildren(elem);
+	for ( var i = 0; i < children.length; i++) {
+		if (Wami.utils.jsonml.isElement(children[i])) {
+			if (children[i][0] == tagName) {
+				found.push(children[i]);
+			}
+			Wami.utils.jsonml.getElementsByTagName(children[i], tagName, found);
+		}
+	}
+	return found;
+}
+
+Wami.utils.jsonml.getText = function(elem) {
+	var text = "";
+	var children = Wami.utils.jsonml.getChildren(elem);
+	for ( var i = 0; i < children.length; i++) {
+		if (!Wami.utils.jsonml.isElement(children[i]) && children[i] != null) {
+			text += children[i];
+		}
+	}
+	return text;
+}
+
+Wami.utils.jsonml.toXmlString = function(elem) {
+	var escape = function(value) {
+		return String(value).replace(/&/g, "&amp;").replace(/</g, "&lt;")
+				.replace(/>/g, "&gt;").replace(/"/g, "&quot;");
+	};
+
+	var xml = "<" + elem[0];
+	var attrs = Wami.utils.jsonml.getAttributes(elem);
+	for ( var name in attrs) {
+		if (attrs[name] != null) {
+			xml += " " + name + '="' + escape(attrs[name]) + '"';
+		}
+	}
+
+	var children = Wami.utils.jsonml.getChildren(elem);
+	if (children.length == 0) {
+		return xml + "/>";
+	}
+
+	xml += ">";
+	for ( var i = 0; i < children.length; i++) {
+		if (Wami.utils.jsonml.isElement(children[i])) {
+			xml += Wami.utils.jsonml.toXmlString(children[i]);
+		} else if (children[i] != null) {
+			xml += escape(children[i]);
+		}
+	}
+	return xml + "</" + elem[0] + ">";
+}
+
+// the message as an xml element, for handlers which expect xml
+Wami.utils.jsonml.toXml = function(elem) {
+	var xml = Wami.utils.jsonml.toXmlString(elem);
+	return Wami.utils.xml.fromString(xml).documentElement;
+}
@@ -16,6 +16,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import edu.mit.csail.sls.wami.app.IApplicationController;
+import edu.mit.csail.sls.wami.app.IMessageController;
 import edu.mit.csail.sls.wami.app.IWamiApplication;
 import edu.mit.csail.sls.wami.audio.PlayServlet;
 import edu.mit.csail.sls.wami.log.EventPlayerException;
@@ -31,6 +32,8 @@ import edu.mit.csail.sls.wami.recognition.lm.exceptions.LanguageModelServerExcep
 import edu.mit.csail.sls.wami.recognition.lm.exceptions.UnsupportedLanguageModelException;
 import edu.mit.csail.sls.wami.recognition.lm.jsgf.JsgfGrammar;
 import edu.mit.csail.sls.wami.relay.WamiRelay;
+import edu.mit.csail.sls.wami.util.JsonML;
+import edu.mit.csail.sls.wami.util.XmlMessageWriter;
 import edu.mit.csail.sls.wami.util.XmlUtils;
 
 /**
@@ -55,6 +58,9 @@ public class ClientControlledApplication implements IWamiApplication,
 	private JSGFIncrementalAggregator aggregator;
 	private IApplicationController appController;
 
+	/** the same controller, for messages which are already serialized */
+	private IMessageController messageController;
+
 	private String splitTag = JSGFIncrementalAggregator.DEFAULT_SPLIT_TAG;
 	private boolean sendIncrementalResults = true;
 	private boolean sendAggregates = false;
@@ -82,6 +88,9 @@ public class ClientControlledApplication implements IWamiApplication,
 	private IRecognizer recognizer;
 	private IEventPlayer player;
 
+	/** the format our relay's client wants messages in */
+	private XmlMessageWriter.WireFormat wireFormat = XmlMessageWriter.WireFormat.XML;
+
 	public static enum ErrorType {
 		grammar_compilation, configuration, unknown_client_message, recording_not_found, not_implemented, synthesis_error, playback_error
 	};
@@ -90,7 +99,9 @@ public class ClientControlledApplication implements IWamiApplication,
 			HttpSession session, Map<String, String> paramMap) {
 		this.appController = appController;
 		WamiRelay wamiRelay = (WamiRelay) appController;
+		messageController = wamiRelay;
 		recognizer = wamiRelay.getRecognizer();
+		wireFormat = wamiRelay.getWireFormat();
 		configure(paramMap);
 	}
 
@@ -106,8 +117,7 @@ public class ClientControlledApplication implements IWamiApplication,
 				aggregator.update(result);
 			} else {
 				// Send the rec results directly
-				Document recresult = getRecognitionResultDoc(result, false);
-				sendMessage(recresult);
+				sendMessage(getRecognitionResultMessage(result, false));
 			}
 
 			incrementalIndex++;
@@ -131,8 +141,7 @@ public class ClientControlledApplication implements IWamiApplication,
 		currentAggregate = kvs;
 		currentAggregateIsPartial = isPartial;
 
-		Document doc = getRecognitionResultDoc(currentRecResult, isPartial);
-		sendMessage(doc);
+		sendMessage(getRecognitionResultMessage(currentRecResult, isPartial));
 
 		if (!isPartial) {
 			aggregateIndex++;
@@ -140,9 +149,13 @@ public class ClientControlledApplication implements IWamiApplication,
 	}
 
 	public void sendMessage(Document doc) {
-		String thisMessage = XmlUtils.toXMLString(doc);
+		sendMessage(XmlMessageWriter.toString(doc.getDocumentElement(),
+				wireFormat));
+	}
+
+	public void sendMessage(String thisMessage) {
 		if (!thisMessage.equals(lastMessageSent)) {
-			appController.sendMessage(doc);
+			sendToClient(thisMessage);
 			lastMessageSent = thisMessage;
 		}
 	}
@@ -203,12 +216,9 @@ public class ClientControlledApplication implements IWamiApplication,
 
 	private void handleRepoll(Element xmlRoot) {
 		System.out.println("Repolling");
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
-		root.setAttribute("type", "repoll");
-		root.setAttribute("timeout", xmlRoot.getAttribute("timeout"));
-		doc.appendChild(root);
-		appController.sendMessage(doc);
+		sendToClient(newMessage("reply")
+				.attribute("type", "repoll").attribute("timeout",
+						xmlRoot.getAttribute("timeout")).toXMLString());
 	}
 
 	private void handlePlayURL(Element xmlRoot) {
@@ -300,15 +310,13 @@ public class ClientControlledApplication implements IWamiApplication,
 	}
 
 	public void onFinishedPlayingAudio() {
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
-		root.setAttribute("type", "finishedplayingaudio");
-		doc.appendChild(root);
-		appController.sendMessage(doc);
+		sendToClient(newMessage("reply")
+				.attribute("type", "finishedplayingaudio").toXMLString());
 	}
 
 	public void onClosed() {
 		this.appController = null;
+		this.messageController = null;
 	}
 
 	protected void configure(Map<String, String> paramMap) {
@@ -362,15 +370,25 @@ public class ClientControlledApplication implements IWamiApplication,
 	protected void sendError(ErrorType errorType, String message) {
 		System.err.println("Sending ERROR: " + message);
 
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
+		sendToClient(newMessage("reply")
+				.attribute("type", "error").attribute("error_type",
+						errorType.toString()).attribute("message", message)
+				.toXMLString());
+	}
+
+	private XmlMessageWriter newMessage(String rootName) {
+		return XmlMessageWriter.newMessage(rootName, wireFormat);
+	}
 
-		root.setAttribute("type", "error");
-		root.setAttribute("error_type", errorType.toString());
-		root.setAttribute("message", message);
+	/**
+	 * The format the client wants messages in
+	 */
+	protected XmlMessageWriter.WireFormat getWireFormat() {
+		return wireFormat;
+	}
 
-		doc.appendChild(root);
-		appController.sendMessage(doc);
+	private void sendToClient(String message) {
+		messageController.sendMessage(message);
 	}
 
 	private List<Element> extractElementList(Element e, String name) {
@@ -384,27 +402,48 @@ public class ClientControlledApplication implements IWamiApplication,
 		return elements;
 	}
 
+	/**
+	 * The reply for a recognition result, as a DOM.
+	 * 
+	 * @deprecated Replies are no longer built from this. To customize them,
+	 *             override
+	 *             {@link #getRecognitionResultMessage(IRecognitionResult, boolean)}
+	 *             instead; a DOM can still be sent from there with
+	 *             {@link XmlMessageWriter#toString(Element, XmlMessageWriter.WireFormat)}.
+	 */
+	@Deprecated
 	protected Document getRecognitionResultDoc(IRecognitionResult result,
 			boolean isPartial) {
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = createRecognitionResultElement(doc, result, utteranceId,
+		String message = getRecognitionResultMessage(result, isPartial);
+		return JsonML.isJsonML(message) ? JsonML.toXMLDocument(message)
+				: XmlUtils.toXMLDocument(message);
+	}
+
+	/**
+	 * The reply sent for a recognition result, serialized in the client's
+	 * wire format (see {@link #getWireFormat()}). Subclasses override this to
+	 * customize the reply.
+	 */
+	protected String getRecognitionResultMessage(IRecognitionResult result,
+			boolean isPartial) {
+		XmlMessageWriter writer = newMessage("reply");
+		writeRecognitionResultAttributes(writer, result, utteranceId,
 				incrementalIndex);
 
 		for (int i = 0; i < result.getHyps().size(); i++) {
-			Element hyp = createHypElement(doc, result, i);
-			root.appendChild(hyp);
+			writeHypElement(writer, result, i);
 		}
 
-		doc.appendChild(root);
-		return doc;
+		return writer.toXMLString();
 	}
 
-	private Element createHypElement(Document doc, IRecognitionResult result,
-			int hypIndex) {
+	private void writeHypElement(XmlMessageWriter writer,
+			IRecognitionResult result, int hypIndex) {
 		if (!sendAggregates) {
 			// Send a simple hypothesis without aggregates
 			System.out.println("Creating hyp without aggregate.");
-			return createBasicHypElement(doc, result, hypIndex);
+			writeBasicHypElement(writer, result, hypIndex);
+			writer.endElement();
 		} else {
 			int startIndex;
 			List<LinkedHashMap<String, String>> aggregates;
@@ -423,61 +462,57 @@ public class ClientControlledApplication implements IWamiApplication,
 						false);
 			}
 
-			// Create a hypothesis with one or more aggregates
-			return createHypElement(doc, result, hypIndex, aggregates,
-					startIndex, currentAggregateIsPartial);
+			// Write a hypothesis with one or more aggregates
+			writeHypElement(writer, result, hypIndex, aggregates, startIndex,
+					currentAggregateIsPartial);
 		}
 	}
 
-	private static Element createRecognitionResultElement(Document doc,
-			IRecognitionResult result, int utteranceId, int incrementalIndex) {
-		Element e = doc.createElement("reply");
-		e.setAttribute("type", "recresult");
-		e.setAttribute("incremental", Boolean.toString(result.isIncremental()));
-		e.setAttribute("utt_id", Integer.toString(utteranceId));
-		e.setAttribute("incremental_index", Integer.toString(incrementalIndex));
-		return e;
+	private static void writeRecognitionResultAttributes(
+			XmlMessageWriter writer, IRecognitionResult result,
+			int utteranceId, int incrementalIndex) {
+		writer.attribute("type", "recresult");
+		writer.attribute("incremental", result.isIncremental());
+		writer.attribute("utt_id", utteranceId);
+		writer.attribute("incremental_index", incrementalIndex);
 	}
 
-	private static Element createBasicHypElement(Document doc,
+	/**
+	 * Writes the hyp element and its text, leaving the hyp open
+	 */
+	private static void writeBasicHypElement(XmlMessageWriter writer,
 			IRecognitionResult result, int index) {
 		String txtstr = result.getHyps().get(index);
-		Element hyp = doc.createElement("hyp");
-		Element text = doc.createElement("text");
-		text.setTextContent(txtstr);
-		hyp.setAttribute("index", Integer.toString(index));
-		hyp.appendChild(text);
-		return hyp;
+		writer.startElement("hyp").attribute("index", index);
+		writer.startElement("text").text(txtstr).endElement();
 	}
 
-	private static Element createHypElement(Document doc,
+	private static void writeHypElement(XmlMessageWriter writer,
 			IRecognitionResult result, int index,
 			List<LinkedHashMap<String, String>> aggregates,
 			int aggregateStartIndex, boolean lastAggregateIsPartial) {
-		Element hyp = createBasicHypElement(doc, result, index);
+		writeBasicHypElement(writer, result, index);
 
 		for (int i = 0; i < aggregates.size(); i++) {
 			Map<String, String> aggregate = aggregates.get(i);
-			Element e = doc.createElement("aggregate");
 
 			boolean isLastAggregate = (i == aggregates.size() - 1);
 			boolean isPartial = isLastAggregate && lastAggregateIsPartial;
 
 			int aggregateIndex = aggregateStartIndex + i;
-			e.setAttribute("index", Integer.toString(aggregateIndex));
-			e.setAttribute("partial", Boolean.toString(isPartial));
-
-			for (String key : aggregate.keySet()) {
-				Element kv = doc.createElement("kv");
-				kv.setAttribute("key", key);
-				kv.setAttribute("value", aggregate.get(key));
-				e.appendChild(kv);
+			writer.startElement("aggregate");
+			writer.attribute("index", aggregateIndex);
+			writer.attribute("partial", isPartial);
+
+			for (Map.Entry<String, String> kv : aggregate.entrySet()) {
+				writer.startElement("kv").attribute("key", kv.getKey())
+						.attribute("value", kv.getValue()).endElement();
 			}
 
-			hyp.appendChild(e);
+			writer.endElement();
 		}
 
-		return hyp;
+		writer.endElement();
 	}
 
 }
@@ -1,12 +1,18 @@
 package edu.mit.csail.sls.wami.jsapi;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -17,6 +23,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import edu.mit.csail.sls.wami.WamiConfig;
+import edu.mit.csail.sls.wami.util.CompressedContent;
+import edu.mit.csail.sls.wami.util.JsonML;
 import edu.mit.csail.sls.wami.util.Parameter;
 import edu.mit.csail.sls.wami.util.ServletUtils;
 import edu.mit.csail.sls.wami.util.XmlUtils;
@@ -30,17 +38,54 @@ import edu.mit.csail.sls.wami.util.XmlUtils;
  * /WEB-INF/lib/wami_audio_applet.jar. The javascript necessary for the JSAPI is
  * also accessible through this servlet.
  * 
+ * The static content is read and compressed once, when the servlet starts, so
+ * that the burst of page loads at the start of a session only costs the small
+ * per-session _wamiParams block spliced into wami.js. Static resources carry
+ * strong ETags for conditional GETs, and the applet jar is also served with
+ * Last-Modified and byte range support.
+ * 
+ * Subclasses may still override {@link #getRequestedResource},
+ * {@link #getJSAPI} or {@link #getUtils} to change what is served; the
+ * responses those methods produce are then built by calling them on each
+ * request, as before, rather than from the cache.
+ * 
  * @author imcgraw
  * 
  */
 public class WamiContentProxy extends HttpServlet {
+	private static final String JAR_RESOURCE = "/content/wami_audio_applet.jar";
+
+	private static final String JAR_PATH = "/WEB-INF/lib/wami_audio_applet.jar";
+
+	private static final String CONTENT_PACKAGE = "edu/mit/csail/sls/wami/content/";
+
+	private final ConcurrentMap<String, CompressedContent> contentCache = new ConcurrentHashMap<String, CompressedContent>();
+
+	private volatile StaticFile jar;
+
+	// Which of the extension points a subclass overrides
+	private boolean customResources;
+
+	private boolean customJSAPI;
+
+	private boolean customUtils;
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		customResources = isOverridden("getRequestedResource",
+				HttpServletRequest.class, String.class);
+		customJSAPI = isOverridden("getJSAPI", HttpServletRequest.class,
+				String.class);
+		customUtils = isOverridden("getUtils", HttpServletRequest.class);
+		getContent("utils.js");
+		getContent("app.js");
+		jar = loadJar();
+	}
 
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException {
-		response.setCharacterEncoding("UTF-8");
-
-		response.setContentType("text/html; char-set:UTF-8");
 		String requestURL = request.getRequestURL().toString();
 		String resource = requestURL.substring(requestURL.indexOf(request
 				.getContextPath())
@@ -52,45 +97,423 @@ public class WamiContentProxy extends HttpServlet {
 				response.setContentType("text/html");
 				response.getWriter().write(
 						"The requested resource is: " + resource);
+			} else if (customResources) {
+				sendRequestedResource(request, response, resource);
+			} else if ("/wami.js".equals(resource)) {
+				response.setContentType("text/javascript; charset=UTF-8");
+				sendContent(request, response, false,
+						getWamiJSAPI(request));
+			} else if (JAR_RESOURCE.equals(resource)) {
+				sendJar(request, response);
+			} else if ("/wami.xml".equals(resource)
+					|| "/content/wami.xml".equals(resource)) {
+				response.setContentType("text/xml; charset=UTF-8");
+				sendContent(request, response, false, CompressedContent
+						.forRequest(getUrls(request)));
+			} else if (resource.startsWith("/content/")) {
+				sendContentResource(request, response, resource
+						.substring("/content/".length()));
 			} else {
-				InputStream stream = getRequestedResource(request, resource);
-				if (stream == null) {
-					throw new RuntimeException(
-							"Could not find requested resource: " + resource);
-				}
-				
-				ServletUtils.sendStream(stream, response.getOutputStream());
+				response.sendError(HttpServletResponse.SC_NOT_FOUND,
+						"Could not find requested resource: " + resource);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	private void sendContentResource(HttpServletRequest request,
+			HttpServletResponse response, String resource) throws IOException {
+		CompressedContent content = resource.contains("..") ? null
+				: getContent(resource);
+		if (content == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Could not find requested resource: /content/" + resource);
+			return;
+		}
+
+		response.setContentType(getContentType(resource));
+		if (!resource.endsWith(".js")) {
+			sendContent(request, response, true, content);
+		} else if (customUtils) {
+			sendContent(request, response, true, CompressedContent
+					.forRequest(getUtils(request)), content);
+		} else {
+			sendContent(request, response, true, getContent("utils.js"),
+					CompressedContent.forRequest(getBaseURLScript(request)),
+					content);
+		}
+	}
+
+	/**
+	 * The uncached path, for a subclass which overrides
+	 * {@link #getRequestedResource}
+	 */
+	private void sendRequestedResource(HttpServletRequest request,
+			HttpServletResponse response, String resource) throws IOException {
+		InputStream stream = getRequestedResource(request, resource);
+		if (stream == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Could not find requested resource: " + resource);
+			return;
+		}
+
+		try {
+			response.setContentType(getContentType(resource));
+			response.setHeader("Cache-Control", "no-cache, no-store");
+			ServletUtils.sendStream(stream, response.getOutputStream());
+		} finally {
+			stream.close();
+		}
+	}
+
+	private String getContentType(String resource) {
+		if (resource.endsWith(".js")) {
+			return "text/javascript; charset=UTF-8";
+		} else if (resource.endsWith(".xml") || resource.endsWith(".xsd")) {
+			return "text/xml; charset=UTF-8";
+		} else if (resource.endsWith(".jar")) {
+			return "application/java-archive";
+		}
+
+		String mimeType = getServletContext().getMimeType(resource);
+		return mimeType == null ? "application/octet-stream" : mimeType;
+	}
+
+	/**
+	 * Whether this servlet's class, or one of its superclasses below
+	 * WamiContentProxy, declares the given method
+	 */
+	private boolean isOverridden(String name, Class<?>... parameterTypes) {
+		for (Class<?> c = getClass(); c != WamiContentProxy.class; c = c
+				.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(name, parameterTypes);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// keep looking
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The resource at the given path (relative to the context), or null if
+	 * there is none. Overriding this serves whatever it returns, uncached, in
+	 * place of all of this servlet's resources.
+	 */
 	protected InputStream getRequestedResource(HttpServletRequest request,
 			String resource) {
+		byte[] bytes;
 		if ("/wami.js".equals(resource)) {
-			return new ByteArrayInputStream(handleWamiJSAPIRequest(request)
-					.getBytes());
-		} else if ("/content/wami_audio_applet.jar".equals(resource)) {
-			return WamiConfig.getResourceAsStream(request.getSession()
-					.getServletContext(), "/WEB-INF/lib/wami_audio_applet.jar");
+			bytes = toBytes(handleWamiJSAPIRequest(request));
+		} else if (JAR_RESOURCE.equals(resource)) {
+			StaticFile jar = this.jar;
+			if (jar == null) {
+				return null;
+			}
+			bytes = jar.bytes;
 		} else if ("/wami.xml".equals(resource)
 				|| "/content/wami.xml".equals(resource)) {
-			return new ByteArrayInputStream(getUrls(request).getBytes());
-		} else if (resource.startsWith("/content")) {
-			String result = "";
-
+			bytes = toBytes(getUrls(request));
+		} else if (resource.startsWith("/content/")) {
+			resource = resource.substring("/content/".length());
+			CompressedContent content = resource.contains("..") ? null
+					: getContent(resource);
+			if (content == null) {
+				return null;
+			}
+			bytes = content.getBytes();
 			if (resource.endsWith(".js")) {
-				result += getUtils(request);
+				bytes = toBytes(getUtils(request) + toString(content));
+			}
+		} else {
+			return null;
+		}
+
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * Sends the concatenation of the given parts, gzipped if the client
+	 * accepts it. Cacheable responses get a strong ETag and may be answered
+	 * with 304 Not Modified; the others are marked as not to be stored.
+	 */
+	private void sendContent(HttpServletRequest request,
+			HttpServletResponse response, boolean cacheable,
+			CompressedContent... parts) throws IOException {
+		boolean gzip = acceptsGzip(request);
+		response.setHeader("Vary", "Accept-Encoding");
+
+		if (cacheable) {
+			String etag = CompressedContent.getETag(parts);
+			if (gzip) {
+				// a different representation needs a different strong ETag
+				etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+			}
+			response.setHeader("ETag", etag);
+			response.setHeader("Cache-Control", "no-cache");
+
+			if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		} else {
+			response.setHeader("Cache-Control", "no-cache, no-store");
+		}
+
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+			response.setContentLength((int) CompressedContent
+					.getGzipLength(parts));
+			CompressedContent.writeGzip(response.getOutputStream(), parts);
+		} else {
+			response.setContentLength((int) CompressedContent
+					.getLength(parts));
+			CompressedContent.write(response.getOutputStream(), parts);
+		}
+	}
+
+	private void sendJar(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		StaticFile jar = this.jar;
+		if (jar == null) {
+			jar = loadJar();
+			this.jar = jar;
+		}
+
+		if (jar == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Could not find requested resource: " + JAR_RESOURCE);
+			return;
+		}
+
+		int length = jar.bytes.length;
+		response.setContentType("application/java-archive");
+		response.setHeader("ETag", jar.etag);
+		response.setDateHeader("Last-Modified", jar.lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("Cache-Control", "no-cache");
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null ? matchesETag(ifNoneMatch, jar.etag)
+				: getDateHeader(request, "If-Modified-Since") >= jar.lastModified) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		int[] range = null;
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader != null && isRangeCurrent(request, jar)) {
+			range = parseRange(rangeHeader, length);
+		}
+
+		if (range == null) {
+			response.setContentLength(length);
+			response.getOutputStream().write(jar.bytes);
+		} else if (range.length == 0) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + length);
+		} else {
+			int rangeLength = range[1] - range[0] + 1;
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + range[0] + "-"
+					+ range[1] + "/" + length);
+			response.setContentLength(rangeLength);
+			response.getOutputStream().write(jar.bytes, range[0], rangeLength);
+		}
+	}
+
+	/**
+	 * A Range is only honored if an If-Range header, when present, still
+	 * names the current jar.
+	 */
+	private boolean isRangeCurrent(HttpServletRequest request, StaticFile jar) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(jar.etag);
+		}
+		return getDateHeader(request, "If-Range") == jar.lastModified;
+	}
+
+	/**
+	 * Parses a single byte range. Returns {first, last} for a satisfiable
+	 * range, an empty array for an unsatisfiable one, and null if the header
+	 * should be ignored (malformed, or several ranges, in which case the whole
+	 * entity is sent).
+	 */
+	static int[] parseRange(String rangeHeader, int length) {
+		rangeHeader = rangeHeader.trim();
+		if (!rangeHeader.startsWith("bytes=")) {
+			return null;
+		}
+
+		String spec = rangeHeader.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) {
+			return null;
+		}
+
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start, end;
+
+			if (first.length() == 0) {
+				// suffix range: the final N bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0) {
+					return new int[0];
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(first);
+				if (last.length() == 0) {
+					end = length - 1;
+				} else {
+					end = Long.parseLong(last);
+					if (end < start) {
+						return null;
+					}
+					end = Math.min(end, length - 1);
+				}
+			}
+
+			if (start >= length) {
+				return new int[0];
+			}
+			return new int[] { (int) start, (int) end };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean matchesETag(String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if ("*".equals(tag) || etag.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			if (!"gzip".equals(name) && !"x-gzip".equals(name)) {
+				continue;
 			}
 
-			resource = resource.replaceFirst("/content/", "");
-			result += getContentResourceAsString(resource);
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						return Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
 
-			return new ByteArrayInputStream(result.getBytes());
+	/**
+	 * Cached content from the content package, or null if there is no such
+	 * resource. Javascript is stored as text, on its own lines, since it is
+	 * concatenated with other scripts; anything else is stored as is.
+	 */
+	private CompressedContent getContent(String resource) {
+		CompressedContent content = contentCache.get(resource);
+		if (content != null) {
+			return content;
 		}
 
-		return null;
+		InputStream in = WamiContentProxy.class.getClassLoader()
+				.getResourceAsStream(CONTENT_PACKAGE + resource);
+		if (in == null) {
+			return null;
+		}
+
+		if (resource.endsWith(".js")) {
+			content = CompressedContent.fromString("\n"
+					+ ServletUtils.convertStreamToString(in, "UTF-8") + "\n");
+		} else {
+			try {
+				content = new CompressedContent(readBytes(in), System
+						.currentTimeMillis());
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		CompressedContent existing = contentCache.putIfAbsent(resource,
+				content);
+		return existing != null ? existing : content;
+	}
+
+	private StaticFile loadJar() {
+		ServletContext sc = getServletContext();
+		InputStream in = WamiConfig.getResourceAsStream(sc, JAR_PATH);
+		if (in == null) {
+			return null;
+		}
+
+		try {
+			long lastModified = 0;
+			URL url = sc.getResource(JAR_PATH);
+			if (url != null) {
+				lastModified = url.openConnection().getLastModified();
+			}
+			if (lastModified <= 0) {
+				lastModified = System.currentTimeMillis();
+			}
+
+			return new StaticFile(readBytes(in), lastModified);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ServletUtils.sendStream(in, out, 8192);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
 	}
 
 	private String getUrls(HttpServletRequest request) {
@@ -118,11 +541,8 @@ public class WamiContentProxy extends HttpServlet {
 	}
 
 	public String getContentResourceAsString(String resource) {
-		return "\n"
-				+ ServletUtils.convertStreamToString(WamiContentProxy.class
-						.getClassLoader().getResourceAsStream(
-								"edu/mit/csail/sls/wami/content/" + resource))
-				+ "\n";
+		CompressedContent content = getContent(resource);
+		return content == null ? null : toString(content);
 	}
 
 	public String createWamiSessionID(HttpServletRequest request) {
@@ -131,6 +551,42 @@ public class WamiContentProxy extends HttpServlet {
 	}
 
 	public String handleWamiJSAPIRequest(HttpServletRequest request) {
+		String wsessionid = startWamiSession(request);
+		try {
+			return getJSAPI(request, wsessionid);
+		} catch (IOException e) {
+			return getAlert("Error setting up WAMI javascript.");
+		}
+	}
+
+	/**
+	 * The javascript for wami.js: the cached utils.js and app.js around the
+	 * per-session configuration, unless a subclass builds it itself.
+	 */
+	private CompressedContent[] getWamiJSAPI(HttpServletRequest request) {
+		if (customJSAPI || customUtils) {
+			return new CompressedContent[] { CompressedContent
+					.forRequest(handleWamiJSAPIRequest(request)) };
+		}
+
+		String wsessionid = startWamiSession(request);
+		try {
+			return new CompressedContent[] {
+					getContent("utils.js"),
+					CompressedContent.forRequest(getBaseURLScript(request)
+							+ getConfigurationJSON(request, wsessionid)),
+					getContent("app.js") };
+		} catch (IOException e) {
+			return new CompressedContent[] { CompressedContent
+					.forRequest(getAlert("Error setting up WAMI javascript.")) };
+		}
+	}
+
+	/**
+	 * Set up the session for a client loading wami.js, and return the
+	 * wsessionid for its relay
+	 */
+	private String startWamiSession(HttpServletRequest request) {
 		HttpSession session = request.getSession();
 
 		Enumeration names = request.getHeaderNames();
@@ -143,49 +599,65 @@ public class WamiContentProxy extends HttpServlet {
 		// no browser test
 		session.setAttribute("passedBrowserTest", new Boolean(true));
 
-		String jsapi = "";
 		String wsessionid = createWamiSessionID(request);
 
 		String serveraddress = WamiConfig
 				.reconstructRequestURLandParams(request);
 		request.getSession().setAttribute("serverAddress", serveraddress);
 
-		try {
-			jsapi += getJSAPI(request, wsessionid);
-		} catch (IOException e) {
-			jsapi += getAlert("Error setting up WAMI javascript.");
-		}
+		// read by the relay, when it is created for this client
+		WamiConfig wc = WamiConfig.getConfiguration(getServletContext());
+		session.setAttribute("wireFormat", wc.getWireFormat(request));
 
-		return jsapi;
+		return wsessionid;
 	}
 
+	/**
+	 * The javascript for wami.js. Overriding this builds wami.js on each
+	 * request rather than from the cached scripts.
+	 */
 	protected String getJSAPI(HttpServletRequest request, String wsessionid)
 			throws IOException {
-		String result = getUtils(request);
-
-		result += getConfigurationJSON(request, wsessionid);
-		result += getContentResourceAsString("app.js");
-
-		return result;
+		return getUtils(request) + getConfigurationJSON(request, wsessionid)
+				+ getContentResourceAsString("app.js");
 	}
 
+	/**
+	 * utils.js, with the base URL, which starts wami.js and every other
+	 * script. Overriding this builds those scripts on each request rather
+	 * than from the cached ones.
+	 */
 	protected String getUtils(HttpServletRequest request) {
-		String baseURL = WamiConfig.getBaseURL(request);
-
-		String result = "";
-		result += getContentResourceAsString("utils.js");
-
-		result += "\n\n";
-		result += "Wami.getBaseURL = function () { return '" + baseURL + "'}";
-		result += "\n\n";
+		return getContentResourceAsString("utils.js")
+				+ getBaseURLScript(request);
+	}
 
-		return result;
+	private String getBaseURLScript(HttpServletRequest request) {
+		String baseURL = WamiConfig.getBaseURL(request);
+		return "\n\nWami.getBaseURL = function () { return '" + baseURL
+				+ "'}\n\n";
 	}
 
 	protected String getAlert(String message) {
 		return "alert('" + message + "');\n\n";
 	}
 
+	private static String toString(CompressedContent content) {
+		try {
+			return new String(content.getBytes(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private Map<String, String> getAppletParams(HttpServletRequest request,
 			String wsessionid) {
 		HttpSession session = request.getSession();
@@ -238,59 +710,81 @@ public class WamiContentProxy extends HttpServlet {
 			String wsessionid) throws IOException {
 		WamiConfig wc = WamiConfig.getConfiguration(getServletContext());
 
-		String result = "var _wamiParams = {\n";
-		result += "\t\"wsessionid\":\"" + wsessionid + "\",\n";
-		result += "\t\"controlUrl\":\""
-				+ wc.controlServletURL(request, wsessionid) + "\",\n";
-		result += "\t\"playUrl\":\"" + wc.audioServletURL(request, wsessionid)
-				+ "\",\n";
-		result += "\t\"recordUrl\":\""
-				+ wc.recordServletURL(request, wsessionid) + "\",\n";
-		result += getAppletJSON(request, wsessionid);
-		result += "}\n\n";
+		StringBuilder result = new StringBuilder("var _wamiParams = {\n");
+		appendProperty(result, "\t", "wsessionid", wsessionid);
+		appendProperty(result, "\t", "controlUrl", wc.controlServletURL(
+				request, wsessionid));
+		appendProperty(result, "\t", "playUrl", wc.audioServletURL(request,
+				wsessionid));
+		appendProperty(result, "\t", "recordUrl", wc.recordServletURL(
+				request, wsessionid));
+		appendProperty(result, "\t", "wireFormat", wc.getWireFormat(request)
+				.toString());
+		appendAppletJSON(result, request, wsessionid);
+		result.append("}\n\n");
 
 		// System.out.println("JSON FOR CONFIGURATION: \n" + result);
-		return result;
+		return result.toString();
 	}
 
-	private String getAppletJSON(HttpServletRequest request, String wsessionid) {
+	private void appendAppletJSON(StringBuilder result,
+			HttpServletRequest request, String wsessionid) {
 		WamiConfig wc = WamiConfig.getConfiguration(getServletContext());
 		Map<String, String> appletParams = getAppletParams(request, wsessionid);
-		String result = "";
 		// TODO: add back in playurl and recordurl for iphone
-		result += "\t\"applet\" : {\n";
-		result += "\t\t\"code\" : \"" + appletParams.get("CODE") + "\",\n";
-		result += "\t\t\"archive\" : \"" + appletParams.get("ARCHIVE")
-				+ "\",\n";
-		result += "\t\t\"name\" : \"" + appletParams.get("NAME") + "\",\n";
-		result += "\t\t\"width\" : \""
-				+ Integer.toString(wc.getAppletWidth(request)) + "\",\n";
-		result += "\t\t\"height\" : \""
-				+ Integer.toString(wc.getAppletHeight(request)) + "\",\n";
-		result += "\t\t\"params\" : ";
-		result += getParamsJSON(appletParams);
-		result += "\t}\n";
-
-		return result;
+		result.append("\t\"applet\" : {\n");
+		appendProperty(result, "\t\t", "code", appletParams.get("CODE"));
+		appendProperty(result, "\t\t", "archive", appletParams.get("ARCHIVE"));
+		appendProperty(result, "\t\t", "name", appletParams.get("NAME"));
+		appendProperty(result, "\t\t", "width", Integer.toString(wc
+				.getAppletWidth(request)));
+		appendProperty(result, "\t\t", "height", Integer.toString(wc
+				.getAppletHeight(request)));
+		result.append("\t\t\"params\" : ");
+		appendParamsJSON(result, appletParams);
+		result.append("\t}\n");
 	}
 
-	private String getParamsJSON(Map<String, String> params) {
-		String result = "[\n";
+	private void appendParamsJSON(StringBuilder result,
+			Map<String, String> params) {
+		result.append("[\n");
 
-		Object[] paramNames = params.keySet().toArray();
+		boolean first = true;
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (!first) {
+				result.append(",\n");
+			}
+			first = false;
 
-		for (int i = 0; i < paramNames.length; i++) {
-			String name = (String) paramNames[i];
-			String value = params.get(name);
+			result.append("\t\t\t{ \"name\" : ");
+			JsonML.quote(param.getKey(), result);
+			result.append(" , \"value\" : ");
+			JsonML.quote(String.valueOf(param.getValue()), result);
+			result.append(" }");
+		}
+		result.append("]\n");
+	}
 
-			result += "\t\t\t{ \"name\" : \"" + name + "\" , \"value\" : \""
-					+ value + "\" }";
+	private static void appendProperty(StringBuilder result, String indent,
+			String name, String value) {
+		result.append(indent).append('"').append(name).append("\":");
+		JsonML.quote(String.valueOf(value), result);
+		result.append(",\n");
+	}
 
-			if (i < paramNames.length - 1) {
-				result += ",\n";
-			}
+	/**
+	 * The applet jar, read once and kept in memory to serve ranges from.
+	 */
+	private static class StaticFile {
+		final byte[] bytes;
+		final long lastModified;
+		final String etag;
+
+		StaticFile(byte[] bytes, long lastModified) {
+			this.bytes = bytes;
+			this.lastModified = lastModified - lastModified % 1000;
+			this.etag = "\"" + Long.toHexString(this.lastModified) + "-"
+					+ Integer.toHexString(bytes.length) + "\"";
 		}
-		return result += "]\n";
 	}
-
 }
@@ -1,8 +1,8 @@
 package edu.mit.csail.sls.wami.jsapi;
 
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -16,24 +16,128 @@ import javax.servlet.http.HttpServletResponseWrapper;
 
 import edu.mit.csail.sls.wami.WamiConfig;
 
+/**
+ * Wraps replies to cross-site (jsxss=get) requests as JSONP: the reply becomes
+ * a javascript string passed to the requested callback. The reply is escaped
+ * and written through to the response as the servlet produces it rather than
+ * buffered and rewritten, so the container either sets the Content-Length
+ * from the bytes it has buffered or sends the reply chunked.
+ */
 public class WamiCrossSiteGetFilter implements Filter {
 
-	class CharResponseWrapper extends HttpServletResponseWrapper {
-		private CharArrayWriter output;
+	private boolean servlet3 = false;
 
-		@Override
-		public String toString() {
-			return output.toString();
-		}
+	static class JsonpResponseWrapper extends HttpServletResponseWrapper {
+		private final String callback;
+
+		private PrintWriter writer;
+
+		private PrintWriter out;
 
-		public CharResponseWrapper(HttpServletResponse response) {
+		public JsonpResponseWrapper(HttpServletResponse response,
+				String callback) {
 			super(response);
-			output = new CharArrayWriter();
+			this.callback = callback;
 		}
 
 		@Override
 		public PrintWriter getWriter() {
-			return new PrintWriter(output);
+			if (writer == null) {
+				writer = new PrintWriter(new JsonpWriter());
+			}
+			return writer;
+		}
+
+		// The script's headers are fixed, whatever the servlet asks for
+
+		@Override
+		public void setContentType(String type) {
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		/**
+		 * Writes the call up to the opening quote of its argument, the first
+		 * time there is something to write.
+		 */
+		private void start() throws IOException {
+			if (out == null) {
+				// note, you must set content type before getting the writer
+				getResponse().setContentType("text/javascript; charset=UTF-8");
+				out = getResponse().getWriter();
+				out.write(callback);
+				out.write("('");
+			}
+		}
+
+		/**
+		 * Closes the call once the servlet is done with the response.
+		 */
+		public void finish() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+			start();
+			out.write("');");
+			out.close();
+		}
+
+		private static String escape(char c) {
+			switch (c) {
+			case '\\':
+				return "\\\\";
+			case '\'':
+				return "\\'";
+			case '\n':
+				return "\\n";
+			case '\r':
+				return "\\r";
+			case '\u2028':
+				return "\\u2028";
+			case '\u2029':
+				return "\\u2029";
+			default:
+				return null;
+			}
+		}
+
+		private class JsonpWriter extends Writer {
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				start();
+
+				int end = off + len;
+				int run = off;
+				for (int i = off; i < end; i++) {
+					String escaped = escape(cbuf[i]);
+					if (escaped != null) {
+						out.write(cbuf, run, i - run);
+						out.write(escaped);
+						run = i + 1;
+					}
+				}
+				out.write(cbuf, run, end - run);
+			}
+
+			@Override
+			public void flush() {
+				if (out != null) {
+					out.flush();
+				}
+			}
+
+			@Override
+			public void close() {
+				// the servlet closing its writer doesn't end the script:
+				// finish() does, and leaving the response uncommitted until
+				// then lets the container set its Content-Length
+			}
 		}
 	}
 
@@ -52,39 +156,51 @@ public class WamiCrossSiteGetFilter implements Filter {
 		if ("get".equals(request.getParameter("jsxss"))) {
 			// System.out.println("XXS GET: " +
 			// WamiConfig.reconstructRequestURLandParams(request));
-			CharResponseWrapper wrapper = new CharResponseWrapper(
-					(HttpServletResponse) res);
+			String callback = request.getParameter("callback");
+			if (!isValidCallback(callback)) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"Invalid callback: " + callback);
+				return;
+			}
+
+			JsonpResponseWrapper wrapper = new JsonpResponseWrapper(response,
+					callback);
 
 			chain.doFilter(req, wrapper);
 
-			doResponseModifiction(request, response, wrapper);
+			if (servlet3 && request.isAsyncStarted()) {
+				// Asynchronous poll: the reply is wrapped when the request is
+				// dispatched back through this filter
+				return;
+			}
+
+			wrapper.finish();
 		} else {
 			chain.doFilter(req, res);
 		}
 	}
 
-	private void doResponseModifiction(HttpServletRequest request,
-			HttpServletResponse response, HttpServletResponse wrapper)
-			throws IOException {
-
-		PrintWriter out = response.getWriter();
-		String message = wrapper.toString();
-
-		// note, you must set content type before getting the writer
-		response.setContentType("text/javascript; charset=UTF-8");
-		message = message.replace("\\", "\\\\").replace("'", "\\'");
-		String callback = request.getParameter("callback");
-		String command = callback + "('" + message + "');";
-		System.out.println("Script: " + command);
-		out.print(command);
+	/**
+	 * The callback is echoed into a script, so only allow (dotted) names
+	 */
+	private static boolean isValidCallback(String callback) {
+		if (callback == null || callback.length() == 0) {
+			return false;
+		}
 
-		response.setContentLength(command.length());
-		out.close();
+		for (int i = 0; i < callback.length(); i++) {
+			char c = callback.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '$'
+					&& c != '.') {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public void init(FilterConfig config) throws ServletException {
-
+		servlet3 = config.getServletContext().getMajorVersion() >= 3;
 	}
 
 }
@@ -15,6 +15,7 @@ import java.io.UnsupportedEncodingException;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletRequest;
@@ -24,12 +25,8 @@ import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
 import edu.mit.csail.sls.wami.WamiServlet;
 import edu.mit.csail.sls.wami.relay.WamiRelay;
-import edu.mit.csail.sls.wami.util.XmlUtils;
 
 public class WamiCrossSitePostFilter implements Filter {
 	public static final String JAVASCRIPT_POST_ID = "WAMI_JAVASCRIPT_POST_ID_ATTRIBUTE_NAME";
@@ -66,7 +63,7 @@ public class WamiCrossSitePostFilter implements Filter {
 	}
 
 	class CustomServerInputStream extends ServletInputStream {
-		private InputStream in;
+		private ByteArrayInputStream in;
 
 		public CustomServerInputStream(String str) throws IOException {
 			super();
@@ -82,6 +79,29 @@ public class WamiCrossSitePostFilter implements Filter {
 		public void close() throws IOException {
 			in.close();
 		}
+
+		@Override
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setReadListener(ReadListener listener) {
+			// the whole message is already in memory
+			try {
+				if (!isFinished()) {
+					listener.onDataAvailable();
+				}
+				listener.onAllDataRead();
+			} catch (IOException e) {
+				listener.onError(e);
+			}
+		}
 	}
 
 	@Override
@@ -180,13 +200,10 @@ public class WamiCrossSitePostFilter implements Filter {
 	}
 
 	private void sendMessageProcessedConfirmation(HttpServletRequest request) {
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
-		root.setAttribute("type", "update_processed");
-		root.setAttribute("postID", request.getParameter("postID"));
-		doc.appendChild(root);
 		WamiRelay relay = WamiServlet.getRelay(request);
-		relay.sendMessage(doc);
+		relay.sendMessage(relay.newMessage("reply").attribute("type",
+				"update_processed").attribute("postID",
+				request.getParameter("postID")).toXMLString());
 	}
 
 	@Override
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -105,15 +106,32 @@ public class EventLoggerDaemonAdapter implements IEventLogger {
 	public void logUtterance(final AudioInputStream audioIn,
 			final long timestampMillis) throws EventLoggerException,
 			IOException {
-		eventLoggerService.submit(new Runnable() {
-			public void run() {
-				try {
-					logger.logUtterance(audioIn, timestampMillis);
-				} catch (Exception e) {
-					e.printStackTrace();
-					sc.log("Event Logger Error", e);
+		try {
+			eventLoggerService.submit(new Runnable() {
+				public void run() {
+					try {
+						logger.logUtterance(audioIn, timestampMillis);
+					} catch (Exception e) {
+						e.printStackTrace();
+						sc.log("Event Logger Error", e);
+					} finally {
+						// in case the logger failed before it could
+						closeQuietly(audioIn);
+					}
 				}
-			}
-		});
+			});
+		} catch (RejectedExecutionException e) {
+			// closed while the utterance was being handed over
+			closeQuietly(audioIn);
+			throw new EventLoggerException("Event logger is closed", e);
+		}
+	}
+
+	private static void closeQuietly(AudioInputStream audioIn) {
+		try {
+			audioIn.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
@@ -85,7 +85,10 @@ public interface IEventLogger {
 			throws EventLoggerException;
 
 	/**
-	 * Log a recorded utterance
+	 * Log a recorded utterance. The logger owns audioIn from this call on,
+	 * and must close it once it has read as much as it wants, whether it does
+	 * so before returning or later on another thread, and also if it fails.
+	 * Audio the stream holds is only reused once it is closed.
 	 * 
 	 * @param audioIn
 	 *            An input stream with the utterance to log
@@ -0,0 +1,286 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.recognition;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+import edu.mit.csail.sls.wami.WamiConfig;
+
+/**
+ * Runs recognitions on a fixed pool of worker threads, rather than on the
+ * threads that receive the audio. The upload side only buffers audio (see
+ * {@link edu.mit.csail.sls.wami.audio.AudioChunkStream}), so the number of
+ * recognitions talking to the recognizer backend at once is set by the
+ * <code>recognitionWorkers</code> relay setting instead of by however many
+ * uploads the container happens to be serving.
+ * 
+ * Recognitions beyond the workers wait in a queue of
+ * <code>recognitionQueueCapacity</code>; when that is full, new ones are
+ * rejected. With no workers configured, each recognition gets its own
+ * thread, as before, but is still counted.
+ * 
+ * The scheduler is stored in the servlet context as "recognitionScheduler".
+ * Its queue depth, wait times and counts are available from the getters,
+ * and are published over JMX (see {@link RecognitionSchedulerMBean}) as
+ * <code>edu.mit.csail.sls.wami:type=RecognitionScheduler,context="..."</code>
+ * with the servlet context's path, until the scheduler is closed.
+ */
+public class RecognitionScheduler implements RecognitionSchedulerMBean {
+	private final ThreadPoolExecutor workers;
+
+	private final int numWorkers;
+
+	private final AtomicLong numSubmitted = new AtomicLong();
+
+	private final AtomicLong numRejected = new AtomicLong();
+
+	private final AtomicLong numStarted = new AtomicLong();
+
+	private final AtomicLong numCompleted = new AtomicLong();
+
+	private final AtomicLong totalWaitTime = new AtomicLong();
+
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * the name this is registered under with the platform MBean server, or
+	 * null if it is not
+	 */
+	private volatile ObjectName objectName;
+
+	private RecognitionScheduler(int numWorkers, int queueCapacity) {
+		System.out.println("New RecognitionScheduler started with "
+				+ (numWorkers > 0 ? numWorkers + " worker(s)" : "no limit")
+				+ (numWorkers > 0 ? ", queue capacity " + queueCapacity : ""));
+		this.numWorkers = numWorkers;
+
+		ThreadFactory threads = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Recognition worker "
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		if (numWorkers > 0) {
+			BlockingQueue<Runnable> queue;
+			if (queueCapacity > 0) {
+				queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+			} else {
+				queue = new LinkedBlockingQueue<Runnable>();
+			}
+			workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0,
+					TimeUnit.MILLISECONDS, queue, threads);
+		} else {
+			workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+					TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threads);
+		}
+	}
+
+	/**
+	 * Queue a recognition. It should read its audio from a buffer which is
+	 * filled independently, since it may not start right away.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if all workers are busy and the queue is full
+	 */
+	public <T> Future<T> submit(final Callable<T> recognition) {
+		final long queuedAt = System.currentTimeMillis();
+
+		Callable<T> task = new Callable<T>() {
+			public T call() throws Exception {
+				recordWait(System.currentTimeMillis() - queuedAt);
+				try {
+					return recognition.call();
+				} finally {
+					numCompleted.incrementAndGet();
+				}
+			}
+		};
+
+		try {
+			Future<T> future = workers.submit(task);
+			numSubmitted.incrementAndGet();
+			return future;
+		} catch (RejectedExecutionException e) {
+			numRejected.incrementAndGet();
+			System.err.println("Recognition rejected: " + this);
+			throw e;
+		}
+	}
+
+	private void recordWait(long wait) {
+		numStarted.incrementAndGet();
+		totalWaitTime.addAndGet(wait);
+		long max;
+		while (wait > (max = maxWaitTime.get())
+				&& !maxWaitTime.compareAndSet(max, wait)) {
+		}
+	}
+
+	/**
+	 * Publish this scheduler's statistics over JMX. Monitoring is optional,
+	 * so failing to is only logged.
+	 */
+	private void register(ServletContext sc) {
+		try {
+			ObjectName name = new ObjectName(
+					"edu.mit.csail.sls.wami:type=RecognitionScheduler,context="
+							+ ObjectName.quote(sc.getContextPath()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					name);
+			objectName = name;
+		} catch (JMException e) {
+			sc.log("Could not register the recognition scheduler with JMX", e);
+		}
+	}
+
+	/**
+	 * Stops the workers, interrupting running recognitions, and withdraws
+	 * the statistics from JMX
+	 */
+	public void close() {
+		workers.shutdownNow();
+
+		if (objectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * the number of worker threads (0 if there is no limit)
+	 */
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * the number of recognitions running right now
+	 */
+	public int getNumActive() {
+		return workers.getActiveCount();
+	}
+
+	/**
+	 * the number of recognitions waiting for a worker
+	 */
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	public long getNumSubmitted() {
+		return numSubmitted.get();
+	}
+
+	public long getNumRejected() {
+		return numRejected.get();
+	}
+
+	public long getNumCompleted() {
+		return numCompleted.get();
+	}
+
+	/**
+	 * mean time (in ms) recognitions waited for a worker
+	 */
+	public long getAverageWaitTime() {
+		long started = numStarted.get();
+		return started == 0 ? 0 : totalWaitTime.get() / started;
+	}
+
+	/**
+	 * longest time (in ms) a recognition waited for a worker
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RecognitionScheduler[workers=" + numWorkers + " active="
+				+ getNumActive() + " queued=" + getQueueDepth()
+				+ " submitted=" + getNumSubmitted() + " rejected="
+				+ getNumRejected() + " completed=" + getNumCompleted()
+				+ " avgWait=" + getAverageWaitTime() + "ms maxWait="
+				+ getMaxWaitTime() + "ms]";
+	}
+
+	/**
+	 * Get the scheduler for this servlet context, creating it if need be
+	 */
+	public static RecognitionScheduler getScheduler(ServletContext sc) {
+		RecognitionScheduler scheduler = (RecognitionScheduler) sc
+				.getAttribute("recognitionScheduler");
+
+		if (scheduler != null) {
+			return scheduler;
+		}
+
+		synchronized (sc) {
+			scheduler = (RecognitionScheduler) sc
+					.getAttribute("recognitionScheduler");
+
+			if (scheduler == null) {
+				WamiConfig wc = WamiConfig.getConfiguration(sc);
+				scheduler = new RecognitionScheduler(wc
+						.getRecognitionWorkers(), wc
+						.getRecognitionQueueCapacity());
+				scheduler.register(sc);
+				sc.setAttribute("recognitionScheduler", scheduler);
+			}
+		}
+
+		return scheduler;
+	}
+}
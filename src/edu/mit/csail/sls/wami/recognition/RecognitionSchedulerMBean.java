@@ -0,0 +1,65 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.recognition;
+
+/**
+ * What a {@link RecognitionScheduler} reports over JMX, for monitoring how
+ * far behind the recognition workers are
+ */
+public interface RecognitionSchedulerMBean {
+	/**
+	 * the number of worker threads (0 if there is no limit)
+	 */
+	public int getNumWorkers();
+
+	/**
+	 * the number of recognitions running right now
+	 */
+	public int getNumActive();
+
+	/**
+	 * the number of recognitions waiting for a worker
+	 */
+	public int getQueueDepth();
+
+	public long getNumSubmitted();
+
+	public long getNumRejected();
+
+	public long getNumCompleted();
+
+	/**
+	 * mean time (in ms) recognitions waited for a worker
+	 */
+	public long getAverageWaitTime();
+
+	/**
+	 * longest time (in ms) a recognition waited for a worker
+	 */
+	public long getMaxWaitTime();
+}
@@ -0,0 +1,555 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.recognition;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.sound.sampled.AudioInputStream;
+
+import edu.mit.csail.sls.wami.WamiConfig;
+import edu.mit.csail.sls.wami.recognition.exceptions.RecognizerException;
+import edu.mit.csail.sls.wami.recognition.lm.LanguageModel;
+
+/**
+ * Keeps a number of recognizers, created from the recognizer in config.xml,
+ * ready for new relays. Creating a recognizer can be slow (for the portal
+ * recognizer it means a session RPC, and possibly a grammar upload), so this
+ * moves that cost off of the first request of each user: a relay is handed
+ * an idle recognizer straight away, and the pool is topped up in the
+ * background.
+ * 
+ * Relays normally configure their recognizer (with dynamic parameters and a
+ * grammar), so when a relay destroys a pooled recognizer it is kept along
+ * with the configuration it was given. A relay is always handed an
+ * unconfigured recognizer, but each time it configures it, an idle
+ * recognizer which already has the resulting configuration is swapped in, if
+ * there is one, instead of making the call. Applications which configure
+ * every relay the same way thus upload their grammar once per pooled
+ * recognizer rather than once per relay. A recognizer is not reused if a
+ * configuration call or a recognition on it failed, if it was destroyed
+ * mid recognition, or if its static parameters were changed.
+ * 
+ * Idle recognizers which have not been used for a while are destroyed, in
+ * the background, in case the recognition server has given up on them.
+ */
+public class RecognizerPool {
+	/**
+	 * Idle recognizers older than this are destroyed rather than handed out,
+	 * in case the recognition server has given up on them
+	 */
+	private static final long MAX_IDLE_TIME = 10 * 60 * 1000;
+
+	/**
+	 * How often idle recognizers are checked for age
+	 */
+	private static final long EVICTION_INTERVAL = 60 * 1000;
+
+	private ServletContext sc;
+
+	private int size;
+
+	private String className;
+
+	private Map<String, String> params;
+
+	/** unconfigured recognizers, ready for new relays */
+	private BlockingQueue<IdleRecognizer> idle = new LinkedBlockingQueue<IdleRecognizer>();
+
+	/**
+	 * configured recognizers returned by relays, oldest first, at most size
+	 * of them. Guarded by this.
+	 */
+	private LinkedList<IdleRecognizer> configured = new LinkedList<IdleRecognizer>();
+
+	/** the number of recognizers being created in the background */
+	private int numPending = 0;
+
+	private volatile boolean closed = false;
+
+	private ScheduledExecutorService refiller = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RecognizerPool refill");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private RecognizerPool(ServletContext sc, int size, String className,
+			Map<String, String> params) {
+		System.out.println("New RecognizerPool started for " + size + " "
+				+ className + " recognizer(s)");
+		this.sc = sc;
+		this.size = size;
+		this.className = className;
+		this.params = params;
+		refill();
+
+		refiller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evict();
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Take an unconfigured recognizer from the pool, or if none is ready,
+	 * create one on this thread. Either way, it is replaced in the background.
+	 */
+	public IRecognizer take() throws RecognizerException {
+		IdleRecognizer entry;
+		IRecognizer rec = null;
+
+		while (rec == null && (entry = idle.poll()) != null) {
+			if (!entry.isStale(System.currentTimeMillis())) {
+				rec = entry.recognizer;
+			} else {
+				destroyQuietly(entry.recognizer);
+			}
+		}
+
+		refill();
+
+		if (rec == null) {
+			System.out.println("RecognizerPool empty, creating recognizer");
+			rec = create();
+		}
+
+		return rec != null ? new PooledRecognizer(rec) : null;
+	}
+
+	/**
+	 * Destroys the idle recognizers, and stops refilling the pool
+	 */
+	public void close() {
+		closed = true;
+		refiller.shutdownNow();
+
+		IdleRecognizer entry;
+		while ((entry = idle.poll()) != null) {
+			destroyQuietly(entry.recognizer);
+		}
+
+		List<IdleRecognizer> removed;
+		synchronized (this) {
+			removed = new LinkedList<IdleRecognizer>(configured);
+			configured.clear();
+		}
+		for (IdleRecognizer e : removed) {
+			destroyQuietly(e.recognizer);
+		}
+	}
+
+	private IRecognizer create() throws RecognizerException {
+		WamiConfig wc = WamiConfig.getConfiguration(sc);
+		return wc.createRecognizer(sc, null, className, params);
+	}
+
+	/**
+	 * Schedule enough background creations to bring the pool back to size
+	 */
+	private synchronized void refill() {
+		while (!closed && idle.size() + numPending < size) {
+			numPending++;
+			refiller.execute(new Runnable() {
+				public void run() {
+					try {
+						IRecognizer rec = create();
+						if (rec != null) {
+							recycle(rec, Configuration.NONE);
+						}
+					} catch (RecognizerException e) {
+						e.printStackTrace();
+					} finally {
+						synchronized (RecognizerPool.this) {
+							numPending--;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Destroy the idle recognizers which have not been used for too long, and
+	 * replace them. Runs on the refill thread.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+
+		for (IdleRecognizer entry : idle) {
+			// take() may have polled it in the meantime
+			if (entry.isStale(now) && idle.remove(entry)) {
+				destroyQuietly(entry.recognizer);
+			}
+		}
+
+		List<IdleRecognizer> removed = new LinkedList<IdleRecognizer>();
+		synchronized (this) {
+			for (Iterator<IdleRecognizer> it = configured.iterator(); it
+					.hasNext();) {
+				IdleRecognizer entry = it.next();
+				if (entry.isStale(now)) {
+					it.remove();
+					removed.add(entry);
+				}
+			}
+		}
+		for (IdleRecognizer entry : removed) {
+			destroyQuietly(entry.recognizer);
+		}
+
+		refill();
+	}
+
+	/**
+	 * Keep a recognizer which has the given configuration for reuse
+	 */
+	private void recycle(IRecognizer rec, Configuration configuration) {
+		if (closed) {
+			destroyQuietly(rec);
+			return;
+		}
+
+		if (configuration.isEmpty()) {
+			if (idle.size() >= size) {
+				destroyQuietly(rec);
+			} else {
+				idle.add(new IdleRecognizer(rec, configuration));
+			}
+			return;
+		}
+
+		IdleRecognizer oldest = null;
+		synchronized (this) {
+			configured.add(new IdleRecognizer(rec, configuration));
+			if (configured.size() > size) {
+				oldest = configured.removeFirst();
+			}
+		}
+
+		if (oldest != null) {
+			destroyQuietly(oldest.recognizer);
+		}
+	}
+
+	/**
+	 * Take an idle recognizer with exactly the given configuration, if there
+	 * is one
+	 */
+	private synchronized IRecognizer takeConfigured(Configuration configuration) {
+		long now = System.currentTimeMillis();
+		for (Iterator<IdleRecognizer> it = configured.descendingIterator(); it
+				.hasNext();) {
+			IdleRecognizer entry = it.next();
+			if (!entry.isStale(now)
+					&& entry.configuration.equals(configuration)) {
+				it.remove();
+				return entry.recognizer;
+			}
+		}
+
+		return null;
+	}
+
+	private static void destroyQuietly(IRecognizer rec) {
+		try {
+			rec.destroy();
+		} catch (RecognizerException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Get the pool for this servlet context, creating (and starting to fill)
+	 * it if need be
+	 */
+	public static RecognizerPool getPool(ServletContext sc) {
+		RecognizerPool pool = (RecognizerPool) sc
+				.getAttribute("recognizerPool");
+
+		if (pool != null) {
+			return pool;
+		}
+
+		synchronized (sc) {
+			pool = (RecognizerPool) sc.getAttribute("recognizerPool");
+
+			if (pool == null) {
+				sc.log("Creating Recognizer Pool");
+				WamiConfig wc = WamiConfig.getConfiguration(sc);
+				pool = new RecognizerPool(sc, wc.getRecognizerPoolSize(), wc
+						.getClassAttribute("recognizer"), wc
+						.getParameters("recognizer"));
+				sc.setAttribute("recognizerPool", pool);
+			}
+		}
+
+		return pool;
+	}
+
+	private static class IdleRecognizer {
+		private IRecognizer recognizer;
+
+		private Configuration configuration;
+
+		private long since = System.currentTimeMillis();
+
+		public IdleRecognizer(IRecognizer recognizer,
+				Configuration configuration) {
+			this.recognizer = recognizer;
+			this.configuration = configuration;
+		}
+
+		public boolean isStale(long now) {
+			return now - since >= MAX_IDLE_TIME;
+		}
+	}
+
+	/**
+	 * The dynamic parameters and language model set on a recognizer since it
+	 * was created. Language models are compared with equals().
+	 */
+	private static class Configuration {
+		static final Configuration NONE = new Configuration(
+				Collections.<String, String> emptyMap(), null);
+
+		private final Map<String, String> dynamicParameters;
+
+		private final LanguageModel languageModel;
+
+		private Configuration(Map<String, String> dynamicParameters,
+				LanguageModel languageModel) {
+			this.dynamicParameters = dynamicParameters;
+			this.languageModel = languageModel;
+		}
+
+		Configuration withDynamicParameter(String name, String value) {
+			SortedMap<String, String> map = new TreeMap<String, String>(
+					dynamicParameters);
+			map.put(name, value);
+			return new Configuration(map, languageModel);
+		}
+
+		Configuration withLanguageModel(LanguageModel model) {
+			return new Configuration(dynamicParameters, model);
+		}
+
+		boolean isEmpty() {
+			return dynamicParameters.isEmpty() && languageModel == null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Configuration)) {
+				return false;
+			}
+
+			Configuration c = (Configuration) o;
+			return dynamicParameters.equals(c.dynamicParameters)
+					&& (languageModel == null ? c.languageModel == null
+							: languageModel.equals(c.languageModel));
+		}
+
+		@Override
+		public int hashCode() {
+			return dynamicParameters.hashCode() * 31
+					+ (languageModel == null ? 0 : languageModel.hashCode());
+		}
+	}
+
+	/**
+	 * The recognizer handed to a relay. Configuring it may swap in an idle
+	 * recognizer which is already configured that way, and destroying it
+	 * returns the underlying recognizer to the pool, if that is safe.
+	 */
+	private class PooledRecognizer implements IRecognizer {
+		private IRecognizer rec;
+
+		/** what has been set on rec, unless modified */
+		private Configuration configuration = Configuration.NONE;
+
+		/** whether rec's state is no longer known */
+		private boolean modified = false;
+
+		private int numRecognizing = 0;
+
+		private boolean destroyed = false;
+
+		public PooledRecognizer(IRecognizer rec) {
+			this.rec = rec;
+		}
+
+		public void setParameters(ServletContext sc, Map<String, String> map)
+				throws RecognizerException {
+			markModified();
+			current().setParameters(sc, map);
+		}
+
+		public void setDynamicParameter(String name, String value)
+				throws RecognizerException {
+			Configuration target = configuration().withDynamicParameter(name,
+					value);
+			if (switchTo(target)) {
+				return;
+			}
+
+			try {
+				current().setDynamicParameter(name, value);
+			} catch (RecognizerException e) {
+				markModified();
+				throw e;
+			}
+			configured(target);
+		}
+
+		public void setLanguageModel(LanguageModel model)
+				throws RecognizerException {
+			Configuration target = configuration().withLanguageModel(model);
+			if (switchTo(target)) {
+				return;
+			}
+
+			try {
+				current().setLanguageModel(model);
+			} catch (RecognizerException e) {
+				markModified();
+				throw e;
+			}
+			configured(target);
+		}
+
+		public void recognize(AudioInputStream audioIn,
+				IRecognitionListener listener) throws RecognizerException,
+				IOException {
+			IRecognizer r;
+			synchronized (this) {
+				numRecognizing++;
+				r = rec;
+			}
+
+			try {
+				r.recognize(audioIn, listener);
+			} catch (RecognizerException e) {
+				markModified();
+				throw e;
+			} finally {
+				synchronized (this) {
+					numRecognizing--;
+				}
+			}
+		}
+
+		public void destroy() throws RecognizerException {
+			boolean reusable;
+
+			synchronized (this) {
+				if (destroyed) {
+					return;
+				}
+				destroyed = true;
+				reusable = !modified && numRecognizing == 0;
+			}
+
+			if (reusable) {
+				recycle(rec, configuration);
+			} else {
+				rec.destroy();
+			}
+		}
+
+		/**
+		 * Make rec have the target configuration without configuring it: it
+		 * may already have it, or an idle recognizer which has it may take its
+		 * place (rec then goes back to the pool as it is).
+		 * 
+		 * @return false if rec must be configured
+		 */
+		private boolean switchTo(Configuration target) {
+			IRecognizer previous;
+			Configuration previousConfiguration;
+
+			synchronized (this) {
+				if (modified || destroyed) {
+					return false;
+				}
+
+				if (target.equals(configuration)) {
+					return true;
+				}
+
+				if (numRecognizing > 0) {
+					return false;
+				}
+
+				IRecognizer match = takeConfigured(target);
+				if (match == null) {
+					return false;
+				}
+
+				previous = rec;
+				previousConfiguration = configuration;
+				rec = match;
+				configuration = target;
+			}
+
+			recycle(previous, previousConfiguration);
+			return true;
+		}
+
+		private synchronized Configuration configuration() {
+			return configuration;
+		}
+
+		private synchronized IRecognizer current() {
+			return rec;
+		}
+
+		private synchronized void configured(Configuration target) {
+			configuration = target;
+		}
+
+		private synchronized void markModified() {
+			modified = true;
+		}
+	}
+}
@@ -83,4 +83,28 @@ public class JsgfGrammar implements LanguageModel {
 	public String getDictionaryLanguage() {
 		return dictionaryLanguage;
 	}
+
+	/**
+	 * Grammars are equal if they have the same text and dictionary language,
+	 * so that a recognizer which already has this grammar can be reused (see
+	 * {@link edu.mit.csail.sls.wami.recognition.RecognizerPool})
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof JsgfGrammar)) {
+			return false;
+		}
+
+		JsgfGrammar g = (JsgfGrammar) o;
+		return (grammar == null ? g.grammar == null : grammar.equals(g.grammar))
+				&& (dictionaryLanguage == null ? g.dictionaryLanguage == null
+						: dictionaryLanguage.equals(g.dictionaryLanguage));
+	}
+
+	@Override
+	public int hashCode() {
+		return (grammar == null ? 0 : grammar.hashCode()) * 31
+				+ (dictionaryLanguage == null ? 0 : dictionaryLanguage
+						.hashCode());
+	}
 }
@@ -32,6 +32,10 @@ import java.util.Date;
 @SuppressWarnings("serial")
 public class ReachedCapacityException extends InitializationException {
 	Date nextAvailable = null;
+
+	int position = 0;
+
+	long estimatedWait = -1;
 	
 	public ReachedCapacityException(Date nextAvailable) {
 		super();
@@ -43,6 +47,20 @@ public class ReachedCapacityException extends InitializationException {
 		this.nextAvailable = nextAvailable;
 	}
 
+	/**
+	 * @param position
+	 *            the (1-based) place of the client in the admission waitlist
+	 * @param estimatedWait
+	 *            roughly how long (in ms) until the client is admitted
+	 */
+	public ReachedCapacityException(String message, Date nextAvailable,
+			int position, long estimatedWait) {
+		super(message);
+		this.nextAvailable = nextAvailable;
+		this.position = position;
+		this.estimatedWait = estimatedWait;
+	}
+
 	public ReachedCapacityException(Throwable cause) {
 		super(cause);
 	}
@@ -54,4 +72,18 @@ public class ReachedCapacityException extends InitializationException {
 	public Date getNextAvailableTime() {
 		return nextAvailable;
 	}
+
+	/**
+	 * The client's place in the admission waitlist, or 0 if it is not in one
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Estimated time (in ms) until the client is admitted, or -1 if unknown
+	 */
+	public long getEstimatedWait() {
+		return estimatedWait;
+	}
 }
@@ -28,31 +28,101 @@
 package edu.mit.csail.sls.wami.relay;
 
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.Vector;
 import java.util.Map.Entry;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
 
 import edu.mit.csail.sls.wami.WamiConfig;
-import edu.mit.csail.sls.wami.util.ServletUtils;
 
 /**
- * Manages all the relays for the servlet.
+ * Manages all the relays for the servlet. Relays are kept in a concurrent map
+ * so that looking up an existing relay (which happens on every poll, post and
+ * recording) never waits on relay creation or the timeout sweep. The number
+ * of relays is tracked separately so that the capacity check and the insert
+ * can be made atomic without a global lock.
+ * 
+ * Expiry is driven by a queue of per-relay deadlines rather than a periodic
+ * sweep, so the timeout thread only ever wakes up for relays which are due.
+ * The same queue schedules keepalives: a client whose poll has been
+ * outstanding for nearly as long as an intermediary will leave an idle
+ * connection open is sent an empty reply, so that it polls again.
+ * 
+ * When all relays are in use, clients wait their turn in a first come, first
+ * served waitlist rather than simply being turned away: capacity freed by a
+ * relay going away is held for the client at the head of the list until it
+ * next checks in.
  */
 public class RelayManager {
 	/**
 	 * parameterized via xml
 	 */
-	private HashMap<String, WamiRelay> activeRelays = new HashMap<String, WamiRelay>();
+	private ConcurrentMap<String, WamiRelay> activeRelays = new ConcurrentHashMap<String, WamiRelay>();
+
+	/**
+	 * The number of entries in activeRelays. Capacity is reserved here before a
+	 * relay is inserted, and released after one is removed.
+	 */
+	private AtomicInteger numActiveRelays = new AtomicInteger(0);
 
 	private int maxActiveRelays;
 
-	private long nextTimeout;
+	/**
+	 * Entries ordered by the earliest time a relay could time out or need a
+	 * keepalive. Sending messages only moves those times later, so entries are
+	 * not updated in place: when an entry comes due before its relay has
+	 * actually expired, it is rescheduled for the relay's current deadline.
+	 * Starting a poll can bring a keepalive forward, in which case a new entry
+	 * is queued and the old one is left to be skipped when it comes due.
+	 */
+	private DelayQueue<RelayDeadline> deadlines = new DelayQueue<RelayDeadline>();
+
+	/** the live entry in deadlines for each relay, by wsessionid */
+	private ConcurrentMap<String, RelayDeadline> scheduled = new ConcurrentHashMap<String, RelayDeadline>();
+
+	private Thread timeoutThread;
+
+	/**
+	 * Relay initializations in progress, by wsessionid
+	 */
+	private ConcurrentMap<String, FutureTask<WamiRelay>> initializing = new ConcurrentHashMap<String, FutureTask<WamiRelay>>();
+
+	/**
+	 * How often a client in the waitlist is asked to check in. A client which
+	 * has not done so for a few of these intervals is dropped from the list.
+	 */
+	public static final long WAITLIST_CHECK_INTERVAL = 10000;
+
+	private static final long TICKET_TIMEOUT = 3 * WAITLIST_CHECK_INTERVAL;
+
+	/**
+	 * wsessionids waiting for a relay, in order of arrival. Guarded by itself.
+	 */
+	private LinkedHashMap<String, Ticket> waitlist = new LinkedHashMap<String, Ticket>();
+
+	/** the size of waitlist, readable without the lock */
+	private AtomicInteger numWaiting = new AtomicInteger(0);
+
+	/** wsessionids whose relay was created from a granted ticket */
+	private ConcurrentMap<String, Boolean> admittedFromWaitlist = new ConcurrentHashMap<String, Boolean>();
+
+	private volatile long lastDeparture = 0;
+
+	/** moving average of the time between relays going away */
+	private volatile long averageDepartureInterval = 0;
 
 	/**
 	 * timeout in milleseconds (set in config.xml);
@@ -61,39 +131,62 @@ public class RelayManager {
 
 	private long noPollFromClientTimeout;
 
+	/**
+	 * how long a poll may be outstanding before the client is sent a keepalive
+	 * (0 for never)
+	 */
+	private long keepaliveInterval;
+
 	private ServletContext sc;
 
-	public synchronized List<WamiRelay> getActiveRelays() {
-		List<WamiRelay> relays = new Vector<WamiRelay>();
-		Iterator<WamiRelay> it = activeRelays.values().iterator();
-		while (it.hasNext()) {
-			relays.add(it.next());
-		}
-		return relays;
+	public List<WamiRelay> getActiveRelays() {
+		return new Vector<WamiRelay>(activeRelays.values());
 	}
 
 	private RelayManager(int maxActiveRelays, long relayTimeout,
-			long noPollFromClientTimeout, ServletContext servletContext) {
+			long noPollFromClientTimeout, long keepaliveInterval,
+			ServletContext servletContext) {
 		System.out.println("New RelayManager started for " + maxActiveRelays
 				+ " simulteanous active relays");
 		this.maxActiveRelays = maxActiveRelays;
 		this.timeout = relayTimeout;
 		this.noPollFromClientTimeout = noPollFromClientTimeout;
+		this.keepaliveInterval = keepaliveInterval;
 		this.sc = servletContext;
-		new Thread(new TimeoutThread()).start();
+		timeoutThread = new Thread(new TimeoutThread());
+		timeoutThread.setDaemon(true);
+		timeoutThread.start();
 	}
 
-	public synchronized void remove(WamiRelay relay) {
+	public void remove(WamiRelay relay) {
 		debugActive("About to remove relay " + relay.getWamiSessionID());
-		activeRelays.remove(relay.getWamiSessionID());
+		removeRelay(relay.getWamiSessionID(), relay);
 		debugActive("Removed relay " + relay.getWamiSessionID());
 	}
 
+	/**
+	 * Removes the relay only if it is still the one registered under the
+	 * given id (it may have been replaced by a page reload in the meantime)
+	 */
+	private boolean removeRelay(String wsessionid, WamiRelay relay) {
+		if (wsessionid != null && activeRelays.remove(wsessionid, relay)) {
+			RelayDeadline entry = scheduled.get(wsessionid);
+			if (entry != null && entry.relay == relay) {
+				scheduled.remove(wsessionid, entry);
+			}
+			recordDeparture();
+			releaseCapacity();
+			return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * This is *not* perfect, because you should be immediately adding a relay
 	 * after asking. But should suffice for now
 	 */
-	public synchronized boolean isCapacityAvailable() {
+	public boolean isCapacityAvailable() {
 		return isCapacityAvailable(null);
 	}
 
@@ -101,91 +194,386 @@ public class RelayManager {
 	 * Check if capacity is available, assuming we were to remove the passed in
 	 * relay (this is useful for page reloads)
 	 */
-	public synchronized boolean isCapacityAvailable(WamiRelay relay) {
-		int activeSize = activeRelays.size();
+	public boolean isCapacityAvailable(WamiRelay relay) {
+		int activeSize = numActiveRelays.get();
 
-		debugActive("Checking capacity");
-		if (relay != null && activeRelays.values().contains(relay)) {
+		if (relay != null && activeRelays.containsValue(relay)) {
 			activeSize--; // assume this one will be removed
 		}
 		return activeSize < maxActiveRelays;
 	}
 
-	public synchronized void addRelay(WamiRelay relay, String wsessionid)
+	/**
+	 * Atomically claim one unit of capacity, if any is left
+	 */
+	private boolean reserveCapacity() {
+		while (true) {
+			int current = numActiveRelays.get();
+			if (current >= maxActiveRelays) {
+				return false;
+			}
+			if (numActiveRelays.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back a unit of capacity, handing it straight to the waitlist if
+	 * anyone is in it
+	 */
+	private void releaseCapacity() {
+		numActiveRelays.decrementAndGet();
+
+		if (numWaiting.get() > 0) {
+			synchronized (waitlist) {
+				grantTickets(System.currentTimeMillis());
+			}
+		}
+	}
+
+	private void recordDeparture() {
+		long now = System.currentTimeMillis();
+		long last = lastDeparture;
+		lastDeparture = now;
+
+		if (last > 0) {
+			long interval = now - last;
+			long average = averageDepartureInterval;
+			averageDepartureInterval = (average == 0) ? interval
+					: (7 * average + interval) / 8;
+		}
+	}
+
+	/**
+	 * Claim capacity for a new relay. Unless nobody is waiting and there is
+	 * room, the id joins (or keeps its place in) the waitlist, and is admitted
+	 * only once capacity has been granted to it.
+	 * 
+	 * @return null if admitted, otherwise the exception to throw, describing
+	 *         the id's place in the waitlist
+	 */
+	private ReachedCapacityException admit(String wsessionid) {
+		if (numWaiting.get() == 0 && reserveCapacity()) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+
+		synchronized (waitlist) {
+			Ticket ticket = waitlist.get(wsessionid);
+			if (ticket == null) {
+				ticket = new Ticket();
+				waitlist.put(wsessionid, ticket);
+				numWaiting.incrementAndGet();
+			}
+			ticket.lastSeen = now;
+
+			grantTickets(now);
+
+			if (ticket.granted) {
+				// the capacity was reserved for us when it was granted
+				waitlist.remove(wsessionid);
+				numWaiting.decrementAndGet();
+				admittedFromWaitlist.put(wsessionid, Boolean.TRUE);
+				return null;
+			}
+
+			int position = 1;
+			for (Ticket t : waitlist.values()) {
+				if (t == ticket) {
+					break;
+				}
+				position++;
+			}
+
+			long wait = estimateWait(position, now);
+			System.out.println("Already reached capacity of "
+					+ numActiveRelays.get() + " user(s), " + wsessionid
+					+ " is number " + position + " in the waitlist.");
+			return new ReachedCapacityException(
+					"Relay manager reached capacity.", new Date(now + wait),
+					position, wait);
+		}
+	}
+
+	/**
+	 * Drop tickets whose clients have stopped checking in, then reserve any
+	 * free capacity for the tickets at the head of the list. Must be called
+	 * holding the waitlist lock.
+	 */
+	private void grantTickets(long now) {
+		Iterator<Ticket> it = waitlist.values().iterator();
+		while (it.hasNext()) {
+			Ticket t = it.next();
+			if (now - t.lastSeen > TICKET_TIMEOUT) {
+				it.remove();
+				numWaiting.decrementAndGet();
+				if (t.granted) {
+					numActiveRelays.decrementAndGet();
+				}
+			}
+		}
+
+		for (Ticket t : waitlist.values()) {
+			if (t.granted) {
+				continue;
+			}
+			if (!reserveCapacity()) {
+				break;
+			}
+			t.granted = true;
+		}
+	}
+
+	private long estimateWait(int position, long now) {
+		long interval = averageDepartureInterval;
+
+		if (interval > 0) {
+			return position * interval;
+		}
+
+		// Nobody has left yet, so go by the earliest a relay could time out,
+		// and after that assume relays time out evenly
+		long first = Math.max(0, getNextTimeout() - now);
+		return first + (position - 1) * (timeout / Math.max(1, maxActiveRelays));
+	}
+
+	/**
+	 * True (once) if the relay just added under this id was admitted from the
+	 * waitlist, rather than straight away
+	 */
+	public boolean wasAdmittedFromWaitlist(String wsessionid) {
+		return admittedFromWaitlist.remove(wsessionid) != null;
+	}
+
+	/**
+	 * The number of clients waiting for a relay
+	 */
+	public int getNumWaiting() {
+		return numWaiting.get();
+	}
+
+	public void addRelay(WamiRelay relay, String wsessionid)
 			throws ReachedCapacityException {
-		WamiRelay oldRelay = getRelay(wsessionid);
-
-		if (!isCapacityAvailable(oldRelay)) {
-			int numUsers = getActiveRelays().size();
-			System.out.println("Already reached capacity of " + numUsers
-					+ " user(s).");
-			throw new ReachedCapacityException(
-					"Relay manager reached capacity.", new Date(
-							getNextTimeout()));
+		// A relay replacing the one already under this id (e.g. on a page
+		// reload) reuses its slot
+		relay.setManager(this);
+
+		WamiRelay oldRelay = activeRelays.get(wsessionid);
+		if (oldRelay != null
+				&& activeRelays.replace(wsessionid, oldRelay, relay)) {
+			debugActive("Replaced Relay " + wsessionid);
+			schedule(wsessionid, relay, System.currentTimeMillis());
+			return;
+		}
+
+		ReachedCapacityException full = admit(wsessionid);
+		if (full != null) {
+			throw full;
+		}
+
+		if (activeRelays.put(wsessionid, relay) != null) {
+			// raced with another add for the same id, which holds its own slot
+			releaseCapacity();
 		}
 
-		debugActive("About to add relay");
-		activeRelays.put(wsessionid, relay);
 		debugActive("Added Relay " + wsessionid);
-		long curTime = System.currentTimeMillis();
-		nextTimeout = curTime + timeout;
+		schedule(wsessionid, relay, System.currentTimeMillis());
 	}
 
 	public WamiRelay getRelay(String wsessionid) {
-		System.out.println("Getting relay at: " + wsessionid);
 		return activeRelays.get(wsessionid);
 	}
 
+	/**
+	 * Runs the initializer on this thread, unless the relay for this
+	 * wsessionid is already being initialized, in which case this waits for
+	 * that to finish instead. Initializations for different ids do not wait
+	 * on each other: only the capacity check in
+	 * {@link #addRelay(WamiRelay, String)} is shared.
+	 * 
+	 * @return the initialized relay
+	 * @throws InitializationException
+	 *             if the initialization (whichever thread ran it) failed
+	 */
+	public WamiRelay initializeRelay(String wsessionid,
+			Callable<WamiRelay> initializer) throws InitializationException {
+		FutureTask<WamiRelay> task = new FutureTask<WamiRelay>(initializer);
+		FutureTask<WamiRelay> running = initializing.putIfAbsent(wsessionid,
+				task);
+
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				initializing.remove(wsessionid, task);
+			}
+			running = task;
+		}
+
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InitializationException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InitializationException) {
+				throw (InitializationException) cause;
+			}
+			throw new InitializationException(cause);
+		}
+	}
+
 	/**
 	 * Return the earliest possible time a session might time out
 	 */
-	public synchronized long getNextTimeout() {
-		return nextTimeout;
+	public long getNextTimeout() {
+		RelayDeadline next = deadlines.peek();
+		return next != null ? next.deadline : System.currentTimeMillis();
+	}
+
+	/**
+	 * Queue a check of the relay for the earliest time it could time out
+	 * (either it has sent no messages for the relay timeout, or the client has
+	 * not polled for noPollFromClientTimeout) or its outstanding poll will be
+	 * due a keepalive.
+	 */
+	private void schedule(String wsessionid, WamiRelay relay, long curTime) {
+		while (true) {
+			long pollStarted = relay.getTimeLastPollStarted();
+
+			long deadline = Math.min(relay.getTimeLastMessageSent() + timeout,
+					curTime - relay.getTimeSinceLastPollEnded()
+							+ noPollFromClientTimeout);
+
+			if (keepaliveInterval > 0 && relay.isPolling()) {
+				deadline = Math.min(deadline, getKeepaliveDue(relay));
+			}
+
+			RelayDeadline entry = new RelayDeadline(wsessionid, relay, deadline);
+			scheduled.put(wsessionid, entry);
+			deadlines.add(entry);
+
+			// a poll which started meanwhile may have missed this entry
+			// when checking whether to bring its keepalive forward
+			if (relay.getTimeLastPollStarted() == pollStarted) {
+				return;
+			}
+			curTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Called by a relay when its client starts a poll. Polls usually follow
+	 * each other closely enough that the relay is already scheduled soon
+	 * enough; otherwise the relay is rescheduled for the new poll's keepalive.
+	 */
+	void pollStarted(WamiRelay relay) {
+		if (keepaliveInterval <= 0) {
+			return;
+		}
+
+		String wsessionid = relay.getWamiSessionID();
+		RelayDeadline entry = scheduled.get(wsessionid);
+		if (entry != null && entry.relay == relay
+				&& getKeepaliveDue(relay) < entry.deadline) {
+			schedule(wsessionid, relay, System.currentTimeMillis());
+		}
+	}
+
+	private long getKeepaliveDue(WamiRelay relay) {
+		return Math.max(relay.getTimeLastPollStarted(), relay
+				.getTimeLastKeepalive())
+				+ keepaliveInterval;
 	}
 
 	/**
 	 * closes all active relays
 	 */
-	public synchronized void close() {
-		for (WamiRelay relay : activeRelays.values()) {
-			relay.close();
+	public void close() {
+		Iterator<Entry<String, WamiRelay>> it = activeRelays.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Entry<String, WamiRelay> entry = it.next();
+			if (removeRelay(entry.getKey(), entry.getValue())) {
+				entry.getValue().close();
+			}
+		}
+
+		deadlines.clear();
+		scheduled.clear();
+		timeoutThread.interrupt();
+
+		synchronized (waitlist) {
+			waitlist.clear();
+			numWaiting.set(0);
+		}
+	}
+
+	private static class Ticket {
+		/** the last time the client asked for a relay */
+		private long lastSeen;
+
+		/** whether capacity has been reserved for this client */
+		private boolean granted = false;
+	}
+
+	private static class RelayDeadline implements Delayed {
+		private String wsessionid;
+
+		private WamiRelay relay;
+
+		private long deadline;
+
+		public RelayDeadline(String wsessionid, WamiRelay relay, long deadline) {
+			this.wsessionid = wsessionid;
+			this.relay = relay;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((RelayDeadline) o).deadline;
+			return deadline < other ? -1 : (deadline > other ? 1 : 0);
 		}
-		activeRelays.clear();
 	}
 
 	private class TimeoutThread implements Runnable {
 		public void run() {
 			while (true) {
-				long curTime = System.currentTimeMillis();
+				RelayDeadline due;
 
-				long sleepTime = Math.min(noPollFromClientTimeout, timeout);
-				synchronized (RelayManager.this) {
-					nextTimeout = curTime;
-					debugActive("Before Timeout");
-
-					if (activeRelays.size() > 0) {
-						Iterator<Entry<String, WamiRelay>> it = activeRelays
-								.entrySet().iterator();
-
-						while (it.hasNext()) {
-							Entry<String, WamiRelay> entry = it.next();
-							WamiRelay relay = entry.getValue();
-							if (timeoutSession(relay, curTime)
-									|| timeoutPolling(relay, curTime)) {
-								relay.close();
-								it.remove();
-							}
-						}
-					}
+				try {
+					due = deadlines.take();
+				} catch (InterruptedException e) {
+					sc.log("Relay timeout thread stopped");
+					return;
+				}
 
-					debugActive("After Timeout");
+				// skip relays which were removed or replaced since scheduling,
+				// and entries superseded by a keepalive brought forward
+				if (scheduled.get(due.wsessionid) != due
+						|| activeRelays.get(due.wsessionid) != due.relay) {
+					continue;
 				}
 
-				try {
-					sc.log("Timeout Thread Sleep for: " + sleepTime);
-					Thread.sleep(sleepTime);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				long curTime = System.currentTimeMillis();
+				WamiRelay relay = due.relay;
+
+				if (timeoutSession(relay, curTime)
+						|| timeoutPolling(relay, curTime)) {
+					if (removeRelay(due.wsessionid, relay)) {
+						relay.close();
+						debugActive("Timed out relay " + due.wsessionid);
+					}
+				} else {
+					schedule(due.wsessionid, relay, curTime);
 				}
 			}
 		}
@@ -199,8 +587,11 @@ public class RelayManager {
 			if (timeSincePoll >= noPollFromClientTimeout) {
 				System.out.println("TIMING OUT (no polling): " + relay);
 				return true;
-			} else {
-				relay.forceRepoll(); // force repoll
+			}
+
+			if (keepaliveInterval > 0 && relay.isPolling()
+					&& curTime >= getKeepaliveDue(relay)) {
+				relay.sendKeepalive();
 			}
 
 			return false;
@@ -226,14 +617,35 @@ public class RelayManager {
 		}
 	}
 
+	/**
+	 * The manager of this web application (whose classes are loaded once per
+	 * web application)
+	 */
+	private static volatile RelayManager createdManager = null;
+
 	private void debugActive(String message) {
 		message = "ActiveRelays.size(" + message + "): "
-				+ getActiveRelays().size();
+				+ numActiveRelays.get();
 		sc.log(message);
 	}
 
+	/**
+	 * The manager created by {@link #getManager(HttpSession)}, for callers
+	 * with no HTTP session to find it through, such as a WebSocket handshake
+	 * from a cross-site client which only has its wsessionid. Null until a
+	 * request to the control servlet has created it.
+	 */
+	public static RelayManager getManager() {
+		return createdManager;
+	}
+
 	public static RelayManager getManager(HttpSession session) {
-		RelayManager manager = null;
+		RelayManager manager = (RelayManager) session.getServletContext()
+				.getAttribute("relayManager");
+
+		if (manager != null) {
+			return manager;
+		}
 
 		synchronized (session.getServletContext()) {
 			manager = (RelayManager) session.getServletContext().getAttribute(
@@ -246,11 +658,12 @@ public class RelayManager {
 
 				manager = new RelayManager(wc.getMaxRelays(), wc
 						.getRelayTimeout(session), wc
-						.getNoPollFromClientTimeout(), session
-						.getServletContext());
+						.getNoPollFromClientTimeout(), wc.getKeepaliveInterval(),
+						session.getServletContext());
 
 				session.getServletContext().setAttribute("relayManager",
 						manager);
+				createdManager = manager;
 			}
 		}
 
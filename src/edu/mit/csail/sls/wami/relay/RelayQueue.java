@@ -0,0 +1,450 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.relay;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed-capacity, array-backed queue for the messages (or audio) a relay
+ * holds for its client. When the client stops taking from it, the queue does
+ * not grow: depending on the {@link OverflowPolicy}, older elements are
+ * dropped to make room, or the producer waits. Each drop is counted, and
+ * passed to {@link #onDropped(Object)}.
+ */
+public class RelayQueue<E> extends AbstractQueue<E> implements
+		BlockingQueue<E> {
+
+	public enum OverflowPolicy {
+		/** make room by dropping the oldest element */
+		DROP_OLDEST,
+
+		/**
+		 * make room by dropping the oldest element for which
+		 * {@link RelayQueue#isIncremental(Object)} holds, and only when there
+		 * is none, the oldest element
+		 */
+		DROP_INCREMENTAL_FIRST,
+
+		/**
+		 * make the producer wait for room (see
+		 * {@link RelayQueue#RelayQueue(int, OverflowPolicy, long)})
+		 */
+		BLOCK
+	}
+
+	private final Object[] items;
+
+	/** index of the oldest element */
+	private int head = 0;
+
+	private int count = 0;
+
+	private final OverflowPolicy policy;
+
+	private final long maxBlockMillis;
+
+	private volatile long numDropped = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	public RelayQueue(int capacity, OverflowPolicy policy) {
+		this(capacity, policy, 0);
+	}
+
+	/**
+	 * @param maxBlockMillis
+	 *            with {@link OverflowPolicy#BLOCK}, the longest a producer
+	 *            waits in {@link #put(Object)} before the oldest element is
+	 *            dropped anyway, so that a client which has gone away cannot
+	 *            hold up the producer forever. 0 or less waits indefinitely.
+	 */
+	public RelayQueue(int capacity, OverflowPolicy policy, long maxBlockMillis) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+
+		this.items = new Object[capacity];
+		this.policy = policy;
+		this.maxBlockMillis = maxBlockMillis;
+	}
+
+	/**
+	 * Whether the element is superseded by the elements which follow it, so
+	 * that it is the first to go under
+	 * {@link OverflowPolicy#DROP_INCREMENTAL_FIRST}. Nothing is, by default.
+	 */
+	protected boolean isIncremental(E e) {
+		return false;
+	}
+
+	/**
+	 * Called (without the queue locked) for each element which is dropped, for
+	 * instance to release resources it holds.
+	 */
+	protected void onDropped(E e) {
+	}
+
+	/**
+	 * The number of elements dropped since the queue was created
+	 */
+	public long getNumDropped() {
+		return numDropped;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Adds the element, dropping another if the queue is full. Under
+	 * {@link OverflowPolicy#BLOCK}, returns false instead if the queue is
+	 * full.
+	 */
+	public boolean offer(E e) {
+		checkNotNull(e);
+		E dropped = null;
+
+		lock.lock();
+		try {
+			if (count == items.length) {
+				if (policy == OverflowPolicy.BLOCK) {
+					return false;
+				}
+
+				dropped = makeRoom(e);
+			}
+
+			if (dropped != e) {
+				enqueue(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		drop(dropped);
+		return true;
+	}
+
+	/**
+	 * Adds the element. Under {@link OverflowPolicy#BLOCK} this waits for room
+	 * (at most for maxBlockMillis, after which the oldest element is dropped);
+	 * otherwise it is the same as {@link #offer(Object)}.
+	 */
+	public void put(E e) throws InterruptedException {
+		checkNotNull(e);
+		if (policy != OverflowPolicy.BLOCK) {
+			offer(e);
+			return;
+		}
+
+		E dropped = null;
+
+		lock.lockInterruptibly();
+		try {
+			if (maxBlockMillis > 0) {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+				while (count == items.length && nanos > 0) {
+					nanos = notFull.awaitNanos(nanos);
+				}
+			} else {
+				while (count == items.length) {
+					notFull.await();
+				}
+			}
+
+			if (count == items.length) {
+				dropped = removeAt(0);
+			}
+
+			enqueue(e);
+		} finally {
+			lock.unlock();
+		}
+
+		drop(dropped);
+	}
+
+	/**
+	 * Under {@link OverflowPolicy#BLOCK}, waits up to the given time for room
+	 * and returns false if there is none; otherwise the same as
+	 * {@link #offer(Object)}.
+	 */
+	public boolean offer(E e, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		checkNotNull(e);
+		if (policy != OverflowPolicy.BLOCK) {
+			return offer(e);
+		}
+
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == items.length) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+
+			enqueue(e);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts back an element which was taken from the queue but could not be
+	 * used, so that it is the next to be taken. If the queue has filled up in
+	 * the meantime, an incremental element makes room under
+	 * {@link OverflowPolicy#DROP_INCREMENTAL_FIRST}; otherwise the returned
+	 * element, being the oldest, is dropped. This never waits.
+	 */
+	public void offerFirst(E e) {
+		checkNotNull(e);
+		E dropped = null;
+
+		lock.lock();
+		try {
+			if (count == items.length) {
+				if (policy == OverflowPolicy.DROP_INCREMENTAL_FIRST) {
+					for (int i = 0; i < count && dropped == null; i++) {
+						if (isIncremental(itemAt(i))) {
+							dropped = removeAt(i);
+						}
+					}
+				}
+
+				if (dropped == null) {
+					numDropped++;
+					dropped = e;
+				}
+			}
+
+			if (dropped != e) {
+				head = (head + items.length - 1) % items.length;
+				items[head] = e;
+				count++;
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		drop(dropped);
+	}
+
+	public E poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public E peek() {
+		lock.lock();
+		try {
+			return count == 0 ? null : itemAt(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return items.length - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+
+		lock.lock();
+		try {
+			int n = 0;
+			while (count > 0 && n < maxElements) {
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Iterates over a snapshot of the queue, which does not support removal
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		lock.lock();
+		try {
+			List<E> snapshot = new ArrayList<E>(count);
+			for (int i = 0; i < count; i++) {
+				snapshot.add(itemAt(i));
+			}
+			return Collections.unmodifiableList(snapshot).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Chooses and removes the element to drop so that e can be added to the
+	 * full queue. Returns e itself if it is the one to drop. Must be called
+	 * with the lock held.
+	 */
+	private E makeRoom(E e) {
+		if (policy == OverflowPolicy.DROP_INCREMENTAL_FIRST) {
+			for (int i = 0; i < count; i++) {
+				if (isIncremental(itemAt(i))) {
+					return removeAt(i);
+				}
+			}
+
+			if (isIncremental(e)) {
+				// nothing older is expendable, so rather than losing an
+				// element which matters, lose this one
+				numDropped++;
+				return e;
+			}
+		}
+
+		return removeAt(0);
+	}
+
+	private void drop(E dropped) {
+		if (dropped != null) {
+			onDropped(dropped);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private E itemAt(int i) {
+		return (E) items[(head + i) % items.length];
+	}
+
+	private void enqueue(E e) {
+		items[(head + count) % items.length] = e;
+		count++;
+		notEmpty.signal();
+	}
+
+	private E dequeue() {
+		E e = itemAt(0);
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		notFull.signal();
+		return e;
+	}
+
+	/**
+	 * Removes the i'th oldest element as a drop, closing the gap
+	 */
+	private E removeAt(int i) {
+		E e = itemAt(i);
+		for (int j = i; j < count - 1; j++) {
+			items[(head + j) % items.length] = items[(head + j + 1)
+					% items.length];
+		}
+		items[(head + count - 1) % items.length] = null;
+		count--;
+		numDropped++;
+		notFull.signal();
+		return e;
+	}
+
+	private static void checkNotNull(Object e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+	}
+}
@@ -27,8 +27,11 @@
  */
 package edu.mit.csail.sls.wami.relay;
 
+import org.w3c.dom.Document;
+
 import edu.mit.csail.sls.wami.log.IEventLogger;
 import edu.mit.csail.sls.wami.log.StringLogEvent;
+import edu.mit.csail.sls.wami.util.JsonML;
 
 /**
  * Represents a message sent from server to client
@@ -44,4 +47,18 @@ public class SentMessageLogEvent extends StringLogEvent {
 	public SentMessageLogEvent() {
 		super();
 	}	
+
+	/**
+	 * Messages sent in the JSON wire format are converted back to XML, so
+	 * that logs play back the same whichever format the client used
+	 */
+	@Override
+	public Document getEventAsXml() {
+		String event = getEvent();
+		if (event != null && JsonML.isJsonML(event)) {
+			return JsonML.toXMLDocument(event);
+		}
+
+		return super.getEventAsXml();
+	}
 }
@@ -27,11 +27,12 @@
  */
 package edu.mit.csail.sls.wami.relay;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
@@ -47,9 +48,10 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import edu.mit.csail.sls.wami.WamiConfig;
-import edu.mit.csail.sls.wami.app.IApplicationController;
+import edu.mit.csail.sls.wami.app.IMessageController;
 import edu.mit.csail.sls.wami.app.IWamiApplication;
 import edu.mit.csail.sls.wami.audio.IAudioRetriever;
+import edu.mit.csail.sls.wami.audio.UtteranceBuffer;
 import edu.mit.csail.sls.wami.log.EventLoggerException;
 import edu.mit.csail.sls.wami.log.IEventLogger;
 import edu.mit.csail.sls.wami.log.IEventPlayer;
@@ -66,22 +68,57 @@ import edu.mit.csail.sls.wami.recognition.lm.exceptions.UnsupportedLanguageModel
 import edu.mit.csail.sls.wami.synthesis.ISynthesizer;
 import edu.mit.csail.sls.wami.synthesis.SpeakLogEvent;
 import edu.mit.csail.sls.wami.synthesis.SynthesizerException;
-import edu.mit.csail.sls.wami.util.AudioUtils;
 import edu.mit.csail.sls.wami.util.ServletUtils;
+import edu.mit.csail.sls.wami.util.XmlMessageWriter;
 import edu.mit.csail.sls.wami.util.XmlUtils;
 
-public class WamiRelay implements IApplicationController {
-	private BlockingQueue<String> messageQueue = new LinkedBlockingQueue<String>();
+public class WamiRelay implements IMessageController {
+	/**
+	 * Messages waiting for the client to poll. Bounded, so that a client which
+	 * stops polling cannot make the relay grow until it times out; replaced in
+	 * initialize() with one sized and configured from config.xml.
+	 */
+	private volatile RelayQueue<String> messageQueue = createMessageQueue(
+			256, RelayQueue.OverflowPolicy.DROP_INCREMENTAL_FIRST, 0);
 
 	private WamiConfig wc = null;
 
 	private long pollTimeout = -1;
 
-	private long timeLastMessageSent = System.currentTimeMillis();
+	private XmlMessageWriter.WireFormat wireFormat = XmlMessageWriter.WireFormat.XML;
+
+	/*
+	 * read by the RelayManager's timeout thread when this relay's deadline
+	 * comes due
+	 */
+	private volatile long timeLastMessageSent = System.currentTimeMillis();
+
+	private volatile long timeLastPollEnded = System.currentTimeMillis();
 
-	private long timeLastPollEnded = System.currentTimeMillis();
+	private volatile boolean isCurrentlyPolling = false;
 
-	private boolean isCurrentlyPolling = false;
+	private volatile long timeLastPollStarted = System.currentTimeMillis();
+
+	private volatile long timeLastKeepalive = 0;
+
+	/**
+	 * The manager which schedules this relay's timeouts and keepalives, told
+	 * whenever the client starts a poll
+	 */
+	private volatile RelayManager manager = null;
+
+	/**
+	 * The outstanding non-blocking poll, if any. Guarded by pollLock, which
+	 * also guards hand-off between this and the messageQueue so that a message
+	 * is never queued while a listener is waiting for it.
+	 */
+	private IPollListener pendingPoll = null;
+
+	private final Object pollLock = new Object();
+
+	private volatile boolean initialized = false;
+
+	private volatile boolean closed = false;
 
 	private ISynthesizer synthesizer;
 
@@ -95,7 +132,14 @@ public class WamiRelay implements IApplicationController {
 
 	private IAudioRetriever audioRetriever = null;
 
-	private byte[] lastAudioBytes = null;
+	/**
+	 * the audio of the most recent final results, oldest first (the relay
+	 * holds a reference to each)
+	 */
+	private LinkedList<Recording> recordings = new LinkedList<Recording>();
+
+	/** the number of final results so far, which numbers the recordings */
+	private int numRecordings = 0;
 
 	AudioFormat lastAudioFormat = null;
 
@@ -117,6 +161,16 @@ public class WamiRelay implements IApplicationController {
 		wc = WamiConfig.getConfiguration(session.getServletContext());
 		pollTimeout = wc.getPollTimeout();
 
+		// negotiated when the client loaded the javascript API
+		Object format = session.getAttribute("wireFormat");
+		if (format instanceof XmlMessageWriter.WireFormat) {
+			wireFormat = (XmlMessageWriter.WireFormat) format;
+		}
+		messageQueue = createMessageQueue(wc.getMessageQueueCapacity(), wc
+				.getMessageQueueOverflowPolicy(), wc
+				.getNoPollFromClientTimeout());
+		audioQueue = createAudioQueue(wc.getAudioQueueCapacity());
+
 		eventLogger = createEventLogger(request);
 
 		logEvent(new RequestHeadersLogEvent(request), System
@@ -140,6 +194,17 @@ public class WamiRelay implements IApplicationController {
 
 		// This will be null if there is no application set in the config file.
 		wamiApp = wc.createWamiApplication(this, session);
+
+		initialized = true;
+	}
+
+	/**
+	 * True once {@link #initialize(HttpServletRequest, String)} has completed.
+	 * The relay is registered with the manager before it is initialized, so
+	 * lookups which skip the creation lock must check this first.
+	 */
+	public boolean isInitialized() {
+		return initialized;
 	}
 
 	private IEventLogger createEventLogger(HttpServletRequest request)
@@ -182,10 +247,19 @@ public class WamiRelay implements IApplicationController {
 	 * wait only as long as pollTimeout() and return null if nothing found
 	 */
 	public String waitForMessage() throws InterruptedException {
+		return waitForMessage(pollTimeout);
+	}
+
+	/**
+	 * Same as {@link #waitForMessage()}, but with the given timeout (in ms)
+	 * rather than the configured pollTimeout; 0 or less waits indefinitely.
+	 */
+	public String waitForMessage(long timeout) throws InterruptedException {
 		try {
-			isCurrentlyPolling = true;
-			System.out.println("Waiting for message: " + pollTimeout);
-			return (pollTimeout > 0) ? messageQueue.poll(pollTimeout,
+			startPoll();
+			notifyPollStarted();
+			System.out.println("Waiting for message: " + timeout);
+			return (timeout > 0) ? messageQueue.poll(timeout,
 					TimeUnit.MILLISECONDS) : messageQueue.take();
 		} finally {
 			isCurrentlyPolling = false;
@@ -193,21 +267,239 @@ public class WamiRelay implements IApplicationController {
 		}
 	}
 
+	/**
+	 * Non-blocking version of {@link #waitForMessage()}. If a message is
+	 * already queued, the listener is called immediately on this thread.
+	 * Otherwise it is registered and called by whichever thread next sends a
+	 * message. A poll already pending for this relay is superseded, and its
+	 * listener is called with null. The caller is responsible for timing out
+	 * the poll via {@link #cancelPoll(IPollListener)}.
+	 */
+	public void waitForMessage(IPollListener listener) {
+		String message;
+		IPollListener superseded = null;
+
+		synchronized (pollLock) {
+			message = messageQueue.poll();
+			if (message == null) {
+				superseded = pendingPoll;
+				pendingPoll = listener;
+				startPoll();
+			} else {
+				timeLastPollEnded = System.currentTimeMillis();
+			}
+		}
+
+		if (superseded != null) {
+			superseded.onMessage(null);
+		}
+
+		if (message != null) {
+			listener.onMessage(message);
+		} else {
+			notifyPollStarted();
+		}
+	}
+
+	private void startPoll() {
+		// the flag goes first: the manager reads these in the opposite order
+		isCurrentlyPolling = true;
+		timeLastPollStarted = System.currentTimeMillis();
+	}
+
+	/**
+	 * Let the manager bring this relay's next keepalive forward, if the new
+	 * poll needs one sooner than the relay was scheduled for.
+	 */
+	private void notifyPollStarted() {
+		RelayManager m = manager;
+		if (m != null) {
+			m.pollStarted(this);
+		}
+	}
+
+	void setManager(RelayManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Withdraw a poll registered with {@link #waitForMessage(IPollListener)},
+	 * e.g. because it timed out or the client went away.
+	 * 
+	 * @return true if the poll was still pending, false if a message has
+	 *         already been (or is being) delivered to the listener
+	 */
+	public boolean cancelPoll(IPollListener listener) {
+		synchronized (pollLock) {
+			if (pendingPoll != listener) {
+				return false;
+			}
+
+			pendingPoll = null;
+			isCurrentlyPolling = false;
+			timeLastPollEnded = System.currentTimeMillis();
+			return true;
+		}
+	}
+
+	/**
+	 * Move any messages still queued for the client into the given list,
+	 * without waiting. Used to send several messages back in one poll.
+	 * 
+	 * @return the number of messages added
+	 */
+	public int drainMessages(List<String> messages) {
+		return messageQueue.drainTo(messages);
+	}
+
 	public void sendMessage(Document xmlMessage) {
-		sendMessage(XmlUtils.toXMLString(xmlMessage));
+		if (wireFormat == XmlMessageWriter.WireFormat.JSON) {
+			sendMessage(XmlMessageWriter.toString(xmlMessage
+					.getDocumentElement(), wireFormat));
+		} else {
+			sendMessage(XmlUtils.toXMLString(xmlMessage));
+		}
+	}
+
+	/**
+	 * The format messages to and from this relay's client are sent in
+	 */
+	public XmlMessageWriter.WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	/**
+	 * Start a message to send to this relay's client, in its wire format
+	 */
+	public XmlMessageWriter newMessage(String rootName) {
+		return XmlMessageWriter.newMessage(rootName, wireFormat);
 	}
 
 	public void sendMessage(String message) {
-		try {
-			System.out.println("Sending message: " + message);
-			long timestampMillis = System.currentTimeMillis();
-			timeLastMessageSent = timestampMillis;
-			logEvent(new SentMessageLogEvent(message), timestampMillis);
-			messageQueue.put(message);
-		} catch (InterruptedException e) {
-			// LinkedBlockingQueues are not bounded, so this shouldn't occur
-			e.printStackTrace();
+		System.out.println("Sending message: " + message);
+		long timestampMillis = System.currentTimeMillis();
+		timeLastMessageSent = timestampMillis;
+		logEvent(new SentMessageLogEvent(message), timestampMillis);
+		deliverMessage(message);
+	}
+
+	/**
+	 * Hand the message straight to a pending non-blocking poll if there is
+	 * one, otherwise queue it for the next poll.
+	 */
+	private void deliverMessage(String message) {
+		IPollListener listener;
+
+		synchronized (pollLock) {
+			listener = pendingPoll;
+			if (listener == null) {
+				if (messageQueue.offer(message)) {
+					return;
+				}
+			} else {
+				pendingPoll = null;
+				isCurrentlyPolling = false;
+				timeLastPollEnded = System.currentTimeMillis();
+			}
+		}
+
+		if (listener == null) {
+			// The queue is full, and configured to make us wait for the
+			// client. We can't wait holding pollLock, since a non-blocking
+			// poll needs it to take from the queue.
+			try {
+				messageQueue.put(message);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+
+			// a non-blocking poll may have registered while we waited
+			synchronized (pollLock) {
+				if (pendingPoll == null) {
+					return;
+				}
+
+				message = messageQueue.poll();
+				if (message == null) {
+					return;
+				}
+
+				listener = pendingPoll;
+				pendingPoll = null;
+				isCurrentlyPolling = false;
+				timeLastPollEnded = System.currentTimeMillis();
+			}
 		}
+
+		listener.onMessage(message);
+	}
+
+	/**
+	 * Give back a message handed to a non-blocking poll which could not send
+	 * it, e.g. because the poll timed out at the same moment. It goes to the
+	 * poll which has registered since, if any, or else to the head of the
+	 * queue, ahead of anything sent after it.
+	 */
+	public void requeueMessage(String message) {
+		IPollListener listener;
+
+		synchronized (pollLock) {
+			listener = pendingPoll;
+			if (listener == null) {
+				messageQueue.offerFirst(message);
+				return;
+			}
+
+			pendingPoll = null;
+			isCurrentlyPolling = false;
+			timeLastPollEnded = System.currentTimeMillis();
+		}
+
+		listener.onMessage(message);
+	}
+
+	/**
+	 * The number of messages for the client which were dropped because it did
+	 * not poll for them fast enough
+	 */
+	public long getNumDroppedMessages() {
+		return messageQueue.getNumDropped();
+	}
+
+	private static final String REPOLL_XML = "<reply />";
+
+	private static final String REPOLL_JSON = "[\"reply\"]";
+
+	private String getRepollMessage() {
+		return (wireFormat == XmlMessageWriter.WireFormat.JSON) ? REPOLL_JSON
+				: REPOLL_XML;
+	}
+
+	/**
+	 * Whether the message only asks the client to poll again (see
+	 * {@link #forceRepoll()}), and so carries nothing for an event stream
+	 */
+	public static boolean isRepollMessage(String message) {
+		return REPOLL_XML.equals(message) || REPOLL_JSON.equals(message);
+	}
+
+	private static RelayQueue<String> createMessageQueue(int capacity,
+			RelayQueue.OverflowPolicy policy, long maxBlockMillis) {
+		return new RelayQueue<String>(capacity, policy, maxBlockMillis) {
+			@Override
+			protected boolean isIncremental(String message) {
+				// Incremental results are superseded by the next result, and a
+				// forced repoll is redundant next to any other message
+				return isRepollMessage(message)
+						|| message.contains("incremental=\"true\"")
+						|| message.contains("\"incremental\":\"true\"");
+			}
+
+			@Override
+			protected void onDropped(String message) {
+				System.out.println("Message queue full, dropped: " + message);
+			}
+		};
 	}
 
 	public long getTimeLastMessageSent() {
@@ -218,6 +510,22 @@ public class WamiRelay implements IApplicationController {
 		return pollTimeout;
 	}
 
+	public boolean isPolling() {
+		return isCurrentlyPolling;
+	}
+
+	/**
+	 * The time the client's most recent poll started, whether or not it is
+	 * still outstanding
+	 */
+	public long getTimeLastPollStarted() {
+		return timeLastPollStarted;
+	}
+
+	long getTimeLastKeepalive() {
+		return timeLastKeepalive;
+	}
+
 	/**
 	 * If the client is still polling, return 0. Otherwise, return the number of
 	 * milliseconds since the previous poll by the client ended
@@ -232,11 +540,8 @@ public class WamiRelay implements IApplicationController {
 	 * of the timeout.
 	 */
 	public void timeout() {
-		Document document = XmlUtils.newXMLDocument();
-		Element root = document.createElement("reply");
-		root.setAttribute("type", "timeout");
-		document.appendChild(root);
-		sendMessage(XmlUtils.toXMLString(document));
+		sendMessage(newMessage("reply").attribute("type", "timeout")
+				.toXMLString());
 	}
 
 	private class AudioElement {
@@ -247,7 +552,24 @@ public class WamiRelay implements IApplicationController {
 		}
 	}
 
-	BlockingQueue<AudioElement> audioQueue = new LinkedBlockingQueue<AudioElement>();
+	volatile BlockingQueue<AudioElement> audioQueue = createAudioQueue(16);
+
+	private BlockingQueue<AudioElement> createAudioQueue(int capacity) {
+		return new RelayQueue<AudioElement>(capacity,
+				RelayQueue.OverflowPolicy.DROP_OLDEST) {
+			@Override
+			protected void onDropped(AudioElement e) {
+				System.out.println("Audio queue full, dropping audio");
+				if (e.stream != null) {
+					try {
+						e.stream.close();
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+			}
+		};
+	}
 
 	public boolean playedAudio = false;
 
@@ -314,6 +636,9 @@ public class WamiRelay implements IApplicationController {
 	 * This delegates recognition to the {@link IRecognizer} associated with
 	 * this relay, providing the appropriate callbacks
 	 * 
+	 * The audio is kept in an {@link UtteranceBuffer} for replay and logging,
+	 * so the recognizer must deliver its final result before returning.
+	 * 
 	 * @param audioIn
 	 *            The audio input stream to recognizer
 	 * @throws RecognizerException
@@ -323,18 +648,35 @@ public class WamiRelay implements IApplicationController {
 	 */
 	public void recognize(AudioInputStream audioIn) throws RecognizerException,
 			IOException {
-		final ByteArrayOutputStream audioByteStream = new ByteArrayOutputStream();
-		final AudioFormat audioFormat = audioIn.getFormat();
-		TeeInputStream tee = new TeeInputStream(audioIn, audioByteStream, true);
-		AudioInputStream forkedStream = new AudioInputStream(tee, audioIn
-				.getFormat(), AudioSystem.NOT_SPECIFIED);
-
 		if (recognizer == null) {
 			throw new RecognizerException("No recognizer specified!");
 		} else if (wamiApp == null) {
 			throw new RecognizerException("No wami app specified!");
 		}
 
+		// recordings kept from earlier utterances can go to disk now
+		synchronized (lastAudioLock) {
+			for (Recording recording : recordings) {
+				recording.audio.spill();
+			}
+		}
+
+		final UtteranceBuffer audioBuffer = new UtteranceBuffer();
+		final AudioFormat audioFormat = audioIn.getFormat();
+		TeeInputStream tee = new TeeInputStream(audioIn, audioBuffer, true);
+		AudioInputStream forkedStream = new AudioInputStream(tee, audioIn
+				.getFormat(), AudioSystem.NOT_SPECIFIED);
+
+		try {
+			recognize(forkedStream, audioBuffer, audioFormat);
+		} finally {
+			audioBuffer.release();
+		}
+	}
+
+	private void recognize(AudioInputStream forkedStream,
+			final UtteranceBuffer audioBuffer, final AudioFormat audioFormat)
+			throws RecognizerException, IOException {
 		recognizer.recognize(forkedStream, new IRecognitionListener() {
 			private long startedTimestamp;
 
@@ -345,23 +687,14 @@ public class WamiRelay implements IApplicationController {
 				// on RecognitionResult
 				long timestampMillis = System.currentTimeMillis();
 				if (!result.isIncremental()) {
-					try {
-						audioByteStream.close();
-					} catch (IOException e) {
-						e.printStackTrace(); // shouldn't occur
-					}
-
-					synchronized (lastAudioLock) {
-						lastAudioBytes = audioByteStream.toByteArray();
-						lastAudioFormat = audioFormat;
-					}
+					audioBuffer.close();
+					addRecording(audioBuffer, audioFormat);
 				}
 				wamiApp.onRecognitionResult(result);
 				logEvent(result, timestampMillis);
 
 				if (!result.isIncremental()) {
-					logUtterance(audioByteStream.toByteArray(), audioFormat,
-							startedTimestamp);
+					logUtterance(audioBuffer, audioFormat, startedTimestamp);
 				}
 			}
 
@@ -400,7 +733,20 @@ public class WamiRelay implements IApplicationController {
 
 	public void handleClientUpdate(HttpSession session, String xmlUpdate) {
 		Document doc = XmlUtils.toXMLDocument(xmlUpdate);
-		Element root = (Element) doc.getFirstChild();
+		handleClientUpdate(session, doc.getDocumentElement(), xmlUpdate);
+	}
+
+	/**
+	 * Same as {@link #handleClientUpdate(HttpSession, String)}, for an update
+	 * which has already been parsed, so that it needn't be parsed again. The
+	 * update is only serialized again if there is an event logger to log it.
+	 */
+	public void handleClientUpdate(HttpSession session, Element root) {
+		handleClientUpdate(session, root, null);
+	}
+
+	private void handleClientUpdate(HttpSession session, Element root,
+			String xmlUpdate) {
 		logClientEvent(xmlUpdate, root);
 
 		String type = root.getAttribute("type");
@@ -455,17 +801,20 @@ public class WamiRelay implements IApplicationController {
 	}
 
 	private void sendErrorMessage(String type, String message, String details) {
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
-		root.setAttribute("type", "error");
-		root.setAttribute("error_type", type);
-		root.setAttribute("message", message);
-		root.setAttribute("details", details);
-		doc.appendChild(root);
-		sendMessage(doc);
+		sendMessage(newMessage("reply").attribute("type", "error").attribute(
+				"error_type", type).attribute("message", message).attribute(
+				"details", details).toXMLString());
 	}
 
+	/**
+	 * @param xmlUpdate
+	 *            root as a string, or null to serialize it only if needed
+	 */
 	private void logClientEvent(String xmlUpdate, Element root) {
+		if (eventLogger == null) {
+			return;
+		}
+
 		String type = root.getAttribute("type");
 		if ("logevents".equals(type)) {
 			NodeList eventNodes = root.getElementsByTagName("event");
@@ -477,18 +826,40 @@ public class WamiRelay implements IApplicationController {
 			}
 		} else {
 			System.out.println("logging client event");
+			if (xmlUpdate == null) {
+				xmlUpdate = XmlUtils.toXMLString(root);
+			}
 			long timestampMillis = System.currentTimeMillis();
 			logEvent(new ClientMessageLogEvent(xmlUpdate), timestampMillis);
 		}
 	}
 
+	/**
+	 * True once {@link #close()} has been called
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
 	public synchronized void close() {
+		closed = true;
+
 		// Run this on a separate thread to avoid delays/errors
 		
 		(new Thread(new Runnable() {
 			@Override
 			public void run() {
 				WamiRelay.this.stopPolling();
+
+				// Nobody will play the audio still queued
+				List<AudioElement> unplayed = new ArrayList<AudioElement>();
+				WamiRelay.this.audioQueue.drainTo(unplayed);
+				for (AudioElement e : unplayed) {
+					if (e.stream != null) {
+						closeQuietly(e.stream);
+					}
+				}
+
 				// The poison pill
 				WamiRelay.this.audioQueue.add(new AudioElement(null));
 
@@ -518,6 +889,8 @@ public class WamiRelay implements IApplicationController {
 					}
 				}
 
+				releaseRecordings();
+
 				if (eventLogger != null) {
 					try {
 						sc.log("DestroyingEventLogger");
@@ -538,7 +911,8 @@ public class WamiRelay implements IApplicationController {
 	}
 
 	public void stopPolling() {
-		this.sendMessage("<reply type='stop_polling' />");
+		sendMessage(newMessage("reply").attribute("type", "stop_polling")
+				.toXMLString());
 	}
 
 	public void logEvent(final ILoggable logEvent, final long timestampMillis) {
@@ -574,25 +948,88 @@ public class WamiRelay implements IApplicationController {
 		return synthesizer;
 	}
 
+	/**
+	 * The last utterance with a final result, as a WAV file. Each call reads
+	 * the same stored audio; nothing is copied.
+	 */
 	public InputStream getLastRecordedAudio() {
 		synchronized (lastAudioLock) {
-			AudioInputStream audioIn = AudioUtils.createAudioInputStream(
-					lastAudioBytes, lastAudioFormat);
-			try {
-				return AudioUtils.createInputStreamWithWaveHeader(audioIn);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
+			return recordings.isEmpty() ? null : recordings.getLast()
+					.newWaveInputStream();
+		}
+	}
+
+	/**
+	 * Keep the audio of a final result, dropping the oldest recordings beyond
+	 * the number configured
+	 */
+	private void addRecording(UtteranceBuffer audio, AudioFormat format) {
+		List<Recording> dropped = new ArrayList<Recording>();
+		int retain = wc != null ? Math.max(1, wc.getRetainedRecordings()) : 1;
+
+		audio.retain();
+		synchronized (lastAudioLock) {
+			recordings.add(new Recording(numRecordings++, audio, format));
+			lastAudioFormat = format;
+			while (recordings.size() > retain) {
+				dropped.add(recordings.removeFirst());
 			}
 		}
+
+		for (Recording recording : dropped) {
+			recording.audio.release();
+		}
 	}
 
-	private void logUtterance(final byte[] bytes,
+	private void releaseRecordings() {
+		List<Recording> dropped;
+		synchronized (lastAudioLock) {
+			dropped = new ArrayList<Recording>(recordings);
+			recordings.clear();
+			lastAudioFormat = null;
+		}
+
+		for (Recording recording : dropped) {
+			recording.audio.release();
+		}
+	}
+
+	/**
+	 * A kept recording, named as
+	 * {@link edu.mit.csail.sls.wami.jsapi.ClientControlledApplication} names them
+	 * ("wami---&lt;wsessionid&gt;---&lt;utt_id&gt;"), as a WAV file, or null
+	 */
+	private InputStream getRetainedRecording(String fileName) {
+		String prefix = "wami---" + wsessionid + "---";
+		if (fileName == null || !fileName.startsWith(prefix)) {
+			return null;
+		}
+
+		int id;
+		try {
+			id = Integer.parseInt(fileName.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		synchronized (lastAudioLock) {
+			for (Recording recording : recordings) {
+				if (recording.id == id) {
+					return recording.newWaveInputStream();
+				}
+			}
+		}
+		return null;
+	}
+
+	private void logUtterance(UtteranceBuffer audio,
 			final AudioFormat audioFormat, final long audioTimestampMillis) {
-		if (eventLogger != null) {
+		IEventLogger logger = eventLogger;
+		if (logger != null) {
+			// the logger closes the stream, whenever it is done reading it
+			AudioInputStream audioIn = audio.newAudioInputStream(audioFormat);
 			try {
-				eventLogger.logUtterance(AudioUtils.createAudioInputStream(
-						bytes, audioFormat), audioTimestampMillis);
+				logger.logUtterance(audioIn, audioTimestampMillis);
 			} catch (EventLoggerException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
@@ -601,24 +1038,46 @@ public class WamiRelay implements IApplicationController {
 		}
 	}
 
+	private static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public IEventPlayer getLogPlayer() {
 		return logplayer;
 	}
 
+	/**
+	 * The HTTP session of the request which created this relay
+	 */
+	public HttpSession getHttpSession() {
+		return session;
+	}
+
 	public WamiConfig getWamiConfig() {
 		return wc;
 	}
 
 	public void sendReadyMessage() {
-		Document doc = XmlUtils.newXMLDocument();
-		Element root = doc.createElement("reply");
-		root.setAttribute("type", "wami_ready");
-		doc.appendChild(root);
-		sendMessage(doc);
+		sendMessage(newMessage("reply").attribute("type", "wami_ready")
+				.toXMLString());
 	}
 
+	/**
+	 * Recordings still kept by this relay (see the retainedRecordings setting)
+	 * are read from memory or the spill file; any others are looked up with
+	 * the configured {@link IAudioRetriever}.
+	 */
 	@Override
 	public InputStream getRecording(String fileName) {
+		InputStream retained = getRetainedRecording(fileName);
+		if (retained != null) {
+			return retained;
+		}
+
 		if (audioRetriever == null) {
 			throw new RuntimeException(
 					"If you are going to try to retrieve recorded utts, you must specify a valid IAudioRetriever in the config.xml file.");
@@ -632,15 +1091,62 @@ public class WamiRelay implements IApplicationController {
 	}
 
 	public void forceRepoll() {
-		try {
-			long timestampMillis = System.currentTimeMillis();
-			String message = "<reply />";
-			logEvent(new SentMessageLogEvent(message), timestampMillis);
-			messageQueue.put(message);
-		} catch (InterruptedException e) {
-			// LinkedBlockingQueues are not bounded, so this shouldn't occur
-			e.printStackTrace();
+		long timestampMillis = System.currentTimeMillis();
+		String message = getRepollMessage();
+		logEvent(new SentMessageLogEvent(message), timestampMillis);
+		deliverMessage(message);
+	}
+
+	/**
+	 * Answer the client's outstanding non-blocking poll with an empty reply so
+	 * that it polls again before an intermediary closes the idle connection.
+	 * Unlike {@link #forceRepoll()}, this is not logged, and nothing is ever
+	 * queued: a blocking poll may end at any moment, and a queued keepalive
+	 * would then be the stale first reply to the client's next poll. Blocking
+	 * polls are kept short by the pollTimeout instead.
+	 */
+	void sendKeepalive() {
+		String message = getRepollMessage();
+		IPollListener listener;
+
+		synchronized (pollLock) {
+			timeLastKeepalive = System.currentTimeMillis();
+			listener = pendingPoll;
+			if (listener == null) {
+				return;
+			}
+
+			pendingPoll = null;
+			isCurrentlyPolling = false;
+			timeLastPollEnded = timeLastKeepalive;
 		}
+
+		listener.onMessage(message);
 	}
 
+	/**
+	 * The audio of one final result, kept for replay and getRecording()
+	 */
+	private static class Recording {
+		private final int id;
+
+		private final UtteranceBuffer audio;
+
+		private final AudioFormat format;
+
+		Recording(int id, UtteranceBuffer audio, AudioFormat format) {
+			this.id = id;
+			this.audio = audio;
+			this.format = format;
+		}
+
+		InputStream newWaveInputStream() {
+			try {
+				return audio.newWaveInputStream(format);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
 }
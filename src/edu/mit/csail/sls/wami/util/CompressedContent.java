@@ -0,0 +1,297 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A piece of content held both as is and pre-compressed, so that it can be
+ * sent with or without gzip content coding without compressing anything per
+ * request.
+ * 
+ * The compressed form is a raw deflate stream that is flushed to a byte
+ * boundary but not finished, so several pieces can be spliced into a single
+ * gzip member. This lets a response made mostly of static content (such as
+ * wami.js) compress only its small dynamic part at request time.
+ */
+public final class CompressedContent {
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/** An empty fixed-Huffman block with BFINAL set, ending the stream */
+	private static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+	private static final int GZIP_TRAILER_LENGTH = 8;
+
+	private final byte[] bytes;
+	private final byte[] deflated;
+	private final int crc;
+	private final String etag;
+	private final long lastModified;
+
+	public CompressedContent(byte[] bytes, long lastModified) {
+		this(bytes, lastModified, Deflater.BEST_COMPRESSION);
+	}
+
+	private CompressedContent(byte[] bytes, long lastModified, int level) {
+		this.bytes = bytes;
+		this.lastModified = lastModified - lastModified % 1000;
+		this.deflated = deflate(bytes, level);
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes);
+		this.crc = (int) crc32.getValue();
+		this.etag = "\"" + digest(bytes) + "\"";
+	}
+
+	/**
+	 * Static content, compressed as tightly as possible.
+	 */
+	public static CompressedContent fromString(String text) {
+		return new CompressedContent(getUTF8Bytes(text), System
+				.currentTimeMillis());
+	}
+
+	/**
+	 * Per-request content, compressed quickly since it is used once.
+	 */
+	public static CompressedContent forRequest(String text) {
+		return new CompressedContent(getUTF8Bytes(text), System
+				.currentTimeMillis(), Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * The uncompressed content. Callers must not modify the array.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return bytes.length;
+	}
+
+	/**
+	 * A strong entity tag (quotes included) for the uncompressed content.
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Modification time, truncated to the second as in HTTP dates.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * A strong entity tag for the concatenation of the given parts.
+	 */
+	public static String getETag(CompressedContent... parts) {
+		if (parts.length == 1) {
+			return parts[0].etag;
+		}
+
+		StringBuilder tags = new StringBuilder();
+		for (CompressedContent part : parts) {
+			tags.append(part.etag);
+		}
+		return "\"" + digest(getUTF8Bytes(tags.toString())) + "\"";
+	}
+
+	public static long getLength(CompressedContent... parts) {
+		long length = 0;
+		for (CompressedContent part : parts) {
+			length += part.bytes.length;
+		}
+		return length;
+	}
+
+	public static void write(OutputStream out, CompressedContent... parts)
+			throws IOException {
+		for (CompressedContent part : parts) {
+			out.write(part.bytes);
+		}
+	}
+
+	/**
+	 * The size of the gzip member written by {@link #writeGzip}.
+	 */
+	public static long getGzipLength(CompressedContent... parts) {
+		long length = GZIP_HEADER.length + FINAL_BLOCK.length
+				+ GZIP_TRAILER_LENGTH;
+		for (CompressedContent part : parts) {
+			length += part.deflated.length;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the concatenation of the parts as one gzip member. Only the
+	 * header and trailer are computed here; the CRC of the whole is combined
+	 * from the CRCs of the parts.
+	 */
+	public static void writeGzip(OutputStream out, CompressedContent... parts)
+			throws IOException {
+		out.write(GZIP_HEADER);
+
+		long crc = 0;
+		long length = 0;
+		for (CompressedContent part : parts) {
+			out.write(part.deflated);
+			crc = crc32Combine(crc, part.crc & 0xffffffffL, part.bytes.length);
+			length += part.bytes.length;
+		}
+		out.write(FINAL_BLOCK);
+
+		byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+		writeIntLE(trailer, 0, (int) crc);
+		writeIntLE(trailer, 4, (int) length); // ISIZE is the length mod 2^32
+		out.write(trailer);
+	}
+
+	private static byte[] deflate(byte[] bytes, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(bytes);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					bytes.length / 2 + 64);
+			byte[] buf = new byte[8192];
+			int n;
+			do {
+				n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+				out.write(buf, 0, n);
+			} while (n == buf.length || !deflater.needsInput());
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeIntLE(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+		b[offset + 2] = (byte) (value >>> 16);
+		b[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static byte[] getUTF8Bytes(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String digest(byte[] bytes) {
+		try {
+			byte[] md5 = MessageDigest.getInstance("MD5").digest(bytes);
+			StringBuilder hex = new StringBuilder(md5.length * 2);
+			for (byte b : md5) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The CRC-32 of two concatenated blocks, given the CRC of each and the
+	 * length of the second. This is crc32_combine() from zlib: appending
+	 * len2 zero bytes to the first block is a linear operator on its CRC,
+	 * applied here by repeated squaring of the one-zero-bit operator.
+	 */
+	static long crc32Combine(long crc1, long crc2, long len2) {
+		if (len2 <= 0) {
+			return crc1;
+		}
+
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		// operator for one zero bit
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		gf2MatrixSquare(even, odd); // two zero bits
+		gf2MatrixSquare(odd, even); // four zero bits
+
+		// apply len2 zero bytes to crc1, one power of two at a time
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((len2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			len2 >>= 1;
+			if (len2 == 0) {
+				break;
+			}
+
+			gf2MatrixSquare(odd, even);
+			if ((len2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			len2 >>= 1;
+		} while (len2 != 0);
+
+		return (crc1 ^ crc2) & 0xffffffffL;
+	}
+
+	private static long gf2MatrixTimes(long[] mat, long vec) {
+		long sum = 0;
+		int i = 0;
+		while (vec != 0) {
+			if ((vec & 1) != 0) {
+				sum ^= mat[i];
+			}
+			vec >>>= 1;
+			i++;
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] mat) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = gf2MatrixTimes(mat, mat[n]);
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The JSON wire format for the control channel. Messages keep the element
+ * structure of their XML form, written as JsonML (http://jsonml.org): an
+ * element is an array holding its tag name, then an object of its attributes
+ * (if it has any), then its children, each either an element array or a text
+ * string. For example
+ * 
+ * <pre>
+ * &lt;reply type=&quot;recresult&quot;&gt;&lt;hyp index=&quot;0&quot;&gt;&lt;text&gt;hello&lt;/text&gt;&lt;/hyp&gt;&lt;/reply&gt;
+ * </pre>
+ * 
+ * is sent as
+ * 
+ * <pre>
+ * [&quot;reply&quot;,{&quot;type&quot;:&quot;recresult&quot;},[&quot;hyp&quot;,{&quot;index&quot;:&quot;0&quot;},[&quot;text&quot;,&quot;hello&quot;]]]
+ * </pre>
+ * 
+ * Messages are written by {@link XmlMessageWriter}. Messages from the client
+ * are read here into the same DOM an XML message would produce, so
+ * applications see no difference between the two.
+ */
+public class JsonML {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Reader in;
+
+	private final Document document;
+
+	/** one character of lookahead, or -2 if none has been read */
+	private int next = -2;
+
+	private StringBuilder scratch = new StringBuilder();
+
+	private JsonML(Reader in, Document document) {
+		this.in = in;
+		this.document = document;
+	}
+
+	/**
+	 * True if the message is JsonML rather than XML
+	 */
+	public static boolean isJsonML(String message) {
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (!Character.isWhitespace(c)) {
+				return c == '[';
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Append the string to the buffer as a quoted JSON string
+	 */
+	public static void quote(String s, StringBuilder buffer) {
+		buffer.append('"');
+
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			case '\u2028':
+			case '\u2029':
+				// valid in JSON, but not in a javascript string literal
+				unicodeEscape(c, buffer);
+				break;
+			default:
+				if (c < 0x20) {
+					unicodeEscape(c, buffer);
+				} else {
+					buffer.append(c);
+				}
+			}
+		}
+
+		buffer.append('"');
+	}
+
+	private static void unicodeEscape(char c, StringBuilder buffer) {
+		buffer.append("\\u").append(HEX[(c >> 12) & 0xF]).append(
+				HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(
+				HEX[c & 0xF]);
+	}
+
+	/**
+	 * Read one JsonML element into a new document, like
+	 * {@link XmlUtils#toXMLDocument(String)}
+	 * 
+	 * @return the document, or null if the message is malformed
+	 */
+	public static Document toXMLDocument(String message) {
+		try {
+			return parseElement(new StringReader(message)).getOwnerDocument();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Read one JsonML element from the reader, as the root of a new document
+	 */
+	public static Element parseElement(Reader in) throws IOException {
+		Document document = XmlUtils.newXMLDocument();
+		Element root = parseElement(in, document);
+		document.appendChild(root);
+		return root;
+	}
+
+	private static Element parseElement(Reader in, Document document)
+			throws IOException {
+		JsonML parser = new JsonML(in, document);
+		parser.expect('[');
+		return parser.readElement();
+	}
+
+	/**
+	 * Reads the rest of an element, its opening bracket having been read
+	 */
+	private Element readElement() throws IOException {
+		String name = readString();
+		Element element;
+		try {
+			element = document.createElement(name);
+		} catch (DOMException e) {
+			throw error("invalid tag name \"" + name + "\"");
+		}
+
+		int c = skipWhitespace();
+		if (c == ',' && peekValue() == '{') {
+			read();
+			readAttributes(element);
+			c = skipWhitespace();
+		}
+
+		while (c == ',') {
+			switch (peekValue()) {
+			case '[':
+				read();
+				element.appendChild(readElement());
+				break;
+			case '{':
+				throw error("attributes must directly follow the tag name");
+			default:
+				String text = readScalar();
+				if (text != null) {
+					element.appendChild(document.createTextNode(text));
+				}
+			}
+			c = skipWhitespace();
+		}
+
+		if (c != ']') {
+			throw error("expected , or ]");
+		}
+		return element;
+	}
+
+	private void readAttributes(Element element) throws IOException {
+		if (peekValue() == '}') {
+			read();
+			return;
+		}
+
+		while (true) {
+			String name = readString();
+			expect(':');
+			String value = readScalar();
+			try {
+				element.setAttribute(name, value == null ? "" : value);
+			} catch (DOMException e) {
+				throw error("invalid attribute name \"" + name + "\"");
+			}
+
+			int c = skipWhitespace();
+			if (c == '}') {
+				return;
+			} else if (c != ',') {
+				throw error("expected , or }");
+			}
+		}
+	}
+
+	/**
+	 * Reads a string, number, boolean or null (as null)
+	 */
+	private String readScalar() throws IOException {
+		int c = peekValue();
+		if (c == '"') {
+			return readString();
+		}
+
+		scratch.setLength(0);
+		while (true) {
+			c = peek();
+			if (c == -1 || c == ',' || c == ']' || c == '}'
+					|| Character.isWhitespace(c)) {
+				break;
+			}
+			scratch.append((char) read());
+		}
+
+		String literal = scratch.toString();
+		if ("null".equals(literal)) {
+			return null;
+		} else if (literal.length() == 0) {
+			throw error("expected a value");
+		}
+		return literal;
+	}
+
+	private String readString() throws IOException {
+		expect('"');
+		scratch.setLength(0);
+
+		while (true) {
+			int c = read();
+			if (c == '"') {
+				return scratch.toString();
+			} else if (c == -1) {
+				throw error("unterminated string");
+			} else if (c != '\\') {
+				scratch.append((char) c);
+				continue;
+			}
+
+			c = read();
+			switch (c) {
+			case 'n':
+				scratch.append('\n');
+				break;
+			case 'r':
+				scratch.append('\r');
+				break;
+			case 't':
+				scratch.append('\t');
+				break;
+			case 'b':
+				scratch.append('\b');
+				break;
+			case 'f':
+				scratch.append('\f');
+				break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) {
+						throw error("bad unicode escape");
+					}
+					code = (code << 4) | digit;
+				}
+				scratch.append((char) code);
+				break;
+			case -1:
+				throw error("unterminated string");
+			default:
+				// \" \\ \/
+				scratch.append((char) c);
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		if (skipWhitespace() != expected) {
+			throw error("expected " + expected);
+		}
+	}
+
+	/**
+	 * Skips whitespace and returns (without consuming) the next character
+	 */
+	private int peekValue() throws IOException {
+		int c = skipWhitespace();
+		next = c;
+		return c;
+	}
+
+	/** consumes whitespace and the character after it, which is returned */
+	private int skipWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c != -1 && Character.isWhitespace(c));
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (next == -2) {
+			next = in.read();
+		}
+		return next;
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+		next = -2;
+		return c;
+	}
+
+	private IOException error(String message) {
+		return new IOException("Malformed JsonML message: " + message);
+	}
+}
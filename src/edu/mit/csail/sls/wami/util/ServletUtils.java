@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -28,7 +29,20 @@ public class ServletUtils {
 	}
 
 	public static String convertStreamToString(InputStream is) {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		return convertStreamToString(new InputStreamReader(is), is);
+	}
+
+	public static String convertStreamToString(InputStream is, String charset) {
+		try {
+			return convertStreamToString(new InputStreamReader(is, charset), is);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String convertStreamToString(InputStreamReader in,
+			InputStream is) {
+		BufferedReader reader = new BufferedReader(in);
 		StringBuilder sb = new StringBuilder();
 
 		String line = null;
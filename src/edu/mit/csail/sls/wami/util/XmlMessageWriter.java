@@ -0,0 +1,336 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.util;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Writes small XML messages, such as the replies sent to the client, straight
+ * into a buffer, escaping as it goes. This avoids building a DOM and running it
+ * through a Transformer as {@link XmlUtils#toXMLString(org.w3c.dom.Node)}
+ * does, which adds up for messages sent many times a second, like incremental
+ * recognition results.
+ * 
+ * Elements are written in document order, and attributes must follow the
+ * start of their element, e.g.
+ * 
+ * <pre>
+ * String message = XmlMessageWriter.newMessage(&quot;reply&quot;).attribute(&quot;type&quot;,
+ * 		&quot;timeout&quot;).toXMLString();
+ * </pre>
+ * 
+ * The same calls can instead write the message as JsonML (see {@link JsonML})
+ * for clients which negotiated the JSON wire format.
+ * 
+ * No XML declaration is written. Each thread reuses one writer (and its
+ * buffer) for the messages it builds, so a writer must not be kept after
+ * {@link #toXMLString()} has been called.
+ */
+public class XmlMessageWriter {
+	/**
+	 * How messages travel between the server and a client
+	 */
+	public enum WireFormat {
+		XML, JSON;
+
+		/**
+		 * @return the format named (case insensitively) by the string, or
+		 *         XML if it is null or not recognized
+		 */
+		public static WireFormat fromString(String name) {
+			return "json".equalsIgnoreCase(name) ? JSON : XML;
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/** a buffer grown larger than this is not kept for reuse */
+	private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+	private static final ThreadLocal<XmlMessageWriter> writers = new ThreadLocal<XmlMessageWriter>() {
+		@Override
+		protected XmlMessageWriter initialValue() {
+			return new XmlMessageWriter();
+		}
+	};
+
+	private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+	private boolean json = false;
+
+	/** names of the elements started but not yet ended */
+	private String[] open = new String[8];
+
+	private int depth = 0;
+
+	/** true until the start tag of the current element has been closed */
+	private boolean inStartTag = false;
+
+	/** for JsonML, whether the current element's attribute object is open */
+	private boolean inAttributes = false;
+
+	private boolean inUse = false;
+
+	private XmlMessageWriter() {
+	}
+
+	/**
+	 * Start a new XML message with the given root element
+	 */
+	public static XmlMessageWriter newMessage(String rootName) {
+		return newMessage(rootName, WireFormat.XML);
+	}
+
+	/**
+	 * Start a new message with the given root element, to be written in the
+	 * given format
+	 */
+	public static XmlMessageWriter newMessage(String rootName,
+			WireFormat format) {
+		XmlMessageWriter writer = writers.get();
+		if (writer.inUse) {
+			// another message is being built on this thread
+			writer = new XmlMessageWriter();
+		}
+
+		writer.inUse = true;
+		writer.json = (format == WireFormat.JSON);
+		return writer.startElement(rootName);
+	}
+
+	/**
+	 * Write a DOM element (including its descendants) as a message in the
+	 * given format
+	 */
+	public static String toString(Element element, WireFormat format) {
+		XmlMessageWriter writer = newMessage(element.getTagName(), format);
+		writer.writeContent(element);
+		return writer.toXMLString();
+	}
+
+	public XmlMessageWriter startElement(String name) {
+		closeStartTag();
+
+		if (depth == open.length) {
+			String[] grown = new String[2 * open.length];
+			System.arraycopy(open, 0, grown, 0, depth);
+			open = grown;
+		}
+
+		if (json) {
+			if (depth > 0) {
+				buffer.append(',');
+			}
+			buffer.append('[');
+			JsonML.quote(name, buffer);
+		} else {
+			buffer.append('<').append(name);
+		}
+
+		open[depth++] = name;
+		inStartTag = true;
+		return this;
+	}
+
+	/**
+	 * Add an attribute to the element just started. A null value is written
+	 * as empty.
+	 */
+	public XmlMessageWriter attribute(String name, String value) {
+		if (!inStartTag) {
+			throw new IllegalStateException("Attribute " + name
+					+ " must directly follow the start of an element");
+		}
+
+		if (json) {
+			buffer.append(inAttributes ? ',' : ",{");
+			inAttributes = true;
+			JsonML.quote(name, buffer);
+			buffer.append(':');
+			JsonML.quote(value == null ? "" : value, buffer);
+		} else {
+			buffer.append(' ').append(name).append("=\"");
+			escape(value, true);
+			buffer.append('"');
+		}
+		return this;
+	}
+
+	public XmlMessageWriter attribute(String name, int value) {
+		return attribute(name, Integer.toString(value));
+	}
+
+	public XmlMessageWriter attribute(String name, boolean value) {
+		return attribute(name, Boolean.toString(value));
+	}
+
+	public XmlMessageWriter text(String text) {
+		closeStartTag();
+
+		if (json) {
+			if (text != null && text.length() > 0) {
+				buffer.append(',');
+				JsonML.quote(text, buffer);
+			}
+		} else {
+			escape(text, false);
+		}
+		return this;
+	}
+
+	public XmlMessageWriter endElement() {
+		if (depth == 0) {
+			throw new IllegalStateException("No element to end");
+		}
+
+		String name = open[--depth];
+		open[depth] = null;
+
+		if (json) {
+			closeStartTag();
+			buffer.append(']');
+		} else if (inStartTag) {
+			buffer.append("/>");
+			inStartTag = false;
+		} else {
+			buffer.append("</").append(name).append('>');
+		}
+		return this;
+	}
+
+	/**
+	 * Write the attributes and children of a DOM element into the element
+	 * just started
+	 */
+	private void writeContent(Element element) {
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			attribute(attr.getName(), attr.getValue());
+		}
+
+		NodeList children = element.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			switch (child.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				startElement(((Element) child).getTagName());
+				writeContent((Element) child);
+				endElement();
+				break;
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				text(child.getNodeValue());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * End any elements still open and return the message. The writer is
+	 * reset for the next message on this thread.
+	 */
+	public String toXMLString() {
+		while (depth > 0) {
+			endElement();
+		}
+
+		String message = buffer.toString();
+
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+			buffer = new StringBuilder(INITIAL_CAPACITY);
+		} else {
+			buffer.setLength(0);
+		}
+		inUse = false;
+
+		return message;
+	}
+
+	private void closeStartTag() {
+		if (inStartTag) {
+			if (json) {
+				if (inAttributes) {
+					buffer.append('}');
+					inAttributes = false;
+				}
+			} else {
+				buffer.append('>');
+			}
+			inStartTag = false;
+		}
+	}
+
+	private void escape(String s, boolean inAttribute) {
+		if (s == null) {
+			return;
+		}
+
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				buffer.append("&amp;");
+				break;
+			case '<':
+				buffer.append("&lt;");
+				break;
+			case '>':
+				buffer.append("&gt;");
+				break;
+			case '"':
+				buffer.append(inAttribute ? "&quot;" : "\"");
+				break;
+			case '\n':
+				buffer.append(inAttribute ? "&#10;" : "\n");
+				break;
+			case '\r':
+				buffer.append("&#13;");
+				break;
+			case '\t':
+				buffer.append(inAttribute ? "&#9;" : "\t");
+				break;
+			default:
+				// other control characters can't appear in XML 1.0 at all
+				if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF) {
+					buffer.append(c);
+				}
+			}
+		}
+	}
+}
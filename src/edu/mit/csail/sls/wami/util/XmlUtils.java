@@ -43,6 +43,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
@@ -62,6 +63,34 @@ public class XmlUtils {
 	private static final TransformerFactory tFactory = TransformerFactory
 			.newInstance();
 
+	/**
+	 * Builders for {@link #parseElement(InputSource)}, one per thread since
+	 * they are not thread-safe, and reset rather than recreated between uses.
+	 */
+	private static final ThreadLocal<DocumentBuilder> pooledBuilders = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			DocumentBuilderFactory parseFactory = DocumentBuilderFactory
+					.newInstance();
+			parseFactory.setValidating(false);
+			parseFactory.setNamespaceAware(false);
+			try {
+				// don't go fetching DTDs for messages from the client
+				parseFactory.setFeature(
+						"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+						false);
+			} catch (ParserConfigurationException e) {
+				// not supported by this parser, so it will just be slower
+			}
+
+			try {
+				return parseFactory.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
 	public static Document toXMLDocument(String xmlString) {
 		return toXMLDocument(new InputSource(new StringReader(xmlString)));
 	}
@@ -84,6 +113,20 @@ public class XmlUtils {
 		return xmlDoc;
 	}
 
+	/**
+	 * Parse a document in a single pass with a pooled, non-validating builder,
+	 * and return its root element (null if there is none)
+	 */
+	public static Element parseElement(InputSource source) throws SAXException,
+			IOException {
+		DocumentBuilder builder = pooledBuilders.get();
+		try {
+			return builder.parse(source).getDocumentElement();
+		} finally {
+			builder.reset();
+		}
+	}
+
 	public static DocumentBuilder getBuilder() {
 		try {
 			return factory.newDocumentBuilder();
@@ -0,0 +1,240 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+/**
+ * Checks the {@link SocketSender} of {@link WamiSocketEndpoint} against a
+ * slow client: queueing a text message must not wait for it, messages must go
+ * out one at a time and in order, and a failed send must stop the socket's
+ * sending and release whoever waits on it.
+ * 
+ * The remote endpoint is a stand-in which completes each send a while later
+ * on another thread, as a container does, so this needs neither a container
+ * nor a test framework. Run it with the WebSocket API on the classpath:
+ * 
+ * <pre>
+ * java -cp bin:test-bin:javax.websocket-api-1.1.jar edu.mit.csail.sls.wami.SocketSenderTest
+ * </pre>
+ * 
+ * It exits with status 1 if any check fails.
+ */
+public class SocketSenderTest {
+	// how long the client takes to read each message (ms)
+	private static final long SEND_DELAY = 200;
+
+	private static final ScheduledExecutorService client = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		testOrder();
+		testFailure();
+		testClose();
+
+		client.shutdownNow();
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	private static void testOrder() throws InterruptedException {
+		SlowRemote remote = new SlowRemote(-1);
+		AtomicInteger failed = new AtomicInteger();
+		SocketSender sender = new SocketSender(remote.proxy(),
+				counter(failed));
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			sender.sendText("message " + i);
+		}
+		long queued = System.currentTimeMillis() - start;
+		System.out.println("queued 5 text messages in " + queued + "ms");
+		check(queued < SEND_DELAY, "queueing waited for the client");
+
+		boolean sent = sender.sendBinary(ByteBuffer.wrap(new byte[] { 1, 2 }));
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println("audio sent after " + elapsed + "ms: "
+				+ remote.received);
+		check(sent, "audio not sent");
+		check(elapsed >= 6 * SEND_DELAY, "audio did not wait its turn");
+		check(remote.received.equals(expected("message 0", "message 1",
+				"message 2", "message 3", "message 4", "2 bytes")),
+				"messages out of order");
+		check(remote.maxInFlight == 1, "more than one message in flight");
+		check(failed.get() == 0, "failure reported");
+	}
+
+	private static void testFailure() throws InterruptedException {
+		SlowRemote remote = new SlowRemote(1);
+		AtomicInteger failed = new AtomicInteger();
+		SocketSender sender = new SocketSender(remote.proxy(),
+				counter(failed));
+
+		sender.sendText("message 0");
+		sender.sendText("message 1");
+		sender.sendText("message 2");
+		boolean sent = sender.sendBinary(ByteBuffer.wrap(new byte[1]));
+		sender.sendText("message 3");
+		Thread.sleep(2 * SEND_DELAY);
+
+		System.out.println("after a failed send: " + remote.received);
+		check(!sent, "audio reported sent after a failure");
+		check(remote.received.equals(expected("message 0")),
+				"messages sent after a failure");
+		check(failed.get() == 1, "failure reported " + failed.get()
+				+ " time(s)");
+	}
+
+	private static void testClose() throws InterruptedException {
+		SlowRemote remote = new SlowRemote(-1);
+		AtomicInteger failed = new AtomicInteger();
+		final SocketSender sender = new SocketSender(remote.proxy(),
+				counter(failed));
+
+		for (int i = 0; i < 5; i++) {
+			sender.sendText("message " + i);
+		}
+		client.schedule(new Runnable() {
+			public void run() {
+				sender.close();
+			}
+		}, SEND_DELAY / 2, TimeUnit.MILLISECONDS);
+		boolean sent = sender.sendBinary(ByteBuffer.wrap(new byte[1]));
+		Thread.sleep(2 * SEND_DELAY);
+
+		System.out.println("after close: " + remote.received);
+		check(!sent, "audio reported sent after close");
+		check(remote.received.size() <= 1, "messages sent after close");
+		check(failed.get() == 0, "close reported as a failure");
+	}
+
+	private static Runnable counter(final AtomicInteger count) {
+		return new Runnable() {
+			public void run() {
+				count.incrementAndGet();
+			}
+		};
+	}
+
+	private static List<String> expected(String... messages) {
+		List<String> list = new ArrayList<String>();
+		Collections.addAll(list, messages);
+		return list;
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println("  FAILED: " + message);
+			failures++;
+		}
+	}
+
+	/**
+	 * Stands in for a container's asynchronous remote endpoint, completing
+	 * each send SEND_DELAY later
+	 */
+	private static class SlowRemote implements InvocationHandler {
+		private final List<String> received = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		// the send which fails (counting from 0), or -1
+		private final int failAt;
+
+		private int numSends = 0;
+
+		private int inFlight = 0;
+
+		private int maxInFlight = 0;
+
+		SlowRemote(int failAt) {
+			this.failAt = failAt;
+		}
+
+		RemoteEndpoint.Async proxy() {
+			return (RemoteEndpoint.Async) Proxy.newProxyInstance(
+					RemoteEndpoint.Async.class.getClassLoader(),
+					new Class<?>[] { RemoteEndpoint.Async.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (args == null || args.length != 2
+					|| !(args[1] instanceof SendHandler)
+					|| !(name.equals("sendText") || name.equals("sendBinary"))) {
+				throw new UnsupportedOperationException(name);
+			}
+
+			final String message = args[0] instanceof ByteBuffer ? ((ByteBuffer) args[0])
+					.remaining()
+					+ " bytes"
+					: (String) args[0];
+			final SendHandler handler = (SendHandler) args[1];
+			final boolean fail;
+			synchronized (this) {
+				fail = numSends++ == failAt;
+				maxInFlight = Math.max(maxInFlight, ++inFlight);
+			}
+
+			client.schedule(new Runnable() {
+				public void run() {
+					synchronized (SlowRemote.this) {
+						inFlight--;
+					}
+					if (fail) {
+						handler.onResult(new SendResult(new Exception(
+								"expected failure of " + message)));
+					} else {
+						received.add(message);
+						handler.onResult(new SendResult());
+					}
+				}
+			}, SEND_DELAY, TimeUnit.MILLISECONDS);
+			return null;
+		}
+	}
+}
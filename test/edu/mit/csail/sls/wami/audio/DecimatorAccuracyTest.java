@@ -0,0 +1,209 @@
+/* -*- Java -*-
+ *
+ * Copyright (c) 2009
+ * Spoken Language Systems Group
+ * MIT Computer Science and Artificial Intelligence Laboratory
+ * Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+ * ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.mit.csail.sls.wami.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Checks the {@link Decimator} cascade against the general polyphase path of
+ * {@link PolyphaseResampleInputStream}, for 16, 32 and 48 kHz audio going to
+ * an 8 kHz recognizer: tones in the passband must come out at the same level
+ * from both, tones in the stopband must be attenuated at least as well, and
+ * both must produce about the same number of samples.
+ * 
+ * This needs no test framework; run it with the library on the classpath:
+ * 
+ * <pre>
+ * java -cp bin:test-bin edu.mit.csail.sls.wami.audio.DecimatorAccuracyTest
+ * </pre>
+ * 
+ * It exits with status 1 if any check fails.
+ */
+public class DecimatorAccuracyTest {
+	private static final float TARGET_RATE = 8000;
+
+	private static final int[] SOURCE_RATES = { 16000, 32000, 48000 };
+
+	private static final int[] PASSBAND_TONES = { 300, 1000, 2000, 3000 };
+
+	// those at or above the source's Nyquist frequency are skipped
+	private static final int[] STOPBAND_TONES = { 5000, 6000, 7000, 9000,
+			12000, 15000, 20000 };
+
+	private static final double SECONDS = 2;
+
+	private static final double AMPLITUDE = 10000;
+
+	// how far the two paths may differ in the passband (dB)
+	private static final double PASSBAND_TOLERANCE = 0.5;
+
+	// how much less attenuation the cascade may have in the stopband (dB),
+	// unless it still reaches GOOD_STOPBAND_ATTENUATION
+	private static final double STOPBAND_TOLERANCE = 3;
+
+	// attenuation beyond which the two paths are not compared (dB): the
+	// cascade's first half-band stages trade some of it for speed far above
+	// the target passband
+	private static final double GOOD_STOPBAND_ATTENUATION = 50;
+
+	// the least attenuation either path must have in the stopband (dB)
+	private static final double MIN_STOPBAND_ATTENUATION = 30;
+
+	// how many samples the two paths' output lengths may differ by: the
+	// filters differ in length, but neither may emit its leading transient,
+	// which is some 24 samples at 8 kHz
+	private static final int LENGTH_TOLERANCE = 8;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		for (int rate : SOURCE_RATES) {
+			for (int tone : PASSBAND_TONES) {
+				double cascade = level(rate, tone, true);
+				double general = level(rate, tone, false);
+				report(rate, tone, cascade, general);
+				check(Math.abs(cascade - general) <= PASSBAND_TOLERANCE,
+						"passband levels differ");
+				check(tone > 2000 || Math.abs(cascade) <= 1,
+						"passband tone not passed");
+			}
+
+			for (int tone : STOPBAND_TONES) {
+				if (tone >= rate / 2) {
+					continue;
+				}
+				double cascade = level(rate, tone, true);
+				double general = level(rate, tone, false);
+				report(rate, tone, cascade, general);
+				check(cascade <= general + STOPBAND_TOLERANCE
+						|| cascade <= -GOOD_STOPBAND_ATTENUATION,
+						"stopband attenuation worse than the general path");
+				check(cascade <= -MIN_STOPBAND_ATTENUATION
+						&& general <= -MIN_STOPBAND_ATTENUATION,
+						"stopband tone not attenuated");
+			}
+
+			int cascadeLength = resample(tone(rate, 1000), rate, true).length;
+			int generalLength = resample(tone(rate, 1000), rate, false).length;
+			System.out.println(rate + " Hz: " + cascadeLength + " samples vs "
+					+ generalLength);
+			check(Math.abs(cascadeLength - generalLength) <= LENGTH_TOLERANCE,
+					"output lengths differ");
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	private static void report(int rate, int tone, double cascade,
+			double general) {
+		System.out.println(rate + " Hz, " + tone + " Hz tone: cascade "
+				+ format(cascade) + " dB, general " + format(general) + " dB");
+	}
+
+	private static String format(double db) {
+		return String.valueOf(Math.round(db * 100) / 100.0);
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println("  FAILED: " + message);
+			failures++;
+		}
+	}
+
+	/**
+	 * The level (dB, relative to the input) of a tone after resampling, over
+	 * the middle of the output so that neither end affects it; silence is
+	 * reported as -100 dB
+	 */
+	private static double level(int rate, int frequency, boolean cascade)
+			throws IOException {
+		short[] out = resample(tone(rate, frequency), rate, cascade);
+		int from = out.length / 10;
+		int to = out.length - from;
+
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += (double) out[i] * out[i];
+		}
+		double rms = Math.sqrt(sum / (to - from));
+		if (rms == 0) {
+			return -100;
+		}
+		return 20 * Math.log10(rms / (AMPLITUDE / Math.sqrt(2)));
+	}
+
+	private static short[] tone(int rate, int frequency) {
+		short[] samples = new short[(int) (SECONDS * rate)];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short) Math.round(AMPLITUDE
+					* Math.sin(2 * Math.PI * frequency * i / rate));
+		}
+		return samples;
+	}
+
+	private static short[] resample(short[] samples, int rate, boolean cascade)
+			throws IOException {
+		byte[] bytes = new byte[2 * samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			bytes[2 * i] = (byte) samples[i];
+			bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+		}
+
+		AudioFormat sourceFormat = new AudioFormat(rate, 16, 1, true, false);
+		AudioFormat targetFormat = new AudioFormat(TARGET_RATE, 16, 1, true,
+				false);
+		InputStream in = new PolyphaseResampleInputStream(targetFormat,
+				new AudioInputStream(new ByteArrayInputStream(bytes),
+						sourceFormat, samples.length), cascade);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n; (n = in.read(buffer)) != -1;) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+
+		byte[] result = out.toByteArray();
+		short[] resampled = new short[result.length / 2];
+		for (int i = 0; i < resampled.length; i++) {
+			resampled[i] = (short) ((result[2 * i + 1] << 8) | (result[2 * i] & 0xff));
+		}
+		return resampled;
+	}
+}